@@ -1,10 +1,46 @@
 package org.shellassignment;
 
 import java.io.File;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+import org.shellassignment.audit.AuditLog;
+import org.shellassignment.audit.AuditReader;
+import org.shellassignment.daemon.ConsoleRouter;
+import org.shellassignment.fs.DirectorySizeCache;
+import org.shellassignment.fs.ParallelTreeWalker;
+import org.shellassignment.fs.RecursiveDeleter;
+import org.shellassignment.text.ExternalSorter;
+import org.shellassignment.text.UniqFilter;
 import org.shellassignment.sync.Mutex;
 import org.shellassignment.sync.Semaphore;
 import org.shellassignment.sync.ProducerConsumer;
@@ -12,26 +48,23 @@ import org.shellassignment.memory.MemoryManager;
 import org.shellassignment.memory.Page;
 import org.shellassignment.memory.PageReplacementAlgorithm;
 import org.shellassignment.auth.AuthenticationManager;
+import org.shellassignment.auth.SessionTokens;
 import org.shellassignment.auth.User;
 import org.shellassignment.permissions.PermissionManager;
 import org.shellassignment.permissions.FilePermission;
+import org.shellassignment.permissions.Acl;
+import org.shellassignment.session.Session;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class BuiltInFeatures {
-    private static RoundRobinScheduler scheduler;
-    private static PriorityScheduler priorityScheduler;
     private static final AtomicInteger jobCounter = new AtomicInteger(1);
-    private static MemoryManager memoryManager = new MemoryManager(10, PageReplacementAlgorithm.FIFO); // 10 page frames
-    private static AuthenticationManager authManager;
-    private static PermissionManager permissionManager;
 
-    public static void setAuthenticationManager(AuthenticationManager manager) {
-        authManager = manager;
-    }
-
-    public static void setPermissionManager(PermissionManager manager) {
-        permissionManager = manager;
+    static void auditCommand(String line, Session session) {
+        AuditLog auditLog = session.getAuditLog();
+        if (auditLog != null) {
+            auditLog.command(session.getUsername(), line);
+        }
     }
 
     public static boolean isBuiltIn(String cmd) {
@@ -47,12 +80,17 @@ public class BuiltInFeatures {
             case "rmdir":
             case "rm":
             case "touch":
+            case "du":
+            case "sort":
+            case "uniq":
             case "kill":
             case "jobs":
             case "fg":
             case "bg":
             case "schedule":
             case "priority":
+            case "mlfq":
+            case "multicore":
             case "mutex":
             case "semaphore":
             case "producer-consumer":
@@ -66,29 +104,47 @@ public class BuiltInFeatures {
             case "create-user":
             case "delete-user":
             case "change-password":
+            case "unlock-user":
             case "list-users":
             case "chmod":
             case "chown":
             case "ls-l":
             case "set-permissions":
             case "list-permissions":
+            case "groups":
+            case "usermod":
+            case "setfacl":
+            case "getfacl":
+            case "audit":
+            case "cache-stats":
+            case "env":
+            case "export":
+            case "sessions":
+            case "token":
                 return true;
             default:
                 return false;
         }
     }
 
-    public static void execute(final CommandParser.ParsedCommand cmd, final Shell shell, final JobManager jobs) {
+    // Builtins that read stdin and write stdout, so they can run in-process as pipeline stages
+    public static boolean isStreamingBuiltIn(String cmd) {
+        return cmd.equals("sort") || cmd.equals("uniq");
+    }
+
+    public static void execute(final CommandParser.ParsedCommand cmd, final Session session) {
+        auditCommand(cmd.original, session);
+        JobManager jobs = session.getJobs();
         try {
             switch (cmd.name) {
                 case "cd":
-                    cd(cmd.args, shell);
+                    cd(cmd.args, session);
                     break;
                 case "pwd":
-                    pwd(shell);
+                    pwd(session);
                     break;
                 case "exit":
-                    System.exit(0);
+                    exit(cmd.args, session);
                     break;
                 case "echo":
                     echo(cmd.args);
@@ -97,40 +153,59 @@ public class BuiltInFeatures {
                     clear();
                     break;
                 case "ls":
-                    ls(shell);
+                    ls(session);
                     break;
                 case "cat":
-                    cat(cmd.args, shell);
+                    cat(cmd.args, session);
                     break;
                 case "mkdir":
-                    mkdir(cmd.args, shell);
+                    mkdir(cmd.args, session);
                     break;
                 case "rmdir":
-                    rmdir(cmd.args, shell);
+                    rmdir(cmd.args, session);
                     break;
                 case "rm":
-                    rm(cmd.args, shell);
+                    rm(cmd.args, session);
                     break;
                 case "touch":
-                    touch(cmd.args, shell);
+                    touch(cmd.args, session);
+                    break;
+                case "du":
+                    du(cmd.args, session);
+                    break;
+                case "sort":
+                case "uniq":
+                    if (!runStreaming(cmd, session, null, System.out)) {
+                        session.setLastStatus(1);
+                    }
                     break;
                 case "kill":
-                    kill(cmd.args, jobs);
+                    kill(cmd.args, session);
                     break;
                 case "jobs":
                     jobs.list();
                     break;
                 case "fg":
-                    jobs.bringToForeground(cmd.args);
+                    if (!jobs.bringToForeground(cmd.args)) {
+                        session.setLastStatus(1);
+                    }
                     break;
                 case "bg":
-                    jobs.resumeInBackground(cmd.args);
+                    if (!jobs.resumeInBackground(cmd.args)) {
+                        session.setLastStatus(1);
+                    }
                     break;
                 case "schedule":
-                    schedule(cmd.args);
+                    schedule(cmd.args, session);
                     break;
                 case "priority":
-                    priority(cmd.args);
+                    priority(cmd.args, session);
+                    break;
+                case "mlfq":
+                    mlfq(cmd.args, session);
+                    break;
+                case "multicore":
+                    multicore(cmd.args, session);
                     break;
                 case "mutex":
                     testMutex();
@@ -142,77 +217,113 @@ public class BuiltInFeatures {
                     testProducerConsumer();
                     break;
                 case "memory-status":
-                    memoryStatus();
+                    memoryStatus(session);
                     break;
                 case "allocate-memory":
-                    allocateMemory(cmd.args);
+                    allocateMemory(cmd.args, session);
                     break;
                 case "access-page":
-                    accessPage(cmd.args);
+                    accessPage(cmd.args, session);
                     break;
                 case "free-memory":
-                    freeMemory(cmd.args);
+                    freeMemory(cmd.args, session);
                     break;
                 case "set-replacement":
-                    setReplacementAlgorithm(cmd.args);
+                    setReplacementAlgorithm(cmd.args, session);
                     break;
                 case "logout":
-                    logout();
+                    logout(session);
                     break;
                 case "whoami":
-                    whoami();
+                    whoami(session);
                     break;
                 case "create-user":
-                    createUser(cmd.args);
+                    createUser(cmd.args, session);
                     break;
                 case "delete-user":
-                    deleteUser(cmd.args);
+                    deleteUser(cmd.args, session);
                     break;
                 case "change-password":
-                    changePassword(cmd.args);
+                    changePassword(cmd.args, session);
+                    break;
+                case "unlock-user":
+                    unlockUser(cmd.args, session);
                     break;
                 case "list-users":
-                    listUsers();
+                    listUsers(session);
                     break;
                 case "chmod":
-                    chmod(cmd.args, shell);
+                    chmod(cmd.args, session);
                     break;
                 case "chown":
-                    chown(cmd.args, shell);
+                    chown(cmd.args, session);
                     break;
                 case "ls-l":
-                    lsWithPermissions(shell);
+                    lsWithPermissions(session);
                     break;
                 case "set-permissions":
-                    setPermissions(cmd.args, shell);
+                    setPermissions(cmd.args, session);
                     break;
                 case "list-permissions":
-                    listPermissions();
+                    listPermissions(session);
+                    break;
+                case "groups":
+                    groups(cmd.args, session);
+                    break;
+                case "usermod":
+                    usermod(cmd.args, session);
+                    break;
+                case "setfacl":
+                    setfacl(cmd.args, session);
+                    break;
+                case "getfacl":
+                    getfacl(cmd.args, session);
+                    break;
+                case "audit":
+                    audit(cmd.args, session);
+                    break;
+                case "cache-stats":
+                    cacheStats(session);
+                    break;
+                case "env":
+                    env(session);
+                    break;
+                case "export":
+                    export(cmd.args, session);
+                    break;
+                case "sessions":
+                    sessions(session);
+                    break;
+                case "token":
+                    token(cmd.args, session);
                     break;
             }
         } catch (Exception e) {
             System.err.println("Token parse error: " + e.getMessage());
+            session.setLastStatus(1);
         }
     }
 
-    private static void cd(final String[] args, final Shell shell) {
-        File base = shell.getCurrentDirectory();
+    private static void cd(final String[] args, final Session session) {
+        File base = session.getWorkingDirectory();
         String targetArg = args.length > 0 ? args[0] : System.getProperty("user.home");
         File target = new File(base, targetArg);
         try {
             target = target.getCanonicalFile();  // resolves ".." and symlinks
             if (target.isDirectory()) {
-                shell.setCurrentDirectory(target);
+                session.setWorkingDirectory(target);
             } else {
                 System.err.println("cd: no such directory: " + targetArg);
+                session.setLastStatus(1);
             }
         } catch (IOException e) {
             System.err.println("cd: error resolving path: " + e.getMessage());
+            session.setLastStatus(1);
         }
     }
 
-    private static void pwd(final Shell shell) {
-        System.out.println(shell.getCurrentDirectory().getAbsolutePath());
+    private static void pwd(final Session session) {
+        System.out.println(session.getWorkingDirectory().getAbsolutePath());
     }
 
     private static void echo(final String[] args) {
@@ -223,45 +334,48 @@ public class BuiltInFeatures {
         System.out.print("\033[H\033[J");
     }
 
-    private static void ls(final Shell shell) throws IOException {
+    private static void ls(final Session session) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
+        List<Path> entries = session.getShell().getListingCache().list(session.getWorkingDirectory().toPath());
         if (permissionManager == null) {
-            Files.list(shell.getCurrentDirectory().toPath())
-                    .map(Path::getFileName)
-                    .forEach(System.out::println);
+            for (Path path : entries) {
+                System.out.println(path.getFileName());
+            }
             return;
         }
 
-        String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
-        Files.list(shell.getCurrentDirectory().toPath())
-                .forEach(path -> {
-                    String fileName = path.getFileName().toString();
-                    String filePath = path.toString();
-                    
-                    // Check read permission
-                    if (permissionManager.canRead(filePath, currentUser)) {
-                        System.out.println(fileName);
-                    } else {
-                        System.out.println(fileName + " (Permission denied)");
-                    }
-                });
+        String currentUser = session.getUsername();
+        for (Path path : entries) {
+            String fileName = path.getFileName().toString();
+            String filePath = path.toString();
+            
+            // Check read permission
+            if (permissionManager.canRead(filePath, currentUser)) {
+                System.out.println(fileName);
+            } else {
+                System.out.println(fileName + " (Permission denied)");
+            }
+        }
     }
 
-    private static void cat(final String[] args, final Shell shell) throws IOException {
+    private static void cat(final String[] args, final Session session) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             for (String name : args) {
-                Path p = shell.getCurrentDirectory().toPath().resolve(name);
+                Path p = session.getWorkingDirectory().toPath().resolve(name);
                 Files.lines(p).forEach(System.out::println);
             }
             return;
         }
 
-        String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
+        String currentUser = session.getUsername();
         for (String name : args) {
-            Path p = shell.getCurrentDirectory().toPath().resolve(name);
+            Path p = session.getWorkingDirectory().toPath().resolve(name);
             String filePath = p.toString();
             
             if (!permissionManager.canRead(filePath, currentUser)) {
                 System.err.println("cat: Permission denied: " + name);
+                session.setLastStatus(1);
                 continue;
             }
             
@@ -269,28 +383,37 @@ public class BuiltInFeatures {
         }
     }
 
-    private static void mkdir(final String[] args, final Shell shell) throws IOException {
+    // Called after creating or removing an entry, so the next ls in its directory lists it afresh
+    private static void listingChanged(Session session, Path entry) {
+        session.getShell().getListingCache().invalidate(entry.toAbsolutePath().normalize().getParent());
+    }
+
+    private static void mkdir(final String[] args, final Session session) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             for (String name : args) {
-                Path p = shell.getCurrentDirectory().toPath().resolve(name);
+                Path p = session.getWorkingDirectory().toPath().resolve(name);
                 Files.createDirectory(p);
+                listingChanged(session, p);
             }
             return;
         }
 
-        String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
+        String currentUser = session.getUsername();
         for (String name : args) {
-            Path p = shell.getCurrentDirectory().toPath().resolve(name);
+            Path p = session.getWorkingDirectory().toPath().resolve(name);
             String filePath = p.toString();
             
             // Check write permission on parent directory
             String parentPath = p.getParent().toString();
             if (!permissionManager.canWrite(parentPath, currentUser)) {
                 System.err.println("mkdir: Permission denied: " + name);
+                session.setLastStatus(1);
                 continue;
             }
             
             Files.createDirectory(p);
+            listingChanged(session, p);
             
             // Set default permissions for new directory
             FilePermission permission = permissionManager.createDefaultPermission(currentUser);
@@ -298,59 +421,164 @@ public class BuiltInFeatures {
         }
     }
 
-    private static void rmdir(final String[] args, final Shell shell) throws IOException {
+    private static void rmdir(final String[] args, final Session session) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
+        String currentUser = session.getUsername();
         for (String name : args) {
-            Path p = shell.getCurrentDirectory().toPath().resolve(name);
-            Files.delete(p);
+            Path p = session.getWorkingDirectory().toPath().resolve(name);
+            String filePath = p.toString();
+
+            if (permissionManager != null && !permissionManager.canWrite(parentOf(p).toString(), currentUser)) {
+                System.err.println("rmdir: Permission denied: " + name);
+                session.setLastStatus(1);
+                continue;
+            }
+
+            try {
+                Files.delete(p);
+            } catch (DirectoryNotEmptyException e) {
+                System.err.println("rmdir: Directory not empty: " + name + " (use rm -r)");
+                session.setLastStatus(1);
+                continue;
+            } catch (IOException e) {
+                System.err.println("rmdir: Cannot remove " + name + ": " + e.getMessage());
+                session.setLastStatus(1);
+                continue;
+            }
+            session.getShell().getListingCache().invalidateTree(p);
+            if (permissionManager != null) {
+                permissionManager.removeFilePermission(filePath);
+            }
         }
     }
 
-    private static void rm(final String[] args, final Shell shell) throws IOException {
-        if (permissionManager == null) {
-            for (String name : args) {
-                Path p = shell.getCurrentDirectory().toPath().resolve(name);
-                Files.delete(p);
+    private static void rm(final String[] args, final Session session) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
+        boolean recursive = false;
+        boolean force = false;
+        List<String> names = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    if (flag == 'r' || flag == 'R') {
+                        recursive = true;
+                    } else if (flag == 'f') {
+                        force = true;
+                    } else {
+                        System.err.println("rm: invalid option -- " + flag);
+                        System.err.println("Usage: rm [-r] [-f] <file>...");
+                        session.setLastStatus(1);
+                        return;
+                    }
+                }
+            } else {
+                names.add(arg);
             }
-            return;
         }
 
-        String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
-        for (String name : args) {
-            Path p = shell.getCurrentDirectory().toPath().resolve(name);
-            String filePath = p.toString();
-            
-            if (!permissionManager.canWrite(filePath, currentUser)) {
+        String currentUser = session.getUsername();
+        Predicate<Path> canModify = path ->
+                permissionManager == null || permissionManager.canWrite(path.toString(), currentUser);
+
+        List<String> removedPaths = new ArrayList<>();
+        for (String name : names) {
+            Path p = session.getWorkingDirectory().toPath().resolve(name);
+
+            if (!Files.exists(p, LinkOption.NOFOLLOW_LINKS)) {
+                if (!force) {
+                    System.err.println("rm: No such file or directory: " + name);
+                    session.setLastStatus(1);
+                }
+                continue;
+            }
+
+            if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS) && !recursive) {
+                System.err.println("rm: " + name + " is a directory (use rm -r)");
+                session.setLastStatus(1);
+                continue;
+            }
+            if (!canModify.test(parentOf(p))) {
                 System.err.println("rm: Permission denied: " + name);
+                session.setLastStatus(1);
                 continue;
             }
-            
-            Files.delete(p);
-            permissionManager.setFilePermission(filePath, null); // Remove permission entry
+
+            if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                RecursiveDeleter deleter = new RecursiveDeleter(canModify, force);
+                deleter.delete(p);
+                session.getShell().getListingCache().invalidateTree(p);
+                List<String> errors = deleter.getErrors();
+                if (errors.isEmpty() && !Files.exists(p, LinkOption.NOFOLLOW_LINKS)) {
+                    // The whole subtree is gone, so its entries can be dropped in one go
+                    if (permissionManager != null) {
+                        permissionManager.removeFilePermissionsUnder(p.toString());
+                    }
+                } else {
+                    for (Path deleted : deleter.getDeletedPaths()) {
+                        removedPaths.add(deleted.toString());
+                    }
+                }
+                for (String error : errors) {
+                    System.err.println("rm: " + error);
+                }
+                // -f keeps quiet about what it could not remove, but not about having left it
+                long left = deleter.getRemainingCount();
+                if (left > 0) {
+                    System.err.println("rm: " + name + ": " + left + (left == 1 ? " entry" : " entries") + " not removed");
+                    session.setLastStatus(1);
+                } else if (!errors.isEmpty()) {
+                    session.setLastStatus(1);
+                }
+                continue;
+            }
+
+            try {
+                Files.delete(p);
+            } catch (IOException e) {
+                System.err.println("rm: Cannot remove " + name + ": " + e.getMessage());
+                session.setLastStatus(1);
+                continue;
+            }
+            listingChanged(session, p);
+            removedPaths.add(p.toString());
+        }
+
+        if (permissionManager != null) {
+            permissionManager.removeFilePermissions(removedPaths);
         }
     }
 
-    private static void touch(final String[] args, final Shell shell) throws IOException {
+    // Removing an entry changes its directory, so that is where write permission is needed
+    private static Path parentOf(Path path) {
+        Path parent = path.normalize().getParent();
+        return parent != null ? parent : path;
+    }
+
+    private static void touch(final String[] args, final Session session) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             for (String name : args) {
-                Path p = shell.getCurrentDirectory().toPath().resolve(name);
+                Path p = session.getWorkingDirectory().toPath().resolve(name);
                 if (Files.exists(p)) {
                     Files.setLastModifiedTime(p, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
                 } else {
                     Files.write(p, new byte[0], StandardOpenOption.CREATE);
+                    listingChanged(session, p);
                 }
             }
             return;
         }
 
-        String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
+        String currentUser = session.getUsername();
         for (String name : args) {
-            Path p = shell.getCurrentDirectory().toPath().resolve(name);
+            Path p = session.getWorkingDirectory().toPath().resolve(name);
             String filePath = p.toString();
             
             if (Files.exists(p)) {
                 // Check write permission for existing file
                 if (!permissionManager.canWrite(filePath, currentUser)) {
                     System.err.println("touch: Permission denied: " + name);
+                    session.setLastStatus(1);
                     continue;
                 }
                 Files.setLastModifiedTime(p, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
@@ -359,9 +587,11 @@ public class BuiltInFeatures {
                 String parentPath = p.getParent().toString();
                 if (!permissionManager.canWrite(parentPath, currentUser)) {
                     System.err.println("touch: Permission denied: " + name);
+                    session.setLastStatus(1);
                     continue;
                 }
                 Files.write(p, new byte[0], StandardOpenOption.CREATE);
+                listingChanged(session, p);
                 
                 // Set default permissions for new file
                 FilePermission permission = permissionManager.createDefaultPermission(currentUser);
@@ -370,7 +600,184 @@ public class BuiltInFeatures {
         }
     }
 
-    private static void kill(final String[] args, JobManager jobs) {
+    private static void du(final String[] args, final Session session) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
+        boolean humanReadable = false;
+        int maxDepth = Integer.MAX_VALUE;
+        List<String> names = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-s")) {
+                    maxDepth = 0;
+                } else if (arg.equals("-h")) {
+                    humanReadable = true;
+                } else if (arg.equals("-sh") || arg.equals("-hs")) {
+                    maxDepth = 0;
+                    humanReadable = true;
+                } else if (arg.startsWith("--max-depth=")) {
+                    maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+                } else if (arg.equals("-d") && i + 1 < args.length) {
+                    maxDepth = Integer.parseInt(args[++i]);
+                } else if (arg.startsWith("-")) {
+                    System.err.println("Usage: du [-s] [-h] [--max-depth=N] [path...]");
+                    session.setLastStatus(1);
+                    return;
+                } else {
+                    names.add(arg);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("du: max depth must be a number");
+            session.setLastStatus(1);
+            return;
+        }
+        if (names.isEmpty()) {
+            names.add(".");
+        }
+
+        DirectorySizeCache sizeCache = session.getShell().getSizeCache();
+        String currentUser = session.getUsername();
+        final boolean human = humanReadable;
+        for (String name : names) {
+            Path p = session.getWorkingDirectory().toPath().resolve(name).normalize();
+            if (!Files.exists(p, LinkOption.NOFOLLOW_LINKS)) {
+                System.err.println("du: No such file or directory: " + name);
+                session.setLastStatus(1);
+                continue;
+            }
+            if (permissionManager != null && !permissionManager.canRead(p.toString(), currentUser)) {
+                System.err.println("du: Permission denied: " + name);
+                session.setLastStatus(1);
+                continue;
+            }
+
+            if (!Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                System.out.println(formatDiskUsage(sizeCache.sizeOf(p), human) + "\t" + name);
+                continue;
+            }
+            Path root = p.toAbsolutePath();
+            sizeCache.report(p, maxDepth, (dir, bytes) -> {
+                String relative = root.relativize(dir).toString();
+                String display = relative.isEmpty() ? name : name + File.separator + relative;
+                System.out.println(formatDiskUsage(bytes, human) + "\t" + display);
+            });
+        }
+    }
+
+    private static String formatDiskUsage(long bytes, boolean humanReadable) {
+        if (!humanReadable) {
+            // Same unit as du: 1K blocks, rounded up
+            return Long.toString((bytes + 1023) / 1024);
+        }
+        String units = "KMGTPE";
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        double value = bytes / 1024.0;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length() - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return value < 10
+                ? String.format("%.1f%c", value, units.charAt(unit))
+                : String.format("%d%c", Math.round(value), units.charAt(unit));
+    }
+
+    // Runs sort/uniq; input is null when the command is not fed by a pipe and must name its files.
+    // Returns false if it failed or skipped a file, for the exit status; it does not set the session's,
+    // since only the last stage of a pipeline decides that.
+    public static boolean runStreaming(final CommandParser.ParsedCommand cmd, final Session session,
+                                    final InputStream input, final OutputStream output) throws IOException {
+        PermissionManager permissionManager = session.getPermissionManager();
+        boolean numeric = false, reverse = false, unique = false;
+        boolean count = false, onlyDuplicates = false, onlyUnique = false;
+        long memoryLimit = ExternalSorter.defaultMemoryLimit();
+        List<String> names = new ArrayList<>();
+        String usage = cmd.name.equals("sort")
+                ? "Usage: sort [-n] [-r] [-u] [-S size] [file...]"
+                : "Usage: uniq [-c] [-d] [-u] [file...]";
+
+        for (int i = 0; i < cmd.args.length; i++) {
+            String arg = cmd.args[i];
+            if (cmd.name.equals("sort") && arg.equals("-S") && i + 1 < cmd.args.length) {
+                try {
+                    memoryLimit = ExternalSorter.parseSize(cmd.args[++i]);
+                } catch (NumberFormatException e) {
+                    System.err.println("sort: invalid buffer size: " + cmd.args[i]);
+                    return false;
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (char flag : arg.substring(1).toCharArray()) {
+                    if (cmd.name.equals("sort") && flag == 'n') {
+                        numeric = true;
+                    } else if (cmd.name.equals("sort") && flag == 'r') {
+                        reverse = true;
+                    } else if (cmd.name.equals("uniq") && flag == 'c') {
+                        count = true;
+                    } else if (cmd.name.equals("uniq") && flag == 'd') {
+                        onlyDuplicates = true;
+                    } else if (flag == 'u') {
+                        unique = true;
+                        onlyUnique = true;
+                    } else {
+                        System.err.println(cmd.name + ": invalid option -- " + flag);
+                        System.err.println(usage);
+                        return false;
+                    }
+                }
+            } else {
+                names.add(arg);
+            }
+        }
+
+        InputStream source = input;
+        boolean readAll = true;
+        if (!names.isEmpty()) {
+            String currentUser = session.getUsername();
+            List<InputStream> files = new ArrayList<>();
+            try {
+                for (String name : names) {
+                    Path p = session.getWorkingDirectory().toPath().resolve(name);
+                    if (permissionManager != null && !permissionManager.canRead(p.toString(), currentUser)) {
+                        System.err.println(cmd.name + ": Permission denied: " + name);
+                        readAll = false;
+                        continue;
+                    }
+                    files.add(Files.newInputStream(p));
+                }
+            } catch (IOException e) {
+                // The files opened before the one that failed are not handed to anything that would close them
+                for (InputStream file : files) {
+                    try {
+                        file.close();
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+                throw e;
+            }
+            source = new SequenceInputStream(Collections.enumeration(files));
+        } else if (source == null) {
+            System.err.println(usage);
+            return false;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(source, StandardCharsets.UTF_8), 64 * 1024)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 64 * 1024);
+            if (cmd.name.equals("sort")) {
+                new ExternalSorter(memoryLimit, ExternalSorter.comparator(numeric, reverse, unique), unique).sort(reader, writer);
+            } else {
+                new UniqFilter(count, onlyDuplicates, onlyUnique).filter(reader, writer);
+            }
+            writer.flush();
+        }
+        return readAll;
+    }
+
+    private static void kill(final String[] args, final Session session) {
+        JobManager jobs = session.getJobs();
         for (String token : args) {
             String raw = token.startsWith("%") ? token.substring(1) : token;
             long pid;
@@ -379,6 +786,7 @@ public class BuiltInFeatures {
                 Job job = jobs.getJobById(jobId);
                 if (job == null) {
                     System.err.println("kill: no such job: " + token);
+                    session.setLastStatus(1);
                     continue;
                 }
                 pid = JobManager.getPid(job.getProcess());
@@ -392,19 +800,22 @@ public class BuiltInFeatures {
                 jobs.removeByPid(pid);  // you'd need a remove-by-pid or remove-by-jobId helper
             } catch (IOException | InterruptedException e) {
                 System.err.println("kill: unable to terminate " + pid + ": " + e.getMessage());
+                session.setLastStatus(1);
             }
         }
     }
 
-    private static void schedule(String[] args) {
+    private static void schedule(String[] args, Session session) {
         if (args.length < 2) {
             System.err.println("Usage: schedule <time_quantum> <burst_time1> <burst_time2> ... [time_unit_ms]");
+            System.err.println("Without time_unit_ms the simulation runs on a virtual clock, without waiting");
+            session.setLastStatus(1);
             return;
         }
 
         try {
             int timeQuantum = Integer.parseInt(args[0]);
-            int timeUnitMillis = 1000;
+            int timeUnitMillis = 0;
             int burstArgsEnd = args.length;
             // If last argument is a number and not a burst time, treat as time unit
             if (args.length > 2) {
@@ -417,7 +828,8 @@ public class BuiltInFeatures {
                     }
                 } catch (NumberFormatException ignored) {}
             }
-            scheduler = new RoundRobinScheduler(timeQuantum, timeUnitMillis);
+            RoundRobinScheduler scheduler = new RoundRobinScheduler(timeQuantum, SimulationClock.paced(timeUnitMillis));
+            session.setScheduler(scheduler);
 
             // Add processes with burst times
             for (int i = 1; i < burstArgsEnd; i++) {
@@ -430,17 +842,35 @@ public class BuiltInFeatures {
             scheduler.printStatistics();
         } catch (NumberFormatException e) {
             System.err.println("Error: All arguments must be numbers");
+            session.setLastStatus(1);
         }
     }
 
-    private static void priority(String[] args) {
+    private static void priority(String[] args, Session session) {
+        // -a N: a process waiting N time units at one priority moves up one
+        int agingInterval = 0;
+        if (args.length >= 2 && args[0].equals("-a")) {
+            try {
+                agingInterval = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                agingInterval = -1;
+            }
+            if (agingInterval < 0) {
+                System.err.println("Error: Aging interval must be a non-negative number");
+                session.setLastStatus(1);
+                return;
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         if (args.length < 2 || (args.length % 2 != 0 && args.length % 2 != 1)) {
-            System.err.println("Usage: priority <burst_time1> <priority1> <burst_time2> <priority2> ... [time_unit_ms]");
+            System.err.println("Usage: priority [-a aging_interval] <burst_time1> <priority1> <burst_time2> <priority2> ... [time_unit_ms]");
+            System.err.println("Without time_unit_ms the simulation runs on a virtual clock, without waiting");
+            session.setLastStatus(1);
             return;
         }
 
         try {
-            int timeUnitMillis = 1000;
+            int timeUnitMillis = 0;
             int pairArgsEnd = args.length;
             // If last argument is a number and not a burst/priority, treat as time unit
             if (args.length > 2) {
@@ -452,7 +882,8 @@ public class BuiltInFeatures {
                     }
                 } catch (NumberFormatException ignored) {}
             }
-            priorityScheduler = new PriorityScheduler(timeUnitMillis);
+            PriorityScheduler priorityScheduler = new PriorityScheduler(SimulationClock.paced(timeUnitMillis), agingInterval);
+            session.setPriorityScheduler(priorityScheduler);
 
             // Add processes with burst times and priorities
             for (int i = 0; i < pairArgsEnd; i += 2) {
@@ -466,7 +897,173 @@ public class BuiltInFeatures {
             priorityScheduler.printStatistics();
         } catch (NumberFormatException e) {
             System.err.println("Error: All arguments must be numbers");
+            session.setLastStatus(1);
+        }
+    }
+
+    private static void mlfq(String[] args, Session session) {
+        int levels = 3;
+        int baseQuantum = 4;
+        int boostInterval = 100;
+        int timeUnitMillis = 0;
+        boolean compare = false;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                switch (args[i]) {
+                    case "-c":
+                        compare = true;
+                        break;
+                    case "-l":
+                        levels = Integer.parseInt(args[++i]);
+                        break;
+                    case "-q":
+                        baseQuantum = Integer.parseInt(args[++i]);
+                        break;
+                    case "-b":
+                        boostInterval = Integer.parseInt(args[++i]);
+                        break;
+                    case "-t":
+                        timeUnitMillis = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        i = args.length;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            i = args.length;
+        }
+        if (i >= args.length || levels < 1 || baseQuantum < 1 || boostInterval < 0) {
+            System.err.println("Usage: mlfq [-l levels] [-q base_quantum] [-b boost_interval] [-t time_unit_ms] [-c] <burst_time>[:io_interval:io_time] ...");
+            System.err.println("A burst with :io_interval:io_time blocks for io_time after every io_interval units of CPU");
+            System.err.println("Defaults: 3 levels, quantum 4 doubling per level, boost every 100 time units (0 turns it off)");
+            System.err.println("-c also runs round robin and FCFS on the same bursts and compares them; those two do not model I/O");
+            session.setLastStatus(1);
+            return;
+        }
+
+        List<ScheduledProcess> workload = new ArrayList<>();
+        try {
+            for (int n = 1; i < args.length; i++, n++) {
+                String[] spec = args[i].split(":");
+                if (spec.length != 1 && spec.length != 3) {
+                    throw new NumberFormatException(args[i]);
+                }
+                int burstTime = Integer.parseInt(spec[0]);
+                int ioInterval = spec.length == 3 ? Integer.parseInt(spec[1]) : 0;
+                int ioTime = spec.length == 3 ? Integer.parseInt(spec[2]) : 0;
+                workload.add(new ScheduledProcess("P" + n, burstTime, 0, ioInterval, ioTime));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Bursts must be numbers, optionally as burst:io_interval:io_time");
+            session.setLastStatus(1);
+            return;
+        }
+
+        MlfqScheduler mlfqScheduler = new MlfqScheduler(levels, baseQuantum, boostInterval, SimulationClock.paced(timeUnitMillis));
+        session.setMlfqScheduler(mlfqScheduler);
+        for (ScheduledProcess process : workload) {
+            mlfqScheduler.addProcess(process);
+        }
+        mlfqScheduler.schedule();
+        mlfqScheduler.printStatistics();
+
+        if (compare) {
+            RoundRobinScheduler roundRobin = new RoundRobinScheduler(baseQuantum, SimulationClock.virtual());
+            PriorityScheduler fcfs = new PriorityScheduler(SimulationClock.virtual());
+            roundRobin.setTrace(false);
+            fcfs.setTrace(false);
+            for (ScheduledProcess process : workload) {
+                roundRobin.addProcess(new ScheduledProcess(process.getProcessId(), process.getBurstTime()));
+                fcfs.addProcess(new ScheduledProcess(process.getProcessId(), process.getBurstTime()));
+            }
+            roundRobin.schedule();
+            fcfs.schedule();
+
+            System.out.println("\nComparison on the same bursts:");
+            SchedulingStatistics.printComparisonHeader();
+            SchedulingStatistics.printComparisonRow("MLFQ", mlfqScheduler.getCompletedProcesses());
+            SchedulingStatistics.printComparisonRow("Round robin", roundRobin.getCompletedProcesses());
+            SchedulingStatistics.printComparisonRow("FCFS", fcfs.getCompletedProcesses());
+        }
+    }
+
+    private static void multicore(String[] args, Session session) {
+        int cores = 2;
+        int timeQuantum = 4;
+        int balanceInterval = 10;
+        int timeUnitMillis = 0;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                switch (args[i]) {
+                    case "-n":
+                        cores = Integer.parseInt(args[++i]);
+                        break;
+                    case "-q":
+                        timeQuantum = Integer.parseInt(args[++i]);
+                        break;
+                    case "-b":
+                        balanceInterval = Integer.parseInt(args[++i]);
+                        break;
+                    case "-t":
+                        timeUnitMillis = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        i = args.length;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            i = args.length;
+        }
+        if (i >= args.length || cores < 1 || cores > MultiCoreScheduler.MAX_CORES || timeQuantum < 1 || balanceInterval < 1) {
+            System.err.println("Usage: multicore [-n cores] [-q time_quantum] [-b balance_interval] [-t time_unit_ms] <burst_time>[@cpu_list] ...");
+            System.err.println("cpu_list restricts a process to the listed cores, e.g. 5@0,2 or 8@1-3 (cores 0-" + (MultiCoreScheduler.MAX_CORES - 1) + ")");
+            System.err.println("Defaults: 2 cores, quantum 4, idle cores steal work every 10 time units");
+            session.setLastStatus(1);
+            return;
+        }
+
+        MultiCoreScheduler multiCoreScheduler;
+        try {
+            multiCoreScheduler = new MultiCoreScheduler(cores, timeQuantum, balanceInterval, SimulationClock.paced(timeUnitMillis));
+            session.setMultiCoreScheduler(multiCoreScheduler);
+            for (int n = 1; i < args.length; i++, n++) {
+                int at = args[i].indexOf('@');
+                ScheduledProcess process = new ScheduledProcess("P" + n, Integer.parseInt(at < 0 ? args[i] : args[i].substring(0, at)));
+                if (at >= 0) {
+                    process.setAffinity(parseCpuList(args[i].substring(at + 1)));
+                }
+                multiCoreScheduler.addProcess(process);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Bursts must be numbers, optionally followed by @cpu_list");
+            session.setLastStatus(1);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            session.setLastStatus(1);
+            return;
         }
+        multiCoreScheduler.schedule();
+        multiCoreScheduler.printStatistics();
+    }
+
+    // "0,2,4-6" as an affinity mask
+    private static long parseCpuList(String list) {
+        long mask = 0;
+        for (String part : list.split(",")) {
+            int dash = part.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1));
+            if (first < 0 || last >= MultiCoreScheduler.MAX_CORES || first > last) {
+                throw new IllegalArgumentException("invalid cpu list: " + list);
+            }
+            for (int cpu = first; cpu <= last; cpu++) {
+                mask |= 1L << cpu;
+            }
+        }
+        return mask;
     }
 
     private static void testMutex() {
@@ -474,7 +1071,7 @@ public class BuiltInFeatures {
         Mutex mutex = new Mutex();
         
         // Create two threads that will compete for the mutex
-        Thread t1 = new Thread(() -> {
+        Thread t1 = new Thread(ConsoleRouter.bound(() -> {
             System.out.println("Thread 1 trying to acquire mutex...");
             mutex.lock();
             System.out.println("Thread 1 acquired mutex");
@@ -485,9 +1082,9 @@ public class BuiltInFeatures {
             }
             mutex.unlock();
             System.out.println("Thread 1 released mutex");
-        });
+        }));
 
-        Thread t2 = new Thread(() -> {
+        Thread t2 = new Thread(ConsoleRouter.bound(() -> {
             try {
                 Thread.sleep(500); // Wait a bit before trying to acquire
             } catch (InterruptedException e) {
@@ -498,7 +1095,7 @@ public class BuiltInFeatures {
             System.out.println("Thread 2 acquired mutex");
             mutex.unlock();
             System.out.println("Thread 2 released mutex");
-        });
+        }));
 
         t1.start();
         t2.start();
@@ -518,7 +1115,7 @@ public class BuiltInFeatures {
         // Create three threads that will compete for semaphore permits
         for (int i = 1; i <= 3; i++) {
             final int threadId = i;
-            new Thread(() -> {
+            new Thread(ConsoleRouter.bound(() -> {
                 System.out.println("Thread " + threadId + " trying to acquire permit...");
                 sem.acquire();
                 System.out.println("Thread " + threadId + " acquired permit");
@@ -529,7 +1126,7 @@ public class BuiltInFeatures {
                 }
                 sem.release();
                 System.out.println("Thread " + threadId + " released permit");
-            }).start();
+            })).start();
         }
     }
 
@@ -538,7 +1135,7 @@ public class BuiltInFeatures {
         ProducerConsumer pc = new ProducerConsumer(3);
         
         // Create producer thread
-        Thread producer = new Thread(() -> {
+        Thread producer = new Thread(ConsoleRouter.bound(() -> {
             for (int i = 1; i <= 5; i++) {
                 pc.produce(i);
                 try {
@@ -548,10 +1145,10 @@ public class BuiltInFeatures {
                     break;
                 }
             }
-        });
+        }));
 
         // Create consumer thread
-        Thread consumer = new Thread(() -> {
+        Thread consumer = new Thread(ConsoleRouter.bound(() -> {
             for (int i = 1; i <= 5; i++) {
                 pc.consume();
                 try {
@@ -561,7 +1158,7 @@ public class BuiltInFeatures {
                     break;
                 }
             }
-        });
+        }));
 
         producer.start();
         consumer.start();
@@ -574,7 +1171,8 @@ public class BuiltInFeatures {
         }
     }
 
-    private static void memoryStatus() {
+    private static void memoryStatus(Session session) {
+        MemoryManager memoryManager = session.getMemoryManager();
         System.out.println("\n=== Memory Status ===");
         System.out.println("Total Page Frames: " + memoryManager.getTotalFrames());
         System.out.println("Available Frames: " + memoryManager.getAvailableFrames());
@@ -584,9 +1182,11 @@ public class BuiltInFeatures {
         memoryManager.printMemoryStatus();
     }
 
-    private static void allocateMemory(String[] args) {
+    private static void allocateMemory(String[] args, Session session) {
+        MemoryManager memoryManager = session.getMemoryManager();
         if (args.length < 2) {
             System.err.println("Usage: allocate-memory <process_id> <num_pages>");
+            session.setLastStatus(1);
             return;
         }
 
@@ -604,12 +1204,15 @@ public class BuiltInFeatures {
             }
         } catch (NumberFormatException e) {
             System.err.println("Error: Process ID and number of pages must be integers");
+            session.setLastStatus(1);
         }
     }
 
-    private static void accessPage(String[] args) {
+    private static void accessPage(String[] args, Session session) {
+        MemoryManager memoryManager = session.getMemoryManager();
         if (args.length < 2) {
             System.err.println("Usage: access-page <process_id> <page_number>");
+            session.setLastStatus(1);
             return;
         }
 
@@ -627,12 +1230,15 @@ public class BuiltInFeatures {
             }
         } catch (NumberFormatException e) {
             System.err.println("Error: Process ID and page number must be integers");
+            session.setLastStatus(1);
         }
     }
 
-    private static void freeMemory(String[] args) {
+    private static void freeMemory(String[] args, Session session) {
+        MemoryManager memoryManager = session.getMemoryManager();
         if (args.length < 1) {
             System.err.println("Usage: free-memory <process_id>");
+            session.setLastStatus(1);
             return;
         }
 
@@ -649,13 +1255,16 @@ public class BuiltInFeatures {
             }
         } catch (NumberFormatException e) {
             System.err.println("Error: Process ID must be an integer");
+            session.setLastStatus(1);
         }
     }
 
-    private static void setReplacementAlgorithm(String[] args) {
+    private static void setReplacementAlgorithm(String[] args, Session session) {
+        MemoryManager memoryManager = session.getMemoryManager();
         if (args.length < 1) {
             System.err.println("Usage: set-replacement <algorithm>");
             System.err.println("Available algorithms: FIFO, LRU");
+            session.setLastStatus(1);
             return;
         }
 
@@ -665,29 +1274,56 @@ public class BuiltInFeatures {
             System.out.println("Replacement algorithm set to " + algorithm);
         } catch (IllegalArgumentException e) {
             System.err.println("Error: Invalid algorithm. Use FIFO or LRU");
+            session.setLastStatus(1);
         }
     }
 
-    private static void logout() {
-        if (authManager != null) {
-            authManager.logout();
-        } else {
-            System.out.println("Authentication system not initialized.");
+    // Ends only this session; the console shell then exits the process, the daemon drops the connection
+    private static void exit(String[] args, Session session) {
+        // Without an argument, the status of the command before it
+        int status = session.getLastStatus();
+        if (args.length > 0) {
+            try {
+                status = Integer.parseInt(args[0]) & 0xFF;
+            } catch (NumberFormatException e) {
+                System.err.println("exit: " + args[0] + ": numeric argument required");
+                status = 2;
+            }
+        }
+        session.requestExit(status);
+        session.getShell().getSessionManager().close(session);
+    }
+
+    private static void logout(Session session) {
+        // Closing the session ends this user's jobs list and environment; the shell asks for a new login
+        if (session.getShell().getSessionManager().close(session)) {
+            SessionTokens tokens = session.getShell().getSessionTokens();
+            if (tokens != null) {
+                // Tokens stop working at once, here and in every other shell process
+                for (String token : session.getTokens()) {
+                    tokens.revoke(token);
+                }
+            }
+            System.out.println("Goodbye, " + session.getUsername() + "!");
         }
     }
 
-    private static void whoami() {
+    private static void whoami(Session session) {
+        AuthenticationManager authManager = session.getAuthenticationManager();
         if (authManager != null) {
-            authManager.showCurrentUser();
+            authManager.showUser(session.getUser());
         } else {
             System.out.println("Authentication system not initialized.");
+            session.setLastStatus(1);
         }
     }
 
-    private static void createUser(String[] args) {
+    private static void createUser(String[] args, Session session) {
+        AuthenticationManager authManager = session.getAuthenticationManager();
         if (args.length < 3) {
             System.err.println("Usage: create-user <username> <password> <role>");
             System.err.println("Roles: admin, standard");
+            session.setLastStatus(1);
             return;
         }
 
@@ -701,125 +1337,232 @@ public class BuiltInFeatures {
                 role = User.UserRole.valueOf(roleStr.toUpperCase());
             } catch (IllegalArgumentException e) {
                 System.err.println("Error: Invalid role. Use 'admin' or 'standard'");
+                session.setLastStatus(1);
                 return;
             }
             
-            authManager.createUser(username, password, role);
+            if (!authManager.createUser(session.getUser(), username, password, role)) {
+                session.setLastStatus(1);
+            }
         } else {
             System.out.println("Authentication system not initialized.");
+            session.setLastStatus(1);
         }
     }
 
-    private static void deleteUser(String[] args) {
+    private static void deleteUser(String[] args, Session session) {
+        AuthenticationManager authManager = session.getAuthenticationManager();
         if (args.length < 1) {
             System.err.println("Usage: delete-user <username>");
+            session.setLastStatus(1);
             return;
         }
 
         if (authManager != null) {
             String username = args[0];
-            authManager.deleteUser(username);
+            if (authManager.deleteUser(session.getUser(), username)) {
+                session.getShell().getSessionManager().closeAll(username);
+            } else {
+                session.setLastStatus(1);
+            }
         } else {
             System.out.println("Authentication system not initialized.");
+            session.setLastStatus(1);
         }
     }
 
-    private static void changePassword(String[] args) {
+    private static void changePassword(String[] args, Session session) {
+        AuthenticationManager authManager = session.getAuthenticationManager();
         if (args.length < 2) {
             System.err.println("Usage: change-password <username> <new_password>");
+            session.setLastStatus(1);
             return;
         }
 
         if (authManager != null) {
             String username = args[0];
             String newPassword = args[1];
-            authManager.changePassword(username, newPassword);
+            if (!authManager.changePassword(session.getUser(), username, newPassword)) {
+                session.setLastStatus(1);
+            }
         } else {
             System.out.println("Authentication system not initialized.");
+            session.setLastStatus(1);
         }
     }
 
-    private static void listUsers() {
+    private static void unlockUser(String[] args, Session session) {
+        AuthenticationManager authManager = session.getAuthenticationManager();
+        if (args.length < 1) {
+            System.err.println("Usage: unlock-user <username>");
+            session.setLastStatus(1);
+            return;
+        }
+
+        if (authManager != null) {
+            if (!authManager.unlockUser(session.getUser(), args[0])) {
+                session.setLastStatus(1);
+            }
+        } else {
+            System.out.println("Authentication system not initialized.");
+            session.setLastStatus(1);
+        }
+    }
+
+    private static void listUsers(Session session) {
+        AuthenticationManager authManager = session.getAuthenticationManager();
         if (authManager != null) {
-            authManager.listUsers();
+            if (!authManager.listUsers(session.getUser())) {
+                session.setLastStatus(1);
+            }
         } else {
             System.out.println("Authentication system not initialized.");
+            session.setLastStatus(1);
         }
     }
 
-    private static void chmod(String[] args, Shell shell) {
+    private static void chmod(String[] args, Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
             return;
         }
 
-        if (args.length < 2) {
-            System.err.println("Usage: chmod <mode> <file>");
-            System.err.println("Example: chmod rwxr-xr-x myfile.txt");
+        boolean recursive = args.length > 0 && "-R".equals(args[0]);
+        int first = recursive ? 1 : 0;
+        if (args.length - first < 2) {
+            System.err.println("Usage: chmod [-R] <mode> <file>...");
+            System.err.println("Example: chmod rwxr-xr-x myfile.txt, chmod 640 myfile.txt, chmod -R go-w mydir");
+            session.setLastStatus(1);
             return;
         }
 
-        String mode = args[0];
-        String fileName = args[1];
-        String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
-        
-        permissionManager.chmod(shell.getCurrentDirectory().toPath().resolve(fileName).toString(), mode, currentUser);
+        String mode = args[first];
+        String currentUser = session.getUsername();
+        if (!recursive && args.length - first == 2) {
+            if (!permissionManager.chmod(session.getWorkingDirectory().toPath().resolve(args[first + 1]).toString(), mode, currentUser)) {
+                session.setLastStatus(1);
+            }
+            return;
+        }
+
+        List<String> paths = collectPaths("chmod", args, first + 1, recursive, session);
+        int changed = permissionManager.chmodAll(paths, mode, currentUser);
+        if (changed < paths.size()) {
+            session.setLastStatus(1);
+        }
+        System.out.println("Permissions changed for " + changed + " path(s)");
     }
 
-    private static void chown(String[] args, Shell shell) {
+    private static void chown(String[] args, Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
             return;
         }
 
-        if (args.length < 2) {
-            System.err.println("Usage: chown <new_owner> <file>");
+        boolean recursive = args.length > 0 && "-R".equals(args[0]);
+        int first = recursive ? 1 : 0;
+        if (args.length - first < 2) {
+            System.err.println("Usage: chown [-R] <new_owner> <file>...");
             System.err.println("Example: chown john myfile.txt");
+            session.setLastStatus(1);
             return;
         }
 
-        String newOwner = args[0];
-        String fileName = args[1];
-        String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
-        
-        permissionManager.chown(shell.getCurrentDirectory().toPath().resolve(fileName).toString(), newOwner, currentUser);
+        String newOwner = args[first];
+        String currentUser = session.getUsername();
+        if (!recursive && args.length - first == 2) {
+            if (!permissionManager.chown(session.getWorkingDirectory().toPath().resolve(args[first + 1]).toString(), newOwner, currentUser)) {
+                session.setLastStatus(1);
+            }
+            return;
+        }
+
+        List<String> paths = collectPaths("chown", args, first + 1, recursive, session);
+        int changed = permissionManager.chownAll(paths, newOwner, currentUser);
+        if (changed < paths.size()) {
+            session.setLastStatus(1);
+        }
+        if (changed > 0) {
+            System.out.println("Ownership changed for " + changed + " path(s) to " + newOwner);
+        }
+    }
+
+    // The named paths, plus everything below them when recursive; subtrees are read in parallel
+    private static List<String> collectPaths(String command, String[] args, int from, boolean recursive, Session session) {
+        List<String> paths = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            Path p = session.getWorkingDirectory().toPath().resolve(args[i]).normalize();
+            if (!recursive) {
+                paths.add(p.toString());
+                continue;
+            }
+            Queue<String> found = new ConcurrentLinkedQueue<>();
+            ParallelTreeWalker<Void> walker = new ParallelTreeWalker<Void>() {
+                @Override
+                protected Void preVisitDirectory(Path directory) {
+                    found.add(directory.toString());
+                    return null;
+                }
+
+                @Override
+                protected long visitFile(Path file, BasicFileAttributes attributes) {
+                    found.add(file.toString());
+                    return 0;
+                }
+
+                @Override
+                protected Void postVisitDirectory(Path directory, long total, List<Void> subdirectories,
+                                                  boolean complete) {
+                    return null;
+                }
+            };
+            walker.walk(p);
+            paths.addAll(found);
+            for (String error : walker.getErrors()) {
+                System.err.println(command + ": " + error);
+                session.setLastStatus(1);
+            }
+        }
+        return paths;
     }
 
-    private static void lsWithPermissions(Shell shell) {
+    private static void lsWithPermissions(Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
             return;
         }
 
         try {
-            String currentUser = authManager != null ? authManager.getCurrentUser().getUsername() : "admin";
-            Files.list(shell.getCurrentDirectory().toPath())
-                    .forEach(path -> {
-                        String fileName = path.getFileName().toString();
-                        String filePath = path.toString();
-                        
-                        FilePermission permission = permissionManager.getFilePermission(filePath);
-                        if (permission != null) {
-                            System.out.println(permission.toDetailedString() + " " + fileName);
-                        } else {
-                            // Default permission display
-                            System.out.println("rw-r--r-- " + currentUser + ":users " + fileName);
-                        }
-                    });
+            List<Path> entries = session.getShell().getListingCache().list(session.getWorkingDirectory().toPath());
+            for (Path path : entries) {
+                String fileName = path.getFileName().toString();
+                FilePermission permission = permissionManager.getEffectivePermission(path.toString());
+                System.out.println(permission.toDetailedString() + " " + fileName);
+            }
         } catch (IOException e) {
             System.err.println("Error listing files: " + e.getMessage());
+            session.setLastStatus(1);
         }
     }
 
-    private static void setPermissions(String[] args, Shell shell) {
+    private static void setPermissions(String[] args, Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
             return;
         }
 
         if (args.length < 4) {
             System.err.println("Usage: set-permissions <file> <owner> <group> <mode>");
             System.err.println("Example: set-permissions myfile.txt john users rw-r--r--");
+            session.setLastStatus(1);
             return;
         }
 
@@ -829,40 +1572,445 @@ public class BuiltInFeatures {
         String mode = args[3];
         
         // Resolve file path relative to current directory
-        String filePath = shell.getCurrentDirectory().toPath().resolve(fileName).toString();
+        String filePath = session.getWorkingDirectory().toPath().resolve(fileName).toString();
         
-        if (mode.length() != 9) {
+        int bits = FilePermission.parseMode(mode);
+        if (bits < 0) {
             System.err.println("Error: Invalid permission mode. Use format: rwxrwxrwx");
+            session.setLastStatus(1);
             return;
         }
 
-        // Parse permissions
-        java.util.Set<FilePermission.Permission> ownerPerms = parsePermissions(mode.substring(0, 3));
-        java.util.Set<FilePermission.Permission> groupPerms = parsePermissions(mode.substring(3, 6));
-        java.util.Set<FilePermission.Permission> otherPerms = parsePermissions(mode.substring(6, 9));
-
-        permissionManager.setFilePermissions(filePath, owner, group, ownerPerms, groupPerms, otherPerms);
+        permissionManager.setFilePermissions(filePath, owner, group, bits);
         System.out.println("Permissions set for " + fileName + ": " + mode);
     }
 
-    private static java.util.Set<FilePermission.Permission> parsePermissions(String permString) {
-        java.util.Set<FilePermission.Permission> permissions = java.util.EnumSet.noneOf(FilePermission.Permission.class);
-        
-        if (permString.charAt(0) == 'r') permissions.add(FilePermission.Permission.READ);
-        if (permString.charAt(1) == 'w') permissions.add(FilePermission.Permission.WRITE);
-        if (permString.charAt(2) == 'x') permissions.add(FilePermission.Permission.EXECUTE);
-        
-        return permissions;
+    private static void listPermissions(Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
+        if (permissionManager == null) {
+            System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
+            return;
+        }
+
+        permissionManager.listAllPermissions();
     }
 
-    private static void listPermissions() {
+    private static void groups(String[] args, Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
         if (permissionManager == null) {
             System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
             return;
         }
 
-        permissionManager.listAllPermissions();
+        if (args.length == 0) {
+            String currentUser = session.getUsername();
+            System.out.println(String.join(" ", permissionManager.getGroupNames(currentUser)));
+            return;
+        }
+        for (String username : args) {
+            System.out.println(username + " : " + String.join(" ", permissionManager.getGroupNames(username)));
+        }
     }
-}
 
+    private static void usermod(String[] args, Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
+        if (permissionManager == null) {
+            System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
+            return;
+        }
+
+        if (args.length != 3 || (!"-aG".equals(args[0]) && !"-G".equals(args[0]) && !"-g".equals(args[0]))) {
+            System.err.println("Usage: usermod -aG <group>[,<group>...] <user>   (add supplementary groups)");
+            System.err.println("       usermod -G <group>[,<group>...] <user>    (replace supplementary groups)");
+            System.err.println("       usermod -g <group> <user>                 (set primary group)");
+            session.setLastStatus(1);
+            return;
+        }
+
+        String currentUser = session.getUsername();
+        if (!"admin".equals(currentUser)) {
+            System.err.println("usermod: Permission denied. Only admin can change group membership.");
+            session.setLastStatus(1);
+            return;
+        }
+
+        String username = args[2];
+        List<String> groups = new ArrayList<>();
+        for (String group : args[1].split(",")) {
+            if (!group.isEmpty()) {
+                groups.add(group);
+            }
+        }
+        if ("-g".equals(args[0])) {
+            if (groups.size() != 1) {
+                System.err.println("usermod: -g takes exactly one group");
+                session.setLastStatus(1);
+                return;
+            }
+            permissionManager.setUserGroup(username, groups.get(0));
+        } else if ("-aG".equals(args[0])) {
+            permissionManager.addSupplementaryGroups(username, groups);
+        } else {
+            permissionManager.setSupplementaryGroups(username, groups);
+        }
+        System.out.println(username + " : " + String.join(" ", permissionManager.getGroupNames(username)));
+    }
+
+    private static void setfacl(String[] args, Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
+        if (permissionManager == null) {
+            System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
+            return;
+        }
+
+        boolean removeAll = args.length >= 2 && "-b".equals(args[0]);
+        boolean modify = args.length >= 3 && "-m".equals(args[0]);
+        boolean remove = args.length >= 3 && "-x".equals(args[0]);
+        if (!removeAll && !modify && !remove) {
+            System.err.println("Usage: setfacl -m <entries> <file>...   (add or change entries)");
+            System.err.println("       setfacl -x <entries> <file>...   (remove entries)");
+            System.err.println("       setfacl -b <file>...             (remove all entries)");
+            System.err.println("Example: setfacl -m u:user2:rw-,g:dev:r-x,m::r-x myfile.txt");
+            session.setLastStatus(1);
+            return;
+        }
+
+        String currentUser = session.getUsername();
+        for (int i = removeAll ? 1 : 2; i < args.length; i++) {
+            String filePath = session.getWorkingDirectory().toPath().resolve(args[i]).toString();
+            Acl current = permissionManager.getEffectivePermission(filePath).getAcl();
+            Acl updated = null;
+            if (modify) {
+                updated = Acl.modify(current, args[1]);
+            } else if (remove) {
+                updated = Acl.remove(current, args[1]);
+            }
+            if (!removeAll && updated == null) {
+                System.err.println("setfacl: Invalid ACL entries: " + args[1]);
+                session.setLastStatus(1);
+                return;
+            }
+            if (!permissionManager.setAcl(filePath, updated, currentUser)) {
+                session.setLastStatus(1);
+            }
+        }
+    }
+
+    private static void getfacl(String[] args, Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
+        if (permissionManager == null) {
+            System.err.println("Permission system not initialized.");
+            session.setLastStatus(1);
+            return;
+        }
+
+        if (args.length == 0) {
+            System.err.println("Usage: getfacl <file>...");
+            session.setLastStatus(1);
+            return;
+        }
 
+        for (String name : args) {
+            FilePermission permission = permissionManager.getEffectivePermission(
+                    session.getWorkingDirectory().toPath().resolve(name).toString());
+            String mode = FilePermission.modeString(permission.getMode());
+            System.out.println("# file: " + name);
+            System.out.println("# owner: " + permission.getOwner());
+            System.out.println("# group: " + permission.getGroup());
+            System.out.println("user::" + mode.substring(0, 3));
+            Acl acl = permission.getAcl();
+            List<String> entries = acl != null ? acl.entries() : Collections.<String>emptyList();
+            int mask = acl != null ? acl.mask((permission.getMode() >> 3) & 7) : 7;
+            for (String entry : entries) {
+                if (entry.startsWith("user:")) {
+                    System.out.println(withEffective(entry, mask));
+                }
+            }
+            System.out.println(withEffective("group::" + mode.substring(3, 6), mask));
+            for (String entry : entries) {
+                if (entry.startsWith("group:")) {
+                    System.out.println(withEffective(entry, mask));
+                }
+            }
+            if (acl != null) {
+                System.out.println("mask::" + FilePermission.modeString(mask).substring(6));
+            }
+            System.out.println("other::" + mode.substring(6));
+            System.out.println();
+        }
+    }
+
+    // Like getfacl, notes what an entry is left with when the mask takes some of it away
+    private static String withEffective(String entry, int mask) {
+        int bits = FilePermission.parseMode("------" + entry.substring(entry.length() - 3));
+        if ((bits & ~mask) == 0) {
+            return entry;
+        }
+        return entry + "\t#effective:" + FilePermission.modeString(bits & mask).substring(6);
+    }
+
+    private static void audit(String[] args, Session session) throws IOException {
+        AuditLog auditLog = session.getAuditLog();
+        if (auditLog == null) {
+            System.err.println("Audit log not enabled.");
+            session.setLastStatus(1);
+            return;
+        }
+
+        String user = null;
+        String path = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        int limit = 50;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                printAuditUsage();
+                session.setLastStatus(1);
+                return;
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "-u":
+                    user = value;
+                    break;
+                case "-p":
+                    path = session.getWorkingDirectory().toPath().resolve(value).normalize().toString();
+                    break;
+                case "-s":
+                    from = parseAuditTime(value);
+                    break;
+                case "-e":
+                    to = parseAuditTime(value);
+                    break;
+                case "-n":
+                    try {
+                        limit = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        limit = -1;
+                    }
+                    break;
+                default:
+                    printAuditUsage();
+                    session.setLastStatus(1);
+                    return;
+            }
+            if (from == -1 || to == -1 || limit < 1) {
+                System.err.println("audit: invalid value: " + value);
+                session.setLastStatus(1);
+                return;
+            }
+        }
+
+        String currentUser = session.getUsername();
+        if (!"admin".equals(currentUser)) {
+            if (user != null && !user.equals(currentUser)) {
+                System.err.println("audit: Permission denied. Only admin can view other users' records.");
+                session.setLastStatus(1);
+                return;
+            }
+            user = currentUser;
+        }
+
+        // Show the most recent matches; the log is scanned oldest first
+        auditLog.flush(1000);
+        final int max = limit;
+        ArrayDeque<String> recent = new ArrayDeque<>();
+        int matched = AuditReader.query(auditLog.getDirectory(), user, path, from, to, line -> {
+            if (recent.size() == max) {
+                recent.removeFirst();
+            }
+            recent.addLast(line);
+        });
+        for (String line : recent) {
+            System.out.println(line);
+        }
+        System.out.println("(" + recent.size() + " of " + matched + " matching records"
+                + (auditLog.getDroppedCount() > 0 ? ", " + auditLog.getDroppedCount() + " dropped under load" : "") + ")");
+    }
+
+    private static void printAuditUsage() {
+        System.err.println("Usage: audit [-u user] [-p path] [-s since] [-e until] [-n max]");
+        System.err.println("Times are relative (30s, 10m, 2h, 1d ago) or absolute (2024-05-01T14:30)");
+    }
+
+    // Milliseconds since the epoch for "10m"-style ages or ISO local date-times; -1 if neither
+    private static long parseAuditTime(String value) {
+        if (value.matches("\\d+[smhd]")) {
+            long amount = Long.parseLong(value.substring(0, value.length() - 1));
+            long unit = "smhd".indexOf(value.charAt(value.length() - 1));
+            long[] millis = {1000L, 60_000L, 3_600_000L, 86_400_000L};
+            return System.currentTimeMillis() - amount * millis[(int) unit];
+        }
+        try {
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static void cacheStats(Session session) {
+        PermissionManager permissionManager = session.getPermissionManager();
+        session.getShell().getListingCache().printStatistics();
+        DirectorySizeCache sizeCache = session.getShell().getStartedSizeCache();
+        if (sizeCache != null) {
+            System.out.println("\n=== Disk Usage Cache ===");
+            System.out.println("Cached directories: " + sizeCache.getCachedDirectoryCount());
+        }
+        if (permissionManager != null) {
+            System.out.println();
+            permissionManager.getDecisionCache().printStatistics();
+            if (permissionManager.getPosixSource() != null) {
+                System.out.println();
+                permissionManager.getPosixSource().printStatistics();
+            }
+            System.out.println();
+            session.getShell().getExecutableResolver().printStatistics();
+        }
+        if (session.getShell().getSessionTokens() != null) {
+            System.out.println();
+            session.getShell().getSessionTokens().printStatistics();
+        }
+        if (session.getAuthenticationManager() != null) {
+            System.out.println();
+            session.getAuthenticationManager().printStatistics();
+        }
+    }
+
+    private static void env(Session session) {
+        for (Map.Entry<String, String> variable : session.getEnvironment().entrySet()) {
+            System.out.println(variable.getKey() + "=" + variable.getValue());
+        }
+    }
+
+    // Sets variables for this session only; external commands it runs inherit them
+    private static void export(String[] args, Session session) {
+        if (args.length == 0) {
+            for (Map.Entry<String, String> variable : session.getEnvironmentOverrides().entrySet()) {
+                System.out.println("export " + variable.getKey() + "=" + variable.getValue());
+            }
+            return;
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.err.println("export: usage: export NAME=value ...");
+                session.setLastStatus(1);
+                continue;
+            }
+            session.setEnv(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+    }
+
+    private static void sessions(Session session) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+        System.out.printf("%-12s %-12s %-9s %-9s %s%n", "ID", "User", "Since", "Active", "Directory");
+        for (Session open : session.getShell().getSessionManager().list()) {
+            // Other users' sessions are only shown to admin
+            if (!session.isAdmin() && !open.getUsername().equals(session.getUsername())) {
+                continue;
+            }
+            System.out.printf("%-12s %-12s %-9s %-9s %s%s%n", Long.toHexString(open.getId()), open.getUsername(),
+                    format.format(new Date(open.getCreatedAt())), format.format(new Date(open.getLastActive())),
+                    open.getWorkingDirectory(), open == session ? " *" : "");
+        }
+    }
+
+    // Issues a token that logs this user in through MYSH_TOKEN or MYSH_TOKEN_FILE, or revokes one
+    private static void token(String[] args, Session session) {
+        SessionTokens tokens = session.getShell().getSessionTokens();
+        if (tokens == null) {
+            System.err.println("token: session tokens unavailable");
+            session.setLastStatus(1);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("revoke")) {
+            if (args.length < 2) {
+                System.err.println("Usage: token revoke <token>");
+                session.setLastStatus(1);
+                return;
+            }
+            String owner = SessionTokens.usernameOf(args[1]);
+            if (owner == null) {
+                System.err.println("token: not a session token");
+                session.setLastStatus(1);
+            } else if (!session.isAdmin() && !owner.equals(session.getUsername())) {
+                System.err.println("token: you can only revoke your own tokens");
+                session.setLastStatus(1);
+            } else if (tokens.revoke(args[1])) {
+                System.out.println("Token revoked.");
+            } else {
+                System.err.println("token: not a session token");
+                session.setLastStatus(1);
+            }
+            return;
+        }
+
+        String file = null;
+        long ttlSeconds = Long.getLong("mysh.token.ttl", 3600);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-f") && i + 1 < args.length) {
+                file = args[++i];
+                continue;
+            }
+            try {
+                ttlSeconds = Long.parseLong(args[i]);
+            } catch (NumberFormatException e) {
+                ttlSeconds = 0;
+            }
+            if (ttlSeconds <= 0) {
+                System.err.println("Usage: token [-f file] [ttl-seconds] | token revoke <token>");
+                session.setLastStatus(1);
+                return;
+            }
+        }
+
+        String token = tokens.issue(session.getUser(), ttlSeconds * 1000);
+        session.addToken(token);
+        if (file == null) {
+            System.out.println(token);
+            return;
+        }
+        Path path = session.getWorkingDirectory().toPath().resolve(file);
+        PermissionManager permissionManager = session.getPermissionManager();
+        boolean exists = Files.exists(path);
+        // Writing the file is subject to the same checks as touch: the file itself, or its directory when new
+        String checked = exists ? path.toString() : parentOf(path).toString();
+        if (permissionManager != null && !permissionManager.canWrite(checked, session.getUsername())) {
+            System.err.println("token: Permission denied: " + file);
+            session.setLastStatus(1);
+            return;
+        }
+        try {
+            // The token is a credential: it is written to a file that is the owner's alone from the start,
+            // which then replaces the target in one step
+            Path temp;
+            try {
+                temp = Files.createTempFile(parentOf(path), ".token", ".tmp",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the directory's own protection has to do
+                temp = Files.createTempFile(parentOf(path), ".token", ".tmp");
+            }
+            try {
+                Files.write(temp, (token + "\n").getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            listingChanged(session, path);
+            if (!exists && permissionManager != null) {
+                FilePermission permission = permissionManager.createDefaultPermission(session.getUsername());
+                permissionManager.setFilePermission(path.toString(),
+                        new FilePermission(permission.getOwner(), permission.getGroup(), 0600));
+            }
+            System.out.println("Token written to " + path + " (expires in " + ttlSeconds + "s)");
+        } catch (IOException e) {
+            System.err.println("token: " + file + ": " + e.getMessage());
+            session.setLastStatus(1);
+        }
+    }
+}
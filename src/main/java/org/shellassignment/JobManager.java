@@ -73,30 +73,34 @@ public class JobManager {
         });
     }
 
-    public void bringToForeground(String[] args) throws InterruptedException {
+    // Returns false if there is no such job
+    public boolean bringToForeground(String[] args) throws InterruptedException {
         // Allow both "1" and "%1"
         String raw = args[0].startsWith("%") ? args[0].substring(1) : args[0];
         int id = Integer.parseInt(raw);
         Job job = jobs.get(id);
         if (job == null) {
             System.err.println("fg: no such job");
-            return;
+            return false;
         }
         Process p = job.getProcess();
         p.waitFor();
         jobs.remove(id);
+        return true;
     }
 
-    public void resumeInBackground(String[] args) {
+    // Returns false if there is no such job
+    public boolean resumeInBackground(String[] args) {
         String raw = args[0].startsWith("%") ? args[0].substring(1) : args[0];
         int id = Integer.parseInt(raw);
         Job job = jobs.get(id);
         if (job == null) {
             System.err.println("bg: no such job");
-            return;
+            return false;
         }
         long pid = getPid(job.getProcess());
         System.out.printf("Resuming job [%d] (%d) in background: %s%n",
                 id, pid, job.getCommand());
+        return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,329 @@
+package org.shellassignment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Multi-level feedback queue. New processes start in the top level; each level below has twice the
+// quantum of the one above. A process that uses up its allotment at a level moves down one, so
+// CPU-bound work sinks while interactive work, which blocks for I/O before its quantum runs out, stays
+// near the top and gets the CPU quickly. The allotment is charged across I/O waits, so a process cannot
+// keep its level by blocking just before the quantum ends. The bottom level is plain round robin.
+//
+// Every boostInterval time units all processes move back to the top level, so CPU-bound work is not
+// starved by a steady stream of interactive work. A boost only starts a new epoch and hands the lower
+// queues to the top level as they are; each process notices the boost the next time it is looked at,
+// so boosting costs the same however many processes are waiting.
+//
+// Runs event to event on the simulation clock: a slice ends at the first of quantum expiry, completion,
+// an I/O request, an I/O completion or a boost. If the event readied a higher level, the running process
+// is preempted and goes back to the front of its level with the rest of its allotment.
+public class MlfqScheduler {
+    private static final class Entry {
+        final ScheduledProcess process;
+        int level;
+        int allotmentUsed;  // CPU time used at this level
+        int sinceIo;        // CPU time since the last I/O request
+        long epoch;         // Boost epoch level and allotmentUsed belong to
+        long wakeAt;        // When the current I/O completes
+
+        Entry(ScheduledProcess process, long epoch) {
+            this.process = process;
+            this.epoch = epoch;
+        }
+    }
+
+    private final int[] quanta;
+    private final int boostInterval;
+    // The top level is a chain of queues: a boost appends the lower levels' queues to it whole
+    private final ArrayDeque<ArrayDeque<Entry>> topLevel = new ArrayDeque<>();
+    private final ArrayDeque<Entry>[] lowerLevels;
+    private final int[] queued;
+    private final PriorityQueue<Entry> blocked = new PriorityQueue<>((a, b) -> a.wakeAt != b.wakeAt
+            ? Long.compare(a.wakeAt, b.wakeAt) : Long.compare(a.process.getSequence(), b.process.getSequence()));
+    private final List<ScheduledProcess> completedProcesses = new ArrayList<>();
+    private final SimulationClock clock;
+    private long currentTime;
+    private long epoch;
+    private long nextBoost;
+    private Entry running;
+    // Prints a line per event; large simulations turn it off
+    private boolean trace = true;
+
+    private long demotions;
+    private long boosts;
+    private long ioRequests;
+    private long preemptions;
+    private long idleTime;
+
+    // baseQuantum is the top level's; boostInterval 0 turns boosting off
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MlfqScheduler(int levels, int baseQuantum, int boostInterval, SimulationClock clock) {
+        if (levels < 1 || baseQuantum < 1 || boostInterval < 0) {
+            throw new IllegalArgumentException("levels and quantum must be positive, boost interval non-negative");
+        }
+        this.quanta = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            quanta[i] = (int) Math.min(Integer.MAX_VALUE, (long) baseQuantum << Math.min(i, 31));
+        }
+        this.boostInterval = boostInterval;
+        this.lowerLevels = new ArrayDeque[levels];
+        for (int i = 1; i < levels; i++) {
+            lowerLevels[i] = new ArrayDeque<>();
+        }
+        this.queued = new int[levels];
+        this.nextBoost = boostInterval;
+        this.clock = clock;
+    }
+
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
+    public List<ScheduledProcess> getCompletedProcesses() {
+        return completedProcesses;
+    }
+
+    public void addProcess(ScheduledProcess process) {
+        process.markEnqueued(currentTime);
+        enqueue(new Entry(process, epoch), false);
+    }
+
+    public void schedule() {
+        try {
+            while (!isIdle() || !blocked.isEmpty()) {
+                handleEvents();
+                Entry next = poll();
+                if (next == null) {
+                    // Everything is blocked: jump to the next I/O completion
+                    int idle = (int) (blocked.peek().wakeAt - currentTime);
+                    if (trace) {
+                        System.out.println("CPU idle for " + idle + " time units");
+                    }
+                    advance(idle);
+                    idleTime += idle;
+                    continue;
+                }
+                next.process.markDequeued(currentTime);
+                run(next);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Process execution interrupted");
+        }
+    }
+
+    // Runs one process until it completes, blocks, uses up its allotment or is preempted
+    private void run(Entry entry) throws InterruptedException {
+        running = entry;
+        ScheduledProcess process = entry.process;
+        while (true) {
+            int slice = Math.min(quanta[entry.level] - entry.allotmentUsed, process.getRemainingTime());
+            if (process.isIoBound()) {
+                slice = Math.min(slice, process.getIoInterval() - entry.sinceIo);
+            }
+            long event = nextEvent();
+            if (event >= 0) {
+                slice = (int) Math.min(slice, event - currentTime);
+            }
+            slice = Math.max(0, slice);
+
+            if (trace) {
+                System.out.println("Executing process " + process.getProcessId() +
+                        " (Level: " + entry.level + ") for " + slice + " time units");
+            }
+            advance(slice);
+            process.setRemainingTime(process.getRemainingTime() - slice);
+            entry.allotmentUsed += slice;
+            entry.sinceIo += slice;
+
+            if (process.isCompleted()) {
+                process.setTurnaroundTime((int) currentTime);
+                completedProcesses.add(process);
+                if (trace) {
+                    System.out.println("Process " + process.getProcessId() + " completed");
+                }
+                break;
+            }
+            boolean exhausted = entry.allotmentUsed >= quanta[entry.level];
+            if (exhausted) {
+                demote(entry);
+            }
+            if (process.isIoBound() && entry.sinceIo >= process.getIoInterval()) {
+                entry.sinceIo = 0;
+                entry.wakeAt = currentTime + process.getIoTime();
+                blocked.add(entry);
+                ioRequests++;
+                if (trace) {
+                    System.out.println("Process " + process.getProcessId() + " waiting for I/O for "
+                            + process.getIoTime() + " time units");
+                }
+                break;
+            }
+            if (exhausted) {
+                process.markEnqueued(currentTime);
+                enqueue(entry, false);
+                break;
+            }
+            // Cut short by an I/O completion or a boost; keep the CPU unless a higher level is now ready
+            handleEvents();
+            if (readyAbove(entry.level)) {
+                preemptions++;
+                if (trace) {
+                    System.out.println("Preempting process " + process.getProcessId());
+                }
+                process.markEnqueued(currentTime);
+                enqueue(entry, true);
+                break;
+            }
+        }
+        running = null;
+    }
+
+    private void demote(Entry entry) {
+        entry.allotmentUsed = 0;
+        if (entry.level < quanta.length - 1) {
+            entry.level++;
+            demotions++;
+            if (trace) {
+                System.out.println("Process " + entry.process.getProcessId() + " moved to level " + entry.level);
+            }
+        }
+    }
+
+    // I/O completions and boosts that are due
+    private void handleEvents() {
+        Entry woken;
+        while ((woken = blocked.peek()) != null && woken.wakeAt <= currentTime) {
+            blocked.poll();
+            woken.process.markEnqueued(woken.wakeAt);
+            enqueue(woken, false);
+        }
+        if (boostInterval > 0 && currentTime >= nextBoost) {
+            boost();
+            nextBoost = (currentTime / boostInterval + 1) * boostInterval;
+        }
+    }
+
+    private void boost() {
+        epoch++;
+        boosts++;
+        for (int level = 1; level < quanta.length; level++) {
+            if (queued[level] > 0) {
+                topLevel.addLast(lowerLevels[level]);
+                lowerLevels[level] = new ArrayDeque<>();
+                queued[0] += queued[level];
+                queued[level] = 0;
+            }
+        }
+        if (running != null) {
+            refresh(running);
+        }
+        if (trace) {
+            System.out.println("Priority boost: all processes moved to level 0");
+        }
+    }
+
+    // Resets an entry that has not seen the latest boost
+    private void refresh(Entry entry) {
+        if (entry.epoch != epoch) {
+            entry.epoch = epoch;
+            entry.level = 0;
+            entry.allotmentUsed = 0;
+        }
+    }
+
+    private void enqueue(Entry entry, boolean front) {
+        refresh(entry);
+        if (entry.level == 0) {
+            ArrayDeque<Entry> queue = front ? topLevel.peekFirst() : topLevel.peekLast();
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                topLevel.add(queue);
+            }
+            if (front) {
+                queue.addFirst(entry);
+            } else {
+                queue.addLast(entry);
+            }
+        } else if (front) {
+            lowerLevels[entry.level].addFirst(entry);
+        } else {
+            lowerLevels[entry.level].addLast(entry);
+        }
+        queued[entry.level]++;
+    }
+
+    private Entry poll() {
+        for (int level = 0; level < quanta.length; level++) {
+            if (queued[level] == 0) {
+                continue;
+            }
+            queued[level]--;
+            Entry entry;
+            if (level == 0) {
+                while (topLevel.peekFirst().isEmpty()) {
+                    topLevel.pollFirst();
+                }
+                entry = topLevel.peekFirst().pollFirst();
+            } else {
+                entry = lowerLevels[level].pollFirst();
+            }
+            // Queued before a boost: the queue was moved, the entry is refreshed here
+            refresh(entry);
+            return entry;
+        }
+        return null;
+    }
+
+    private boolean readyAbove(int level) {
+        for (int i = 0; i < level; i++) {
+            if (queued[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isIdle() {
+        for (int count : queued) {
+            if (count > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Time of the next I/O completion or boost, or -1 if there is none
+    private long nextEvent() {
+        long event = blocked.isEmpty() ? -1 : blocked.peek().wakeAt;
+        if (boostInterval > 0 && (event < 0 || nextBoost < event)) {
+            event = nextBoost;
+        }
+        return event;
+    }
+
+    private void advance(int units) throws InterruptedException {
+        clock.advance(units);
+        currentTime += units;
+    }
+
+    public void printStatistics() {
+        printStatistics(true);
+    }
+
+    // Without the per-process lines, for simulations too large to list
+    public void printStatistics(boolean listProcesses) {
+        SchedulingStatistics.print("Multi-Level Feedback Queue Statistics:", "=====================================",
+                completedProcesses, listProcesses);
+        StringBuilder levels = new StringBuilder();
+        for (int quantum : quanta) {
+            levels.append(levels.length() == 0 ? "" : "/").append(quantum);
+        }
+        System.out.println("\nLevels: " + quanta.length + " (quanta " + levels + " time units), boost "
+                + (boostInterval > 0 ? "every " + boostInterval + " time units" : "off"));
+        System.out.println("Demotions: " + demotions + ", boosts: " + boosts + ", I/O requests: " + ioRequests
+                + ", preemptions: " + preemptions + ", CPU idle: " + idleTime + " time units");
+    }
+}
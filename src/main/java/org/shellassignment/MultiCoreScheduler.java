@@ -0,0 +1,286 @@
+package org.shellassignment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Round robin on several cores, each with its own run queue. New processes are dealt out to the cores
+// in turn, skipping cores outside their affinity. The cores run independently for a balance interval;
+// at its end every core that has run out of work steals half of the waiting processes it may run from
+// the core with the longest queue, taking them from the tail, where they have waited least.
+//
+// Within an interval the cores share nothing, so with tracing off they are simulated in parallel on the
+// common fork/join pool. Stealing happens between intervals, in core order, so the result is the same
+// however many host threads ran the cores. A slice that reaches the end of an interval carries on in
+// the next one; an idle core waits for the next balance to get work.
+public class MultiCoreScheduler {
+    // Affinity is a 64-bit mask
+    public static final int MAX_CORES = 64;
+
+    private static final class Core {
+        final int id;
+        final ArrayDeque<ScheduledProcess> queue = new ArrayDeque<>();
+        final List<ScheduledProcess> completedProcesses = new ArrayList<>();
+        ScheduledProcess current;
+        int sliceLeft;
+        long time;
+        long busyTime;
+        long idleTime;
+        long stolenIn;
+        long stolenOut;
+
+        Core(int id) {
+            this.id = id;
+        }
+
+        // Round robin on this core's queue until the interval ends
+        void run(long end, int timeQuantum, boolean trace) {
+            while (time < end) {
+                if (current == null) {
+                    current = queue.poll();
+                    if (current == null) {
+                        idleTime += end - time;
+                        time = end;
+                        break;
+                    }
+                    current.markDequeued(time);
+                    sliceLeft = Math.min(timeQuantum, current.getRemainingTime());
+                    if (trace) {
+                        System.out.println("[" + time + "] Core " + id + ": executing process " + current.getProcessId() +
+                                " for " + sliceLeft + " time units");
+                    }
+                }
+                int run = (int) Math.min(sliceLeft, end - time);
+                time += run;
+                busyTime += run;
+                sliceLeft -= run;
+                current.setRemainingTime(current.getRemainingTime() - run);
+                if (sliceLeft <= 0) {
+                    if (current.isCompleted()) {
+                        current.setTurnaroundTime((int) time);
+                        completedProcesses.add(current);
+                        if (trace) {
+                            System.out.println("[" + time + "] Core " + id + ": process " + current.getProcessId() + " completed");
+                        }
+                    } else {
+                        current.markEnqueued(time);
+                        queue.add(current);
+                    }
+                    current = null;
+                }
+            }
+        }
+
+        boolean hasWork() {
+            return current != null || !queue.isEmpty();
+        }
+    }
+
+    // Splits the cores in halves until each task simulates one
+    private static final class IntervalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Core[] cores;
+        private final int from;
+        private final int to;
+        private final long end;
+        private final int timeQuantum;
+
+        IntervalTask(Core[] cores, int from, int to, long end, int timeQuantum) {
+            this.cores = cores;
+            this.from = from;
+            this.to = to;
+            this.end = end;
+            this.timeQuantum = timeQuantum;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                cores[from].run(end, timeQuantum, false);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new IntervalTask(cores, from, middle, end, timeQuantum),
+                    new IntervalTask(cores, middle, to, end, timeQuantum));
+        }
+    }
+
+    private final Core[] cores;
+    private final int timeQuantum;
+    private final int balanceInterval;
+    private final SimulationClock clock;
+    private int nextCore;
+    private long currentTime;
+    private long makespan;
+    private long steals;
+    // Prints a line per slice and steal, and runs the cores one after another so the lines stay in order
+    private boolean trace = true;
+
+    public MultiCoreScheduler(int cores, int timeQuantum, int balanceInterval, SimulationClock clock) {
+        if (cores < 1 || cores > MAX_CORES) {
+            throw new IllegalArgumentException("cores must be between 1 and " + MAX_CORES);
+        }
+        if (timeQuantum < 1 || balanceInterval < 1) {
+            throw new IllegalArgumentException("time quantum and balance interval must be positive");
+        }
+        this.cores = new Core[cores];
+        for (int i = 0; i < cores; i++) {
+            this.cores[i] = new Core(i);
+        }
+        this.timeQuantum = timeQuantum;
+        this.balanceInterval = balanceInterval;
+        this.clock = clock;
+    }
+
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
+    // Completed processes of every core, core by core
+    public List<ScheduledProcess> getCompletedProcesses() {
+        List<ScheduledProcess> completed = new ArrayList<>();
+        for (Core core : cores) {
+            completed.addAll(core.completedProcesses);
+        }
+        return completed;
+    }
+
+    public void addProcess(ScheduledProcess process) {
+        for (int tried = 0; tried < cores.length; tried++) {
+            Core core = cores[nextCore];
+            nextCore = (nextCore + 1) % cores.length;
+            if (process.canRunOn(core.id)) {
+                process.markEnqueued(currentTime);
+                core.queue.add(process);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("affinity of " + process.getProcessId() + " excludes every core");
+    }
+
+    public void schedule() {
+        while (hasWork()) {
+            long end = currentTime + balanceInterval;
+            if (trace || cores.length == 1) {
+                for (Core core : cores) {
+                    core.run(end, timeQuantum, trace);
+                }
+            } else {
+                ForkJoinPool.commonPool().invoke(new IntervalTask(cores, 0, cores.length, end, timeQuantum));
+            }
+            long last = currentTime;
+            for (Core core : cores) {
+                if (!core.completedProcesses.isEmpty()) {
+                    last = Math.max(last, core.completedProcesses.get(core.completedProcesses.size() - 1).getTurnaroundTime());
+                }
+            }
+            boolean done = !hasWork();
+            // The last interval only lasts until the last process completed
+            long until = done ? last : end;
+            try {
+                clock.advance((int) (until - currentTime));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Process execution interrupted");
+                return;
+            }
+            if (done) {
+                for (Core core : cores) {
+                    core.idleTime -= end - until;
+                    core.time = until;
+                }
+            }
+            currentTime = until;
+            makespan = until;
+            if (!done) {
+                balance();
+            }
+        }
+    }
+
+    // Every core without work steals from the longest queue that holds something it may run
+    private void balance() {
+        for (Core thief : cores) {
+            if (thief.hasWork()) {
+                continue;
+            }
+            Core[] victims = cores.clone();
+            Arrays.sort(victims, (a, b) -> Integer.compare(b.queue.size(), a.queue.size()));
+            for (Core victim : victims) {
+                if (victim.queue.isEmpty()) {
+                    break;
+                }
+                if (victim != thief && steal(thief, victim) > 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private int steal(Core thief, Core victim) {
+        int wanted = (victim.queue.size() + 1) / 2;
+        ArrayDeque<ScheduledProcess> taken = new ArrayDeque<>();
+        Iterator<ScheduledProcess> newestFirst = victim.queue.descendingIterator();
+        while (newestFirst.hasNext() && taken.size() < wanted) {
+            ScheduledProcess process = newestFirst.next();
+            if (process.canRunOn(thief.id)) {
+                newestFirst.remove();
+                // Keeps the order they had in the victim's queue
+                taken.addFirst(process);
+            }
+        }
+        if (taken.isEmpty()) {
+            return 0;
+        }
+        thief.queue.addAll(taken);
+        thief.stolenIn += taken.size();
+        victim.stolenOut += taken.size();
+        steals++;
+        if (trace) {
+            System.out.println("[" + currentTime + "] Core " + thief.id + " stole " + taken.size() + " process(es) from core " + victim.id);
+        }
+        return taken.size();
+    }
+
+    private boolean hasWork() {
+        for (Core core : cores) {
+            if (core.hasWork()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void printStatistics() {
+        printStatistics(true);
+    }
+
+    // Without the per-process lines, for simulations too large to list
+    public void printStatistics(boolean listProcesses) {
+        SchedulingStatistics.print("Multi-Core Scheduling Statistics:", "================================",
+                getCompletedProcesses(), listProcesses);
+
+        System.out.println("\nPer-Core Utilization:");
+        System.out.printf("%-6s %-10s %-10s %-12s %-10s %-10s %-10s%n",
+                "Core", "Busy", "Idle", "Utilization", "Completed", "Stole", "Lost");
+        long busy = 0;
+        for (Core core : cores) {
+            busy += core.busyTime;
+            System.out.printf("%-6d %-10d %-10d %-12s %-10d %-10d %-10d%n", core.id, core.busyTime, core.idleTime,
+                    String.format("%.1f%%", percent(core.busyTime, makespan)), core.completedProcesses.size(),
+                    core.stolenIn, core.stolenOut);
+        }
+        System.out.printf("Makespan: %d time units on %d core(s), overall utilization %.1f%%%n", makespan, cores.length,
+                percent(busy, makespan * cores.length));
+        System.out.println("Steals: " + steals + ", balancing every " + balanceInterval + " time units");
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+}
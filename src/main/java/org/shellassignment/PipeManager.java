@@ -1,63 +1,143 @@
 package org.shellassignment;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
+import org.shellassignment.daemon.ConsoleRouter;
+import org.shellassignment.session.Session;
 
 public class PipeManager {
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
     
-    public static void executePipedCommands(CommandParser.PipedCommands pipedCommands, Shell shell, JobManager jobs) {
+    public static void executePipedCommands(CommandParser.PipedCommands pipedCommands, Session session) {
         List<CommandParser.ParsedCommand> commands = pipedCommands.commands;
         
         if (commands.size() < 2) {
             // Single command, execute normally
             CommandParser.ParsedCommand cmd = commands.get(0);
             if (BuiltInFeatures.isBuiltIn(cmd.name)) {
-                BuiltInFeatures.execute(cmd, shell, jobs);
+                BuiltInFeatures.execute(cmd, session);
             } else {
-                launchExternal(cmd, shell, jobs);
+                launchExternal(cmd, session);
             }
             return;
         }
-        
+
+        BuiltInFeatures.auditCommand(pipedCommands.original, session);
+        // Every external stage is authorized before any is spawned, so a refused stage starts nothing
+        String[] binaries = new String[commands.size()];
+        for (int i = 0; i < commands.size(); i++) {
+            if (!BuiltInFeatures.isStreamingBuiltIn(commands.get(i).name)) {
+                binaries[i] = session.getShell().authorizeLaunch(commands.get(i), session);
+                if (binaries[i] == null) {
+                    session.setLastStatus(1);
+                    return;
+                }
+            }
+        }
+
         try {
-            // Create and start all processes
+            // Start every external stage up front; streaming builtins run on threads in this JVM
             Process[] processes = new Process[commands.size()];
-            
-            // Start the first process
-            processes[0] = createProcess(commands.get(0), shell);
-            
-            // Start remaining processes and connect them with pipes
-            for (int i = 1; i < commands.size(); i++) {
-                ProcessBuilder pb = createProcessBuilder(commands.get(i), shell);
-                processes[i] = pb.start();
-                
-                // Connect the output of previous process to input of current process
-                connectProcesses(processes[i-1], processes[i]);
+            for (int i = 0; i < commands.size(); i++) {
+                if (binaries[i] != null) {
+                    processes[i] = Shell.processBuilder(commands.get(i), binaries[i], session).start();
+                }
             }
-            
+
+            // Builtin stages read from the previous process and write into the next one directly;
+            // only process-to-process and builtin-to-builtin hops need a copy in between
+            List<Thread> stageThreads = new ArrayList<>();
+            int[] stageStatus = new int[commands.size()];
+            InputStream upstream = null;
+            boolean fedByBuiltin = false;
+            for (int i = 0; i < commands.size(); i++) {
+                boolean last = i == commands.size() - 1;
+                if (processes[i] != null) {
+                    if (upstream != null && !fedByBuiltin) {
+                        connectStreams(upstream, processes[i].getOutputStream());
+                    }
+                    fedByBuiltin = false;
+                    upstream = processes[i].getInputStream();
+                    continue;
+                }
+
+                InputStream stageInput = upstream != null ? upstream : new ByteArrayInputStream(new byte[0]);
+                OutputStream stageOutput;
+                upstream = null;
+                if (last) {
+                    stageOutput = new FilterOutputStream(System.out) {
+                        @Override
+                        public void close() throws IOException {
+                            flush();
+                        }
+                    };
+                } else if (processes[i + 1] != null) {
+                    stageOutput = processes[i + 1].getOutputStream();
+                    fedByBuiltin = true;
+                } else {
+                    PipedInputStream next = new PipedInputStream(PIPE_BUFFER_SIZE);
+                    stageOutput = new PipedOutputStream(next);
+                    upstream = next;
+                }
+                stageThreads.add(startBuiltinStage(commands.get(i), session, stageInput, stageOutput, stageStatus, i));
+            }
+
+            Process lastProcess = processes[processes.length - 1];
             // Handle background execution
-            if (pipedCommands.background) {
-                int jobId = jobs.addJob(processes[processes.length - 1], pipedCommands.original);
-                long pid = JobManager.getPid(processes[processes.length - 1]);
+            if (pipedCommands.background && lastProcess != null) {
+                int jobId = session.getJobs().addJob(lastProcess, pipedCommands.original);
+                long pid = JobManager.getPid(lastProcess);
                 System.out.printf("[%d] %d%n", jobId, pid);
             } else {
+                if (pipedCommands.background) {
+                    System.err.println("Background pipelines must end in an external command; running in foreground");
+                }
                 // Capture and display output from the final process
-                captureAndDisplayOutput(processes[processes.length - 1]);
-                
-                // Wait for all processes to complete
+                Thread output = lastProcess != null ? captureAndDisplayOutput(lastProcess) : null;
+
+                // Wait for all stages to complete
+                for (Thread stage : stageThreads) {
+                    stage.join();
+                }
                 for (Process process : processes) {
-                    process.waitFor();
+                    if (process != null) {
+                        process.waitFor();
+                    }
+                }
+                // The prompt follows all of the output
+                if (output != null) {
+                    output.join();
                 }
+                // As in sh, the pipeline's status is its last stage's; the joins above make the builtins' visible
+                session.setLastStatus(lastProcess != null ? lastProcess.exitValue() : stageStatus[commands.size() - 1]);
             }
             
         } catch (IOException | InterruptedException e) {
             System.err.println("Error executing piped commands: " + e.getMessage());
+            session.setLastStatus(1);
         }
     }
+
+    // The stage's exit status goes into status[index]
+    private static Thread startBuiltinStage(CommandParser.ParsedCommand cmd, Session session,
+                                            InputStream input, OutputStream output, int[] status, int index) {
+        Thread stageThread = new Thread(ConsoleRouter.bound(() -> {
+            try (InputStream in = input;
+                 OutputStream out = output) {
+                status[index] = BuiltInFeatures.runStreaming(cmd, session, in, out) ? 0 : 1;
+            } catch (IOException e) {
+                System.err.println(cmd.name + ": " + e.getMessage());
+                status[index] = 1;
+            }
+        }), "pipe-" + cmd.name);
+        stageThread.start();
+        return stageThread;
+    }
     
-    private static void captureAndDisplayOutput(Process process) {
+    private static Thread captureAndDisplayOutput(Process process) {
         // Create a thread to read and display the output from the final process
-        Thread outputThread = new Thread(() -> {
+        Thread outputThread = new Thread(ConsoleRouter.bound(() -> {
             try (BufferedReader reader = new BufferedReader(
                     new InputStreamReader(process.getInputStream()))) {
                 String line;
@@ -67,56 +147,52 @@ public class PipeManager {
             } catch (IOException e) {
                 System.err.println("Error reading process output: " + e.getMessage());
             }
-        });
+        }));
         outputThread.start();
+        return outputThread;
     }
     
-    private static void connectProcesses(Process source, Process destination) {
+    private static void connectStreams(InputStream sourceOutput, OutputStream destInput) {
         // Create a thread to pipe data from source to destination
-        Thread pipeThread = new Thread(() -> {
-            try (InputStream sourceOutput = source.getInputStream();
-                 OutputStream destInput = destination.getOutputStream()) {
+        Thread pipeThread = new Thread(ConsoleRouter.bound(() -> {
+            try (InputStream in = sourceOutput;
+                 OutputStream out = destInput) {
                 
-                byte[] buffer = new byte[1024];
+                byte[] buffer = new byte[PIPE_BUFFER_SIZE];
                 int bytesRead;
-                while ((bytesRead = sourceOutput.read(buffer)) != -1) {
-                    destInput.write(buffer, 0, bytesRead);
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
                 }
-                destInput.close();
             } catch (IOException e) {
                 System.err.println("Error in pipe: " + e.getMessage());
             }
-        });
+        }));
         pipeThread.start();
     }
     
-    private static Process createProcess(CommandParser.ParsedCommand cmd, Shell shell) throws IOException {
-        ProcessBuilder pb = createProcessBuilder(cmd, shell);
-        return pb.start();
-    }
-    
-    private static ProcessBuilder createProcessBuilder(CommandParser.ParsedCommand cmd, Shell shell) {
-        ProcessBuilder pb = new ProcessBuilder(cmd.tokens());
-        pb.directory(shell.getCurrentDirectory());
-        return pb;
-    }
-    
-    private static void launchExternal(CommandParser.ParsedCommand cmd, Shell shell, JobManager jobs) {
-        ProcessBuilder pb = new ProcessBuilder(cmd.tokens());
-        pb.directory(shell.getCurrentDirectory());
+    static void launchExternal(CommandParser.ParsedCommand cmd, Session session) {
+        BuiltInFeatures.auditCommand(cmd.original, session);
+        String binary = session.getShell().authorizeLaunch(cmd, session);
+        if (binary == null) {
+            session.setLastStatus(1);
+            return;
+        }
+        ProcessBuilder pb = Shell.processBuilder(cmd, binary, session);
         try {
             Process proc = pb.start();
             if (cmd.background) {
-                int jobId = jobs.addJob(proc, cmd.original);
+                int jobId = session.getJobs().addJob(proc, cmd.original);
                 long pid = JobManager.getPid(proc);
                 System.out.printf("[%d] %d%n", jobId, pid);
             } else {
-                // Capture and display output for single commands too
-                captureAndDisplayOutput(proc);
-                proc.waitFor();
+                // Capture and display output for single commands too; the prompt follows all of it
+                Thread output = captureAndDisplayOutput(proc);
+                session.setLastStatus(proc.waitFor());
+                output.join();
             }
         } catch (IOException | InterruptedException e) {
             System.err.println("Error launching: " + e.getMessage());
+            session.setLastStatus(1);
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,131 @@
+package org.shellassignment;
+
+import java.util.ArrayDeque;
+
+// Ready queue for a bounded range of priorities: one FIFO bucket per level and a bitmap of the levels
+// that are not empty. Adding is an append; taking the next process finds the highest set bit, a few
+// word reads for any realistic range, so neither depends on how many processes are waiting. Within a
+// level processes leave in the order they reached it, which for processes that have not aged is
+// their arrival order. Priorities outside the range are placed at its nearest end.
+//
+// With an aging interval, a waiting process moves up one level for every interval it has spent at its
+// level, however long ago the queue was last polled, and keeps climbing while it waits, so low-priority
+// work cannot be passed over forever. The oldest process of a level is always at the front of its
+// bucket, so aging looks only at bucket heads.
+public class PriorityBucketQueue {
+    private final int minPriority;
+    private final ArrayDeque<ScheduledProcess>[] buckets;
+    private final long[] occupied;
+    private final int agingInterval;
+    private int size;
+    private long promotions;
+
+    // agingInterval is in time units; 0 turns aging off
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PriorityBucketQueue(int minPriority, int maxPriority, int agingInterval) {
+        if (maxPriority < minPriority) {
+            throw new IllegalArgumentException("empty priority range");
+        }
+        int levels = maxPriority - minPriority + 1;
+        this.minPriority = minPriority;
+        this.buckets = new ArrayDeque[levels];
+        this.occupied = new long[(levels + 63) / 64];
+        this.agingInterval = agingInterval;
+    }
+
+    public void add(ScheduledProcess process, long now) {
+        process.setEffectivePriority(process.getPriority());
+        insert(process, levelOf(process.getPriority()), now);
+    }
+
+    // The process to run next, or null; first promotes whatever has waited past the aging interval
+    public ScheduledProcess poll(long now) {
+        if (agingInterval > 0) {
+            age(now);
+        }
+        int level = highestLevel();
+        if (level < 0) {
+            return null;
+        }
+        ScheduledProcess process = buckets[level].poll();
+        if (buckets[level].isEmpty()) {
+            occupied[level >>> 6] &= ~(1L << level);
+        }
+        size--;
+        // Aging lasts only until the process gets the CPU
+        process.setEffectivePriority(process.getPriority());
+        return process;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getAgingInterval() {
+        return agingInterval;
+    }
+
+    // How many levels waiting processes have been moved up in all
+    public long getPromotions() {
+        return promotions;
+    }
+
+    private void insert(ScheduledProcess process, int level, long now) {
+        ArrayDeque<ScheduledProcess> bucket = buckets[level];
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets[level] = bucket;
+        }
+        process.levelEnteredAt = now;
+        bucket.add(process);
+        occupied[level >>> 6] |= 1L << level;
+        size++;
+    }
+
+    // Top level down, so a process promoted this round is not looked at again until it has waited anew.
+    // A promoted process starts its wait at the new level now, which keeps every bucket in the order its
+    // processes reached it; what it had waited beyond whole intervals is dropped.
+    private void age(long now) {
+        for (int word = occupied.length - 1; word >= 0; word--) {
+            long bits = occupied[word];
+            while (bits != 0) {
+                int bit = 63 - Long.numberOfLeadingZeros(bits);
+                bits &= ~(1L << bit);
+                int level = word * 64 + bit;
+                if (level == buckets.length - 1) {
+                    continue;
+                }
+                ArrayDeque<ScheduledProcess> bucket = buckets[level];
+                ScheduledProcess head;
+                while ((head = bucket.peek()) != null && now - head.levelEnteredAt >= agingInterval) {
+                    bucket.poll();
+                    size--;
+                    int target = (int) Math.min(buckets.length - 1, level + (now - head.levelEnteredAt) / agingInterval);
+                    head.setEffectivePriority(head.getEffectivePriority() + target - level);
+                    insert(head, target, now);
+                    promotions += target - level;
+                }
+                if (bucket.isEmpty()) {
+                    occupied[word] &= ~(1L << bit);
+                }
+            }
+        }
+    }
+
+    private int highestLevel() {
+        for (int word = occupied.length - 1; word >= 0; word--) {
+            if (occupied[word] != 0) {
+                return word * 64 + 63 - Long.numberOfLeadingZeros(occupied[word]);
+            }
+        }
+        return -1;
+    }
+
+    private int levelOf(int priority) {
+        return Math.max(0, Math.min(buckets.length - 1, priority - minPriority));
+    }
+}
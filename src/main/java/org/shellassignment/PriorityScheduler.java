@@ -1,22 +1,47 @@
 package org.shellassignment;
 
-import java.util.PriorityQueue;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class PriorityScheduler {
-    private final PriorityQueue<ScheduledProcess> readyQueue;
+    // Priorities the ready queue keeps apart; anything higher shares the top level
+    public static final int MAX_PRIORITY = Integer.getInteger("mysh.scheduler.maxPriority", 127);
+
+    private final PriorityBucketQueue readyQueue;
     private ScheduledProcess currentProcess;
     private int currentTime;
     private final List<ScheduledProcess> completedProcesses;
-    private final int timeUnitMillis;
+    private final SimulationClock clock;
+    // Prints a line per run; large simulations turn it off
+    private boolean trace = true;
 
+    // Sleeps timeUnitMillis for every time unit, as a demo
     public PriorityScheduler(int timeUnitMillis) {
-        this.readyQueue = new PriorityQueue<>();
+        this(SimulationClock.paced(timeUnitMillis));
+    }
+
+    public PriorityScheduler(SimulationClock clock) {
+        this(clock, 0);
+    }
+
+    // A process waiting agingInterval time units at one priority moves up one; 0 leaves priorities fixed
+    public PriorityScheduler(SimulationClock clock, int agingInterval) {
+        this.readyQueue = new PriorityBucketQueue(0, MAX_PRIORITY, agingInterval);
         this.currentProcess = null;
         this.currentTime = 0;
         this.completedProcesses = new ArrayList<>();
-        this.timeUnitMillis = timeUnitMillis;
+        this.clock = clock;
+    }
+
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
+    public List<ScheduledProcess> getCompletedProcesses() {
+        return completedProcesses;
     }
 
     public void addProcess(ScheduledProcess process) {
@@ -24,10 +49,12 @@ public class PriorityScheduler {
             // Preempt current process if new process has higher priority
             System.out.println("Preempting process " + currentProcess.getProcessId() + 
                              " for higher priority process " + process.getProcessId());
-            readyQueue.add(currentProcess);
+            currentProcess.markEnqueued(currentTime);
+            readyQueue.add(currentProcess, currentTime);
             currentProcess = process;
         } else {
-            readyQueue.add(process);
+            process.markEnqueued(currentTime);
+            readyQueue.add(process, currentTime);
         }
     }
 
@@ -35,14 +62,19 @@ public class PriorityScheduler {
         while (!readyQueue.isEmpty() || currentProcess != null) {
             // If no process is running, get the highest priority process
             if (currentProcess == null) {
-                currentProcess = readyQueue.poll();
+                currentProcess = readyQueue.poll(currentTime);
+                currentProcess.markDequeued(currentTime);
             }
 
-            // Execute current process for 1 time unit
+            // Nothing can arrive while schedule() runs, so the process keeps the CPU until it is done:
+            // one event instead of one step per time unit. A zero burst still takes one unit, as it always has.
+            int runTime = Math.max(1, currentProcess.getRemainingTime());
             try {
-                System.out.println("Executing process " + currentProcess.getProcessId() + 
-                                 " (Priority: " + currentProcess.getPriority() + ")");
-                Thread.sleep(timeUnitMillis); // Use configurable time unit
+                if (trace) {
+                    System.out.println("Executing process " + currentProcess.getProcessId() +
+                                     " (Priority: " + currentProcess.getPriority() + ") for " + runTime + " time units");
+                }
+                clock.advance(runTime);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 System.err.println("Process execution interrupted");
@@ -50,41 +82,62 @@ public class PriorityScheduler {
             }
 
             // Update process state
-            currentProcess.setRemainingTime(currentProcess.getRemainingTime() - 1);
-            currentTime++;
-
-            // Update waiting time for processes in the queue
-            for (ScheduledProcess p : readyQueue) {
-                p.incrementWaitingTime(1);
-            }
+            currentProcess.setRemainingTime(0);
+            currentTime += runTime;
 
             // Check if current process is completed
             if (currentProcess.isCompleted()) {
                 currentProcess.setTurnaroundTime(currentTime);
                 completedProcesses.add(currentProcess);
-                System.out.println("Process " + currentProcess.getProcessId() + " completed");
+                if (trace) {
+                    System.out.println("Process " + currentProcess.getProcessId() + " completed");
+                }
                 currentProcess = null;
             }
         }
     }
 
     public void printStatistics() {
-        System.out.println("\nPriority Scheduling Statistics:");
-        System.out.println("=============================");
-        
-        double totalWaitingTime = 0;
-        double totalTurnaroundTime = 0;
-        
+        printStatistics(true);
+    }
+
+    // Without the per-process lines, for simulations too large to list
+    public void printStatistics(boolean listProcesses) {
+        SchedulingStatistics.print("Priority Scheduling Statistics:", "=============================", completedProcesses, listProcesses);
+        printStarvationReport();
+    }
+
+    // How long each priority level waited, and who waited longest
+    private void printStarvationReport() {
+        if (completedProcesses.isEmpty()) {
+            return;
+        }
+        Map<Integer, long[]> levels = new TreeMap<>(Collections.reverseOrder());
+        ScheduledProcess longest = completedProcesses.get(0);
         for (ScheduledProcess process : completedProcesses) {
-            System.out.println(process);
-            totalWaitingTime += process.getWaitingTime();
-            totalTurnaroundTime += process.getTurnaroundTime();
+            // count, total wait, max wait
+            long[] level = levels.computeIfAbsent(process.getPriority(), k -> new long[3]);
+            level[0]++;
+            level[1] += process.getWaitingTime();
+            level[2] = Math.max(level[2], process.getWaitingTime());
+            if (process.getWaitingTime() > longest.getWaitingTime()) {
+                longest = process;
+            }
+        }
+
+        System.out.println("\nStarvation Report:");
+        System.out.printf("%-10s %-10s %-12s %-10s%n", "Priority", "Processes", "Avg Wait", "Max Wait");
+        for (Map.Entry<Integer, long[]> level : levels.entrySet()) {
+            long[] stats = level.getValue();
+            System.out.printf("%-10d %-10d %-12.1f %-10d%n", level.getKey(), stats[0], (double) stats[1] / stats[0], stats[2]);
+        }
+        System.out.println("Longest wait: " + longest.getProcessId() + " (priority " + longest.getPriority() + ") waited "
+                + longest.getWaitingTime() + " of its " + longest.getTurnaroundTime() + " time units");
+        if (readyQueue.getAgingInterval() > 0) {
+            System.out.println("Aging: +1 priority per " + readyQueue.getAgingInterval() + " time units waited, "
+                    + readyQueue.getPromotions() + " promotion(s)");
+        } else {
+            System.out.println("Aging: off");
         }
-        
-        double avgWaitingTime = totalWaitingTime / completedProcesses.size();
-        double avgTurnaroundTime = totalTurnaroundTime / completedProcesses.size();
-        
-        System.out.println("\nAverage Waiting Time: " + avgWaitingTime);
-        System.out.println("Average Turnaround Time: " + avgTurnaroundTime);
     }
 } 
\ No newline at end of file
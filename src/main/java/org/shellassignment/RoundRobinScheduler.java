@@ -1,6 +1,6 @@
 package org.shellassignment;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.Queue;
 import java.util.List;
 import java.util.ArrayList;
@@ -10,32 +10,51 @@ public class RoundRobinScheduler {
     private final int timeQuantum;
     private int currentTime;
     private final List<ScheduledProcess> completedProcesses;
-    private final int timeUnitMillis;
+    private final SimulationClock clock;
+    // Prints a line per time slice; large simulations turn it off
+    private boolean trace = true;
 
+    // Sleeps timeUnitMillis for every time unit, as a demo
     public RoundRobinScheduler(int timeQuantum, int timeUnitMillis) {
-        this.readyQueue = new LinkedList<>();
+        this(timeQuantum, SimulationClock.paced(timeUnitMillis));
+    }
+
+    public RoundRobinScheduler(int timeQuantum, SimulationClock clock) {
+        this.readyQueue = new ArrayDeque<>();
         this.timeQuantum = timeQuantum;
         this.currentTime = 0;
         this.completedProcesses = new ArrayList<>();
-        this.timeUnitMillis = timeUnitMillis;
+        this.clock = clock;
+    }
+
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
+    public List<ScheduledProcess> getCompletedProcesses() {
+        return completedProcesses;
     }
 
     public void addProcess(ScheduledProcess process) {
+        process.markEnqueued(currentTime);
         readyQueue.add(process);
     }
 
     public void schedule() {
         while (!readyQueue.isEmpty()) {
             ScheduledProcess currentProcess = readyQueue.poll();
+            currentProcess.markDequeued(currentTime);
             
             // Calculate the actual time slice for this process
             int timeSlice = Math.min(timeQuantum, currentProcess.getRemainingTime());
             
             // Simulate process execution
             try {
-                System.out.println("Executing process " + currentProcess.getProcessId() + 
-                                 " for " + timeSlice + " time units");
-                Thread.sleep(timeSlice * timeUnitMillis); // Use configurable time unit
+                if (trace) {
+                    System.out.println("Executing process " + currentProcess.getProcessId() +
+                                     " for " + timeSlice + " time units");
+                }
+                clock.advance(timeSlice);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 System.err.println("Process execution interrupted");
@@ -46,40 +65,27 @@ public class RoundRobinScheduler {
             currentProcess.setRemainingTime(currentProcess.getRemainingTime() - timeSlice);
             currentTime += timeSlice;
 
-            // Update waiting time for processes in the queue
-            for (ScheduledProcess p : readyQueue) {
-                p.incrementWaitingTime(timeSlice);
-            }
-
             if (currentProcess.isCompleted()) {
                 // Process is complete
                 currentProcess.setTurnaroundTime(currentTime);
                 completedProcesses.add(currentProcess);
-                System.out.println("Process " + currentProcess.getProcessId() + " completed");
+                if (trace) {
+                    System.out.println("Process " + currentProcess.getProcessId() + " completed");
+                }
             } else {
                 // Process needs more time, add it back to the queue
+                currentProcess.markEnqueued(currentTime);
                 readyQueue.add(currentProcess);
             }
         }
     }
 
     public void printStatistics() {
-        System.out.println("\nScheduling Statistics:");
-        System.out.println("=====================");
-        
-        double totalWaitingTime = 0;
-        double totalTurnaroundTime = 0;
-        
-        for (ScheduledProcess process : completedProcesses) {
-            System.out.println(process);
-            totalWaitingTime += process.getWaitingTime();
-            totalTurnaroundTime += process.getTurnaroundTime();
-        }
-        
-        double avgWaitingTime = totalWaitingTime / completedProcesses.size();
-        double avgTurnaroundTime = totalTurnaroundTime / completedProcesses.size();
-        
-        System.out.println("\nAverage Waiting Time: " + avgWaitingTime);
-        System.out.println("Average Turnaround Time: " + avgTurnaroundTime);
+        printStatistics(true);
+    }
+
+    // Without the per-process lines, for simulations too large to list
+    public void printStatistics(boolean listProcesses) {
+        SchedulingStatistics.print("Scheduling Statistics:", "=====================", completedProcesses, listProcesses);
     }
 } 
\ No newline at end of file
@@ -1,6 +1,12 @@
 package org.shellassignment;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class ScheduledProcess implements Comparable<ScheduledProcess> {
+    // Numbers processes in creation order, so equal priorities are served first come, first served
+    // even when many processes are created within the same millisecond
+    private static final AtomicLong NEXT_SEQUENCE = new AtomicLong();
+
     private final String processId;
     private final int burstTime;  // Total time needed to complete the process
     private int remainingTime;    // Remaining time to complete the process
@@ -8,8 +14,23 @@ public class ScheduledProcess implements Comparable<ScheduledProcess> {
     private int turnaroundTime;   // Total time from arrival to completion
     private final int priority;   // Process priority (higher number = higher priority)
     private final long arrivalTime; // Time when process was added to the queue
+    private final long sequence;  // Arrival order among all processes
+    private long enqueuedAt;      // Scheduler time it last entered the ready queue
+    private int effectivePriority; // Priority after aging; back to priority once it runs
+    long levelEnteredAt;          // Scheduler time it reached its current effective priority
+    private final int ioInterval; // CPU time between I/O requests; 0 for a CPU-bound process
+    private final int ioTime;     // Time each I/O request blocks it
+    private long submittedAt = -1; // Scheduler time it first entered the ready queue
+    private long firstRunAt = -1; // Scheduler time it first got the CPU
+    private long affinity = -1L;  // Bit n set: may run on core n; all bits set: any core
 
     public ScheduledProcess(String processId, int burstTime, int priority) {
+        this(processId, burstTime, priority, 0, 0);
+    }
+
+    // An I/O-bound process: after every ioInterval units of CPU it blocks for ioTime units. Only
+    // schedulers that model I/O (MlfqScheduler) use this; the others run the CPU bursts back to back.
+    public ScheduledProcess(String processId, int burstTime, int priority, int ioInterval, int ioTime) {
         this.processId = processId;
         this.burstTime = burstTime;
         this.remainingTime = burstTime;
@@ -17,6 +38,10 @@ public class ScheduledProcess implements Comparable<ScheduledProcess> {
         this.turnaroundTime = 0;
         this.priority = priority;
         this.arrivalTime = System.currentTimeMillis();
+        this.sequence = NEXT_SEQUENCE.incrementAndGet();
+        this.effectivePriority = priority;
+        this.ioInterval = Math.max(0, ioInterval);
+        this.ioTime = Math.max(0, ioTime);
     }
 
     // For backward compatibility with round-robin scheduling
@@ -48,6 +73,28 @@ public class ScheduledProcess implements Comparable<ScheduledProcess> {
         this.waitingTime += time;
     }
 
+    // Called as the process enters the ready queue, with the scheduler's current time
+    public void markEnqueued(long now) {
+        this.enqueuedAt = now;
+        if (submittedAt < 0) {
+            submittedAt = now;
+        }
+    }
+
+    // Called as it leaves the ready queue; charges the time spent there, so schedulers need not
+    // touch every waiting process after each slice
+    public void markDequeued(long now) {
+        this.waitingTime += (int) (now - enqueuedAt);
+        if (firstRunAt < 0) {
+            firstRunAt = now;
+        }
+    }
+
+    // Time from first entering the ready queue to first getting the CPU
+    public int getResponseTime() {
+        return firstRunAt < 0 ? 0 : (int) (firstRunAt - submittedAt);
+    }
+
     public int getTurnaroundTime() {
         return turnaroundTime;
     }
@@ -64,6 +111,43 @@ public class ScheduledProcess implements Comparable<ScheduledProcess> {
         return arrivalTime;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getEffectivePriority() {
+        return effectivePriority;
+    }
+
+    void setEffectivePriority(int effectivePriority) {
+        this.effectivePriority = effectivePriority;
+    }
+
+    public int getIoInterval() {
+        return ioInterval;
+    }
+
+    public int getIoTime() {
+        return ioTime;
+    }
+
+    public boolean isIoBound() {
+        return ioInterval > 0;
+    }
+
+    // Restricts the process to the cores whose bits are set; -1 lets it run anywhere
+    public void setAffinity(long affinity) {
+        this.affinity = affinity;
+    }
+
+    public long getAffinity() {
+        return affinity;
+    }
+
+    public boolean canRunOn(int core) {
+        return affinity == -1L || (core < 64 && (affinity & (1L << core)) != 0);
+    }
+
     public boolean isCompleted() {
         return remainingTime <= 0;
     }
@@ -75,8 +159,8 @@ public class ScheduledProcess implements Comparable<ScheduledProcess> {
         if (priorityCompare != 0) {
             return priorityCompare;
         }
-        // If priorities are equal, compare by arrival time (FCFS)
-        return Long.compare(this.arrivalTime, other.arrivalTime);
+        // If priorities are equal, compare by arrival order (FCFS)
+        return Long.compare(this.sequence, other.sequence);
     }
 
     @Override
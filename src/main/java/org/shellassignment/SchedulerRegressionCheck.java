@@ -0,0 +1,135 @@
+package org.shellassignment;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+
+// Checks that the round-robin and priority schedulers still produce the waiting and turnaround times of
+// the original per-slice accounting, which charged every queued process after every slice. That
+// accounting is kept here as the reference. Seeded workloads, including zero bursts and ties in
+// priority, go through both, and every process is compared in completion order. Exits with status 1
+// on any difference. Run with:
+//   java -cp target/classes org.shellassignment.SchedulerRegressionCheck [processes] [seeds]
+public class SchedulerRegressionCheck {
+    private static int failures;
+
+    public static void main(String[] args) {
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seeds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println("Scheduler Regression Check");
+        System.out.println("==========================");
+        for (long seed = 1; seed <= seeds; seed++) {
+            for (int maxBurst : new int[]{1, 20, 50}) {
+                for (int quantum : new int[]{1, 3, 4, 8}) {
+                    RoundRobinScheduler roundRobin = new RoundRobinScheduler(quantum, SimulationClock.virtual());
+                    roundRobin.setTrace(false);
+                    for (ScheduledProcess process : workload(processes, maxBurst, seed)) {
+                        roundRobin.addProcess(process);
+                    }
+                    roundRobin.schedule();
+                    compare("round robin, seed " + seed + ", burst 0-" + maxBurst + ", quantum " + quantum,
+                            referenceRoundRobin(workload(processes, maxBurst, seed), quantum),
+                            roundRobin.getCompletedProcesses());
+                }
+
+                PriorityScheduler priority = new PriorityScheduler(SimulationClock.virtual());
+                priority.setTrace(false);
+                for (ScheduledProcess process : workload(processes, maxBurst, seed)) {
+                    priority.addProcess(process);
+                }
+                priority.schedule();
+                compare("priority, seed " + seed + ", burst 0-" + maxBurst,
+                        referencePriority(workload(processes, maxBurst, seed)), priority.getCompletedProcesses());
+            }
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " case(s) differ from the reference");
+            System.exit(1);
+        }
+        System.out.println("All cases match the reference");
+    }
+
+    // Bursts 0-maxBurst and only a few priorities, so zero bursts and ties both occur
+    private static List<ScheduledProcess> workload(int processes, int maxBurst, long seed) {
+        Random random = new Random(seed);
+        List<ScheduledProcess> workload = new ArrayList<>(processes);
+        for (int i = 1; i <= processes; i++) {
+            workload.add(new ScheduledProcess("P" + i, random.nextInt(maxBurst + 1), random.nextInt(4)));
+        }
+        return workload;
+    }
+
+    // Round robin as it was: after each slice, every process still queued is charged the slice
+    private static List<ScheduledProcess> referenceRoundRobin(List<ScheduledProcess> workload, int quantum) {
+        Queue<ScheduledProcess> readyQueue = new LinkedList<>(workload);
+        List<ScheduledProcess> completed = new ArrayList<>();
+        int currentTime = 0;
+        while (!readyQueue.isEmpty()) {
+            ScheduledProcess current = readyQueue.poll();
+            int timeSlice = Math.min(quantum, current.getRemainingTime());
+            current.setRemainingTime(current.getRemainingTime() - timeSlice);
+            currentTime += timeSlice;
+            for (ScheduledProcess waiting : readyQueue) {
+                waiting.incrementWaitingTime(timeSlice);
+            }
+            if (current.isCompleted()) {
+                current.setTurnaroundTime(currentTime);
+                completed.add(current);
+            } else {
+                readyQueue.add(current);
+            }
+        }
+        return completed;
+    }
+
+    // Priority scheduling as it was: one time unit per step, every queued process charged each step
+    private static List<ScheduledProcess> referencePriority(List<ScheduledProcess> workload) {
+        PriorityQueue<ScheduledProcess> readyQueue = new PriorityQueue<>(workload);
+        List<ScheduledProcess> completed = new ArrayList<>();
+        ScheduledProcess current = null;
+        int currentTime = 0;
+        while (!readyQueue.isEmpty() || current != null) {
+            if (current == null) {
+                current = readyQueue.poll();
+            }
+            current.setRemainingTime(current.getRemainingTime() - 1);
+            currentTime++;
+            for (ScheduledProcess waiting : readyQueue) {
+                waiting.incrementWaitingTime(1);
+            }
+            if (current.isCompleted()) {
+                current.setTurnaroundTime(currentTime);
+                completed.add(current);
+                current = null;
+            }
+        }
+        return completed;
+    }
+
+    private static void compare(String name, List<ScheduledProcess> expected, List<ScheduledProcess> actual) {
+        String difference = null;
+        if (expected.size() != actual.size()) {
+            difference = expected.size() + " process(es) completed in the reference, " + actual.size() + " now";
+        }
+        for (int i = 0; difference == null && i < expected.size(); i++) {
+            ScheduledProcess want = expected.get(i);
+            ScheduledProcess got = actual.get(i);
+            if (!want.getProcessId().equals(got.getProcessId())
+                    || want.getWaitingTime() != got.getWaitingTime()
+                    || want.getTurnaroundTime() != got.getTurnaroundTime()) {
+                difference = "completion " + (i + 1) + ": expected " + want + ", got " + got;
+            }
+        }
+        if (difference == null) {
+            System.out.println("OK       " + name);
+        } else {
+            failures++;
+            System.out.println("MISMATCH " + name + ": " + difference);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.shellassignment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Runs the round-robin, priority and multi-level feedback queue schedulers over a large random workload
+// on a virtual clock and reports how long each simulation took in wall time, then compares their
+// waiting, turnaround and response times. The workload is the same for all three and is reproducible
+// from the seed; io_percent of the processes are I/O-bound, which only the MLFQ scheduler models.
+// Finally round robin runs on a simulated machine with the given number of cores (the host's by
+// default), whose cores are simulated in parallel. Run with:
+//   java -cp target/classes org.shellassignment.SchedulerSimulation [processes] [time_quantum] [max_burst] [seed] [aging] [io_percent] [cores]
+public class SchedulerSimulation {
+    public static void main(String[] args) {
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int timeQuantum = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int maxBurst = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        int aging = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int ioPercent = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+        int cores = args.length > 6 ? Integer.parseInt(args[6])
+                : Math.min(MultiCoreScheduler.MAX_CORES, Runtime.getRuntime().availableProcessors());
+
+        System.out.println("Scheduler Simulation");
+        System.out.println("====================");
+        System.out.printf("%,d process(es), burst 1-%d, quantum %d, seed %d, aging %d, %d%% I/O-bound%n", processes,
+                maxBurst, timeQuantum, seed, aging, ioPercent);
+
+        RoundRobinScheduler roundRobin = new RoundRobinScheduler(timeQuantum, SimulationClock.virtual());
+        roundRobin.setTrace(false);
+        for (ScheduledProcess process : workload(processes, maxBurst, seed, ioPercent)) {
+            roundRobin.addProcess(process);
+        }
+        long start = System.nanoTime();
+        roundRobin.schedule();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        roundRobin.printStatistics(false);
+        System.out.printf("Round-robin simulated in %.2f s%n", seconds);
+
+        PriorityScheduler priority = new PriorityScheduler(SimulationClock.virtual(), aging);
+        priority.setTrace(false);
+        for (ScheduledProcess process : workload(processes, maxBurst, seed, ioPercent)) {
+            priority.addProcess(process);
+        }
+        start = System.nanoTime();
+        priority.schedule();
+        seconds = (System.nanoTime() - start) / 1e9;
+        priority.printStatistics(false);
+        System.out.printf("Priority simulated in %.2f s%n", seconds);
+
+        MlfqScheduler mlfq = new MlfqScheduler(3, timeQuantum, 100 * timeQuantum, SimulationClock.virtual());
+        mlfq.setTrace(false);
+        for (ScheduledProcess process : workload(processes, maxBurst, seed, ioPercent)) {
+            mlfq.addProcess(process);
+        }
+        start = System.nanoTime();
+        mlfq.schedule();
+        seconds = (System.nanoTime() - start) / 1e9;
+        mlfq.printStatistics(false);
+        System.out.printf("MLFQ simulated in %.2f s%n", seconds);
+
+        MultiCoreScheduler multiCore = new MultiCoreScheduler(cores, timeQuantum, 250 * timeQuantum, SimulationClock.virtual());
+        multiCore.setTrace(false);
+        for (ScheduledProcess process : workload(processes, maxBurst, seed, ioPercent)) {
+            multiCore.addProcess(process);
+        }
+        start = System.nanoTime();
+        multiCore.schedule();
+        seconds = (System.nanoTime() - start) / 1e9;
+        multiCore.printStatistics(false);
+        System.out.printf("Round robin on %d core(s) simulated in %.2f s%n", cores, seconds);
+
+        System.out.println();
+        SchedulingStatistics.printComparisonHeader();
+        SchedulingStatistics.printComparisonRow("Round robin", roundRobin.getCompletedProcesses());
+        SchedulingStatistics.printComparisonRow("Priority", priority.getCompletedProcesses());
+        SchedulingStatistics.printComparisonRow("MLFQ", mlfq.getCompletedProcesses());
+        SchedulingStatistics.printComparisonRow("RR x " + cores, multiCore.getCompletedProcesses());
+    }
+
+    static List<ScheduledProcess> workload(int processes, int maxBurst, long seed) {
+        return workload(processes, maxBurst, seed, 0);
+    }
+
+    // I/O-bound processes request I/O every 1-3 units of CPU and block 5-20 units for it. The I/O pattern
+    // comes from its own generator, so bursts and priorities are the same whatever ioPercent is.
+    static List<ScheduledProcess> workload(int processes, int maxBurst, long seed, int ioPercent) {
+        Random random = new Random(seed);
+        Random io = new Random(seed + 1);
+        List<ScheduledProcess> workload = new ArrayList<>(processes);
+        for (int i = 1; i <= processes; i++) {
+            int burstTime = 1 + random.nextInt(maxBurst);
+            int priority = random.nextInt(10);
+            if (io.nextInt(100) < ioPercent) {
+                workload.add(new ScheduledProcess("P" + i, burstTime, priority, 1 + io.nextInt(3), 5 + io.nextInt(16)));
+            } else {
+                workload.add(new ScheduledProcess("P" + i, burstTime, priority));
+            }
+        }
+        return workload;
+    }
+}
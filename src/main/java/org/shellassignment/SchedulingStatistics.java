@@ -0,0 +1,52 @@
+package org.shellassignment;
+
+import java.util.List;
+
+// The statistics every scheduler prints, so their results can be compared line for line
+final class SchedulingStatistics {
+    private SchedulingStatistics() {
+    }
+
+    static void print(String title, String underline, List<ScheduledProcess> completedProcesses, boolean listProcesses) {
+        System.out.println("\n" + title);
+        System.out.println(underline);
+
+        double totalWaitingTime = 0;
+        double totalTurnaroundTime = 0;
+        double totalResponseTime = 0;
+
+        for (ScheduledProcess process : completedProcesses) {
+            if (listProcesses) {
+                System.out.println(process);
+            }
+            totalWaitingTime += process.getWaitingTime();
+            totalTurnaroundTime += process.getTurnaroundTime();
+            totalResponseTime += process.getResponseTime();
+        }
+
+        double avgWaitingTime = totalWaitingTime / completedProcesses.size();
+        double avgTurnaroundTime = totalTurnaroundTime / completedProcesses.size();
+
+        System.out.println("\nAverage Waiting Time: " + avgWaitingTime);
+        System.out.println("Average Turnaround Time: " + avgTurnaroundTime);
+        System.out.println("Average Response Time: " + totalResponseTime / completedProcesses.size());
+    }
+
+    // One row of a side-by-side comparison of schedulers on the same workload
+    static void printComparisonRow(String scheduler, List<ScheduledProcess> completedProcesses) {
+        double waiting = 0;
+        double turnaround = 0;
+        double response = 0;
+        for (ScheduledProcess process : completedProcesses) {
+            waiting += process.getWaitingTime();
+            turnaround += process.getTurnaroundTime();
+            response += process.getResponseTime();
+        }
+        int count = Math.max(1, completedProcesses.size());
+        System.out.printf("%-14s %-12.2f %-16.2f %-12.2f%n", scheduler, waiting / count, turnaround / count, response / count);
+    }
+
+    static void printComparisonHeader() {
+        System.out.printf("%-14s %-12s %-16s %-12s%n", "Scheduler", "Avg Wait", "Avg Turnaround", "Avg Response");
+    }
+}
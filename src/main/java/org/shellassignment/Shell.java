@@ -1,100 +1,237 @@
 package org.shellassignment;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import org.shellassignment.audit.AuditLog;
 import org.shellassignment.auth.AuthenticationManager;
+import org.shellassignment.auth.SessionTokens;
+import org.shellassignment.auth.User;
+import org.shellassignment.auth.UserStore;
+import org.shellassignment.console.ConsoleInput;
+import org.shellassignment.daemon.ShellDaemon;
+import org.shellassignment.fs.DirectoryListingCache;
+import org.shellassignment.fs.DirectorySizeCache;
+import org.shellassignment.permissions.ExecutableResolver;
+import org.shellassignment.permissions.FilePermission;
 import org.shellassignment.permissions.PermissionManager;
+import org.shellassignment.permissions.PermissionStore;
+import org.shellassignment.permissions.PosixPermissionSource;
+import org.shellassignment.session.Session;
+import org.shellassignment.session.SessionManager;
 
+// Everything the sessions of one process share: users, permissions, the audit log and the caches.
+// Per-user state (working directory, jobs, environment) lives in each Session.
 public class Shell {
     private final CommandParser parser = new CommandParser();
-    private final JobManager jobs = new JobManager();
     private final AuthenticationManager authManager;
     private final PermissionManager permissionManager;
-    private File currentDirectory = new File(System.getProperty("user.dir"));
+    private final ExecutableResolver executableResolver;
+    private final SessionManager sessionManager = new SessionManager(this);
+    private final DirectoryListingCache listingCache = new DirectoryListingCache();
+    // Started by the first du, since it watches every directory it has sized
+    private DirectorySizeCache sizeCache;
+    private final File startDirectory = new File(System.getProperty("user.dir"));
+    private final AuditLog auditLog;
+    private final SessionTokens sessionTokens;
     
-    public File getCurrentDirectory() { return currentDirectory; }
-    public void setCurrentDirectory(File dir) { this.currentDirectory = dir; }
+    public File getStartDirectory() { return startDirectory; }
+    public AuthenticationManager getAuthenticationManager() { return authManager; }
+    public PermissionManager getPermissionManager() { return permissionManager; }
+    public AuditLog getAuditLog() { return auditLog; }
+    public SessionManager getSessionManager() { return sessionManager; }
+    public SessionTokens getSessionTokens() { return sessionTokens; }
+    public DirectoryListingCache getListingCache() { return listingCache; }
+    public ExecutableResolver getExecutableResolver() { return executableResolver; }
+
+    public synchronized DirectorySizeCache getSizeCache() {
+        if (sizeCache == null) {
+            sizeCache = new DirectorySizeCache();
+        }
+        return sizeCache;
+    }
+
+    // The size cache if du has started it, otherwise null
+    public synchronized DirectorySizeCache getStartedSizeCache() { return sizeCache; }
 
     public Shell() {
-        this.authManager = new AuthenticationManager();
-        this.permissionManager = new PermissionManager();
-        BuiltInFeatures.setAuthenticationManager(authManager);
-        BuiltInFeatures.setPermissionManager(permissionManager);
-        initializeSystemPermissions();
+        this.authManager = createAuthenticationManager();
+        // Saved permissions load in the background; the first permission check waits for them
+        this.permissionManager = new PermissionManager(
+                new PermissionStore(PermissionStore.defaultDirectory()), this::initializeSystemPermissions);
+        if (Boolean.getBoolean("mysh.permissions.posix")) {
+            // Paths without a shell-set permission take their owner, group and mode from the real file
+            permissionManager.setPosixSource(
+                    new PosixPermissionSource(Boolean.getBoolean("mysh.permissions.posix.writeThrough")));
+        }
+        this.executableResolver = new ExecutableResolver(permissionManager);
+        AuditLog audit = null;
+        if (!"false".equals(System.getProperty("mysh.audit"))) {
+            try {
+                audit = new AuditLog(PermissionStore.defaultDirectory().resolve("audit"));
+                permissionManager.setAuditLog(audit);
+            } catch (IOException e) {
+                System.err.println("Warning: audit log unavailable: " + e.getMessage());
+            }
+        }
+        this.auditLog = audit;
+        SessionTokens tokens = null;
+        try {
+            tokens = new SessionTokens(PermissionStore.defaultDirectory());
+        } catch (IOException e) {
+            System.err.println("Warning: session tokens unavailable: " + e.getMessage());
+        }
+        this.sessionTokens = tokens;
+    }
+
+    // Accounts persist next to the saved permissions; without a readable file they stay in memory
+    private static AuthenticationManager createAuthenticationManager() {
+        try {
+            return new AuthenticationManager(new UserStore(PermissionStore.defaultDirectory().resolve("users.db")));
+        } catch (IOException e) {
+            System.err.println("Warning: user store unavailable, accounts will not be saved: " + e.getMessage());
+            return new AuthenticationManager();
+        }
     }
 
-    private void initializeSystemPermissions() {
+    // Runs once the saved permissions are loaded, so only fills in what a previous session did not save
+    private void initializeSystemPermissions(PermissionManager permissionManager) {
         // Set up some system files with restricted permissions
-        String currentDir = currentDirectory.getAbsolutePath();
+        String currentDir = startDirectory.getAbsolutePath();
         
         // System files that only admin can modify
-        permissionManager.setFilePermission(currentDir + "/pom.xml", 
-            permissionManager.createSystemFilePermission());
-        permissionManager.setFilePermission(currentDir + "/README.md", 
-            permissionManager.createSystemFilePermission());
+        for (String systemFile : new String[]{currentDir + "/pom.xml", currentDir + "/README.md"}) {
+            if (permissionManager.getFilePermission(systemFile) == null) {
+                permissionManager.setFilePermission(systemFile, permissionManager.createSystemFilePermission());
+            }
+        }
         
+        // Directories on PATH are admin-owned and executable by everyone, so their binaries inherit that.
+        // Kept in memory only: they follow this run's PATH, not whatever PATH the first run had.
+        for (String directory : ExecutableResolver.searchPathOf(System.getenv("PATH"))) {
+            String path = new File(directory).getAbsoluteFile().toPath().normalize().toString();
+            permissionManager.setTransientPermission(path, new FilePermission("admin", "admin", 0755));
+        }
+
         // Set user groups for authentication users
-        permissionManager.setUserGroup("admin", "admin");
-        permissionManager.setUserGroup("user1", "users");
-        permissionManager.setUserGroup("user2", "users");
+        String[][] defaultGroups = {{"admin", "admin"}, {"user1", "users"}, {"user2", "users"}};
+        for (String[] userGroup : defaultGroups) {
+            if (!permissionManager.hasUserGroup(userGroup[0])) {
+                permissionManager.setUserGroup(userGroup[0], userGroup[1]);
+            }
+        }
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            // Serves sessions over a local socket instead of this console
+            ShellDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         new Shell().run();
     }
 
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+        Session session = null;
+        // A script passes a session token instead of answering the prompts; only the first login uses it
+        String token = SessionTokens.fromEnvironment();
+        ConsoleInput in = ConsoleInput.get();
+        try {
             while (true) {
-                // Check if user is logged in, if not, require authentication
-                if (!authManager.isLoggedIn()) {
-                    if (!authManager.login()) {
+                // A closed session (logout) means the next user has to authenticate
+                if (session == null || !session.isOpen()) {
+                    User user;
+                    if (token != null && sessionTokens != null) {
+                        user = sessionTokens.verify(token, authManager);
+                        if (user == null) {
+                            System.out.println("Session token rejected. Exiting...");
+                            return;
+                        }
+                    } else {
+                        user = authManager.login();
+                    }
+                    if (user == null) {
                         System.out.println("Authentication failed. Exiting...");
                         return;
                     }
+                    session = sessionManager.open(user, startDirectory);
+                    if (session == null) {
+                        System.out.println("Too many open sessions. Exiting...");
+                        return;
+                    }
+                    if (token != null) {
+                        session.addToken(token);
+                        token = null;
+                    }
                 }
 
                 // Show current user in prompt
-                String prompt = authManager.getCurrentUser().getUsername() + "@mysh> ";
+                String prompt = session.getUsername() + "@mysh> ";
                 System.out.print(prompt);
                 
                 String line = in.readLine();
-                if (line == null || line.trim().isEmpty()) continue;
-                
-                // Check if the command contains pipes
-                if (line.contains("|")) {
-                    CommandParser.PipedCommands pipedCommands = parser.parsePipedCommands(line);
-                    PipeManager.executePipedCommands(pipedCommands, this, jobs);
-                } else {
-                    CommandParser.ParsedCommand cmd = parser.parse(line);
-
-                    if (BuiltInFeatures.isBuiltIn(cmd.name)) {
-                        BuiltInFeatures.execute(cmd, this, jobs);
-                    } else {
-                        launchExternal(cmd);
-                    }
+                if (line == null) {
+                    return;
+                }
+                execute(line, session);
+                if (session.isExitRequested()) {
+                    // Only the console shell ends the process; a daemon session's exit ends just that session
+                    System.exit(session.getExitStatus());
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Error reading input: " + e.getMessage());
+        } finally {
+            if (session != null) {
+                sessionManager.close(session);
+            }
         }
     }
 
-    private void launchExternal(CommandParser.ParsedCommand cmd) {
-        ProcessBuilder pb = new ProcessBuilder(cmd.tokens());
-        pb.directory(this.getCurrentDirectory());
-        try {
-            Process proc = pb.start();
-            if (cmd.background) {
-                int jobId = jobs.addJob(proc, cmd.original);
-                long pid = JobManager.getPid(proc);
-                System.out.printf("[%d] %d%n", jobId, pid);
+    // Runs one command line on behalf of the session
+    public void execute(String line, Session session) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        session.touch();
+        session.setLastStatus(0);
+        // Check if the command contains pipes
+        if (line.contains("|")) {
+            CommandParser.PipedCommands pipedCommands = parser.parsePipedCommands(line);
+            PipeManager.executePipedCommands(pipedCommands, session);
+        } else {
+            CommandParser.ParsedCommand cmd = parser.parse(line);
+
+            if (BuiltInFeatures.isBuiltIn(cmd.name)) {
+                BuiltInFeatures.execute(cmd, session);
             } else {
-                proc.waitFor();
+                PipeManager.launchExternal(cmd, session);
             }
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error launching: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    // The binary the command runs from if the session's user may execute it; otherwise reports why not
+    // and returns null
+    String authorizeLaunch(CommandParser.ParsedCommand cmd, Session session) {
+        ExecutableResolver.Launch launch = executableResolver.check(cmd.name, session.getWorkingDirectory(),
+                session.getUsername(), session.getEnv("PATH"));
+        switch (launch.status) {
+            case NOT_FOUND:
+                System.err.println(cmd.name + ": command not found");
+                return null;
+            case DENIED:
+                System.err.println(cmd.name + ": Permission denied");
+                return null;
+            default:
+                return launch.path;
+        }
+    }
+
+    // A process builder for the authorized binary, in the session's directory and environment
+    static ProcessBuilder processBuilder(CommandParser.ParsedCommand cmd, String binary, Session session) {
+        List<String> tokens = cmd.tokens();
+        tokens.set(0, binary);
+        ProcessBuilder pb = new ProcessBuilder(tokens);
+        pb.directory(session.getWorkingDirectory());
+        pb.environment().putAll(session.getEnvironmentOverrides());
+        return pb;
+    }
+}
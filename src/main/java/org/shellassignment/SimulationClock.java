@@ -0,0 +1,37 @@
+package org.shellassignment;
+
+// Time for the scheduler simulations. A virtual clock jumps straight to the end of each event (a time
+// slice, a process running to completion), so a simulation runs as fast as its bookkeeping allows. A
+// paced clock also sleeps for each time unit it advances, for demos that should be watched.
+public final class SimulationClock {
+    private final int millisPerUnit;
+    private long now;
+
+    private SimulationClock(int millisPerUnit) {
+        this.millisPerUnit = millisPerUnit;
+    }
+
+    public static SimulationClock virtual() {
+        return new SimulationClock(0);
+    }
+
+    // Advancing one unit takes millisPerUnit of wall time; 0 or less is the same as virtual()
+    public static SimulationClock paced(int millisPerUnit) {
+        return new SimulationClock(Math.max(0, millisPerUnit));
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public boolean isPaced() {
+        return millisPerUnit > 0;
+    }
+
+    public void advance(int units) throws InterruptedException {
+        if (millisPerUnit > 0) {
+            Thread.sleep((long) units * millisPerUnit);
+        }
+        now += units;
+    }
+}
@@ -0,0 +1,422 @@
+package org.shellassignment.audit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.shellassignment.permissions.FilePermission;
+
+// Records permission checks, permission changes and commands without slowing the caller. Producers claim a
+// slot in a lock-free ring, fill it and publish it; a background thread drains the ring in order into
+// fixed-size binary records. When the ring is full the record is dropped and counted rather than waited for.
+//
+// File format: a sequence of 24-byte slots
+//   long time, int user, int subject, int extra, byte type, byte result, short unused
+// Users, paths, commands and chown targets are stored as IDs. A NAME slot (subject = id, extra = byte
+// length) followed by the UTF-8 bytes padded to whole slots defines an ID the first time it is used in a
+// scope. A RESET slot starts a new scope; one is written when the writer starts and at the top of every file.
+// The current file is audit.log; full files are rotated to audit.log.<n> with n increasing.
+//
+// Shells sharing a data directory share these files. Each batch is written holding a lock on audit.log.lock;
+// a writer that finds the log rotated or appended to by another shell since its last batch reopens it or
+// starts a new scope, so every record is read back with the names of the shell that wrote it.
+public class AuditLog {
+    public static final byte READ = 1;
+    public static final byte WRITE = 2;
+    public static final byte EXECUTE = 3;
+    public static final byte CHMOD = 4;
+    public static final byte CHOWN = 5;
+    public static final byte COMMAND = 6;
+    static final byte RESET = 0x7E;
+    static final byte NAME = 0x7F;
+
+    static final int RECORD_SIZE = 24;
+    static final String LOG_FILE = "audit.log";
+    private static final int DEFAULT_RING_SIZE = 1 << 16;
+    private static final int NAME_LIMIT = 1 << 17;
+    private static final int MAX_NAME_BYTES = 4096;
+
+    // One generation of interned strings. When it fills up a new one is started; a retired one is kept
+    // until every record that may use its ids has been written.
+    private static final class Names {
+        final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        final Map<Integer, String> strings = new ConcurrentHashMap<>();
+        // Producers between interning in this generation and publishing their record
+        final LongAdder active = new LongAdder();
+        // Set by the writer once no producer is left: records from this generation all come before it
+        long releasedAt = -1;
+    }
+
+    private final Path directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    private final int mask;
+    private final long[] times;
+    private final int[] users;
+    private final int[] subjects;
+    private final int[] extras;
+    private final byte[] types;
+    private final byte[] results;
+    // Slot i holds sequence s once published[i] == s + 1
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private volatile long written;
+    private final LongAdder dropped = new LongAdder();
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private volatile Names names = new Names();
+    private final List<Names> retiredNames = new CopyOnWriteArrayList<>();
+
+    // Owned by the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+    private final BitSet defined = new BitSet();
+    private final FileChannel lockChannel;
+    private FileChannel out;
+    // Identifies the file out writes to, to notice when another shell rotates it away
+    private Object fileKey;
+    // Where this writer expects the log to end: its own writes since the last batch
+    private long fileBytes;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public AuditLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.maxFileBytes = Long.getLong("mysh.audit.maxBytes", 16L * 1024 * 1024);
+        this.maxFiles = Integer.getInteger("mysh.audit.maxFiles", 8);
+
+        int size = Integer.highestOneBit(Math.max(1024, Integer.getInteger("mysh.audit.ringSize", DEFAULT_RING_SIZE)));
+        mask = size - 1;
+        times = new long[size];
+        users = new int[size];
+        subjects = new int[size];
+        extras = new int[size];
+        types = new byte[size];
+        results = new byte[size];
+        published = new AtomicLongArray(size);
+
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOG_FILE + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = lockChannel.lock();
+        try {
+            openLog();
+        } finally {
+            lock.release();
+        }
+        writeReset();
+
+        writer = new Thread(this::drain, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public void permissionCheck(String username, String path, byte operation, boolean allowed) {
+        append(operation, username, path, 0, null, allowed);
+    }
+
+    // changed is null when the change was refused
+    public void permissionChange(byte type, String username, String path, FilePermission changed) {
+        if (changed != null && type == CHOWN) {
+            append(type, username, path, 0, changed.getOwner(), true);
+        } else {
+            append(type, username, path, changed != null ? changed.getMode() : 0, null, changed != null);
+        }
+    }
+
+    public void command(String username, String line) {
+        append(COMMAND, username, line, 0, null, true);
+    }
+
+    // extraName, when given, is interned and stored as the extra field
+    private void append(byte type, String username, String subject, int extra, String extraName, boolean result) {
+        Names generation = pin();
+        try {
+            int user = intern(generation, username);
+            int subjectId = intern(generation, subject);
+            if (extraName != null) {
+                extra = intern(generation, extraName);
+            }
+            long sequence;
+            do {
+                sequence = head.get();
+                if (sequence - tail > mask) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!head.compareAndSet(sequence, sequence + 1));
+
+            int slot = (int) sequence & mask;
+            times[slot] = System.currentTimeMillis();
+            users[slot] = user;
+            subjects[slot] = subjectId;
+            extras[slot] = extra;
+            types[slot] = type;
+            results[slot] = (byte) (result ? 1 : 0);
+            published.lazySet(slot, sequence + 1);
+        } finally {
+            generation.active.decrement();
+        }
+    }
+
+    // The current generation, marked in use until the record is published; starts a new one when it is full
+    private Names pin() {
+        while (true) {
+            Names current = names;
+            if (current.ids.size() >= NAME_LIMIT) {
+                synchronized (this) {
+                    if (names == current) {
+                        retiredNames.add(current);
+                        names = new Names();
+                    }
+                }
+                continue;
+            }
+            current.active.increment();
+            // Retired in between: the writer may already have decided nobody uses it
+            if (names == current) {
+                return current;
+            }
+            current.active.decrement();
+        }
+    }
+
+    private int intern(Names generation, String value) {
+        if (value == null) {
+            value = "";
+        }
+        Integer id = generation.ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        int assigned = nextId.getAndIncrement();
+        // strings first, so the writer can resolve any id it finds in a published slot
+        generation.strings.put(assigned, value);
+        id = generation.ids.putIfAbsent(value, assigned);
+        return id != null ? id : assigned;
+    }
+
+    private String nameOf(int id) {
+        String value = names.strings.get(id);
+        for (int i = retiredNames.size() - 1; value == null && i >= 0; i--) {
+            value = retiredNames.get(i).strings.get(id);
+        }
+        return value != null ? value : "?";
+    }
+
+    // Drops retired generations no unwritten record can refer to; called by the writer after each batch
+    private void releaseNames() {
+        for (Names retired : retiredNames) {
+            if (retired.releasedAt < 0 && retired.active.sum() == 0) {
+                // Every producer that interned in it has claimed its slot by now
+                retired.releasedAt = head.get();
+            }
+            if (retired.releasedAt >= 0 && written >= retired.releasedAt) {
+                retiredNames.remove(retired);
+            }
+        }
+    }
+
+    // Blocks until everything appended before the call is on disk (or the timeout passes)
+    public void flush(long timeoutMillis) {
+        long target = head.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (written < target && System.nanoTime() < deadline && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public void close() {
+        flush(2000);
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (running || tail < head.get()) {
+                long next = tail;
+                int slot = (int) next & mask;
+                if (published.get(slot) != next + 1) {
+                    releaseNames();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+                    continue;
+                }
+                FileLock lock = lockChannel.lock();
+                try {
+                    catchUp();
+                    while (published.get(slot) == next + 1) {
+                        writeRecord(slot);
+                        next++;
+                        // Hand slots back in batches so producers do not wait on a full ring
+                        if ((next & 1023) == 0) {
+                            tail = next;
+                        }
+                        slot = (int) next & mask;
+                    }
+                    tail = next;
+                    flushBuffer();
+                } finally {
+                    lock.release();
+                }
+                written = next;
+                releaseNames();
+            }
+            if (buffer.position() > 0) {
+                FileLock lock = lockChannel.lock();
+                try {
+                    catchUp();
+                    flushBuffer();
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: audit log disabled: " + e.getMessage());
+        } finally {
+            try {
+                out.close();
+                lockChannel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    // Called holding the lock before a batch: follows a rotation by another shell, and starts a new scope if
+    // another shell wrote since this one's last batch, as the names this one defined no longer apply there
+    private void catchUp() throws IOException {
+        Object current = currentFileKey();
+        if (current == null || !current.equals(fileKey)) {
+            out.close();
+            openLog();
+            writeReset();
+        } else if (out.size() != fileBytes) {
+            fileBytes = out.size();
+            writeReset();
+        }
+    }
+
+    private Object currentFileKey() {
+        try {
+            return Files.readAttributes(directory.resolve(LOG_FILE), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeRecord(int slot) throws IOException {
+        // Rotate only between records, so a NAME and its bytes never straddle two files
+        if (fileBytes + buffer.position() >= maxFileBytes) {
+            flushBuffer();
+            rotate();
+        }
+        byte type = types[slot];
+        define(users[slot]);
+        define(subjects[slot]);
+        if (type == CHOWN && results[slot] != 0) {
+            define(extras[slot]);
+        }
+        putSlot(times[slot], users[slot], subjects[slot], extras[slot], type, results[slot]);
+    }
+
+    private void define(int id) throws IOException {
+        if (defined.get(id)) {
+            return;
+        }
+        byte[] bytes = nameOf(id).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_NAME_BYTES);
+        putSlot(0, 0, id, length, NAME, (byte) 0);
+        int padded = (length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+        ensureRoom(padded);
+        buffer.put(bytes, 0, length);
+        for (int i = length; i < padded; i++) {
+            buffer.put((byte) 0);
+        }
+        defined.set(id);
+    }
+
+    private void writeReset() throws IOException {
+        putSlot(System.currentTimeMillis(), 0, 0, 0, RESET, (byte) 0);
+        defined.clear();
+    }
+
+    private void putSlot(long time, int user, int subject, int extra, byte type, byte result) throws IOException {
+        ensureRoom(RECORD_SIZE);
+        buffer.putLong(time).putInt(user).putInt(subject).putInt(extra).put(type).put(result).putShort((short) 0);
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileBytes += out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Called holding the lock
+    private void rotate() throws IOException {
+        out.close();
+        List<Path> rotated = AuditReader.rotatedLogs(directory);
+        int number = rotated.isEmpty() ? 1 : AuditReader.rotationNumber(rotated.get(rotated.size() - 1)) + 1;
+        Files.move(directory.resolve(LOG_FILE), directory.resolve(LOG_FILE + "." + number),
+                StandardCopyOption.ATOMIC_MOVE);
+        rotated = AuditReader.rotatedLogs(directory);
+        for (int i = 0; i < rotated.size() - (maxFiles - 1); i++) {
+            Files.deleteIfExists(rotated.get(i));
+        }
+        openLog();
+        writeReset();
+    }
+
+    private void openLog() throws IOException {
+        out = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // A partial slot left by a crash would misalign everything after it
+        long size = out.size();
+        if (size % RECORD_SIZE != 0) {
+            out.truncate(size - size % RECORD_SIZE);
+        }
+        fileBytes = out.size();
+        fileKey = currentFileKey();
+    }
+}
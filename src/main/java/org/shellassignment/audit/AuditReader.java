@@ -0,0 +1,149 @@
+package org.shellassignment.audit;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.shellassignment.permissions.FilePermission;
+
+// Scans the audit files written by AuditLog, oldest first
+public class AuditReader {
+    private AuditReader() {
+    }
+
+    // Passes every matching record to out as a formatted line, oldest first. user and pathPrefix may be
+    // null to match anything; a path filter leaves out command records, which have no path.
+    public static int query(Path directory, String user, String pathPrefix, long from, long to,
+                            Consumer<String> out) throws IOException {
+        List<Path> files = rotatedLogs(directory);
+        Path current = directory.resolve(AuditLog.LOG_FILE);
+        if (Files.exists(current)) {
+            files.add(current);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        int matched = 0;
+        for (Path file : files) {
+            matched += scan(file, user, pathPrefix, from, to, format, out);
+        }
+        return matched;
+    }
+
+    private static int scan(Path file, String user, String pathPrefix, long from, long to,
+                            SimpleDateFormat format, Consumer<String> out) throws IOException {
+        int matched = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Map<Integer, String> names = new HashMap<>();
+            while (in.remaining() >= AuditLog.RECORD_SIZE) {
+                long time = in.getLong();
+                int userId = in.getInt();
+                int subjectId = in.getInt();
+                int extra = in.getInt();
+                byte type = in.get();
+                boolean result = in.get() != 0;
+                in.getShort();
+
+                if (type == AuditLog.RESET) {
+                    names.clear();
+                    continue;
+                }
+                if (type == AuditLog.NAME) {
+                    int padded = (extra + AuditLog.RECORD_SIZE - 1) / AuditLog.RECORD_SIZE * AuditLog.RECORD_SIZE;
+                    if (extra < 0 || in.remaining() < padded) {
+                        break;
+                    }
+                    byte[] bytes = new byte[extra];
+                    in.get(bytes);
+                    in.position(in.position() + padded - extra);
+                    names.put(subjectId, new String(bytes, StandardCharsets.UTF_8));
+                    continue;
+                }
+
+                if (time < from || time > to) {
+                    continue;
+                }
+                String username = names.getOrDefault(userId, "?");
+                if (user != null && !user.equals(username)) {
+                    continue;
+                }
+                String subject = names.getOrDefault(subjectId, "?");
+                if (pathPrefix != null && (type == AuditLog.COMMAND || !isUnder(subject, pathPrefix))) {
+                    continue;
+                }
+                out.accept(format(format, time, username, type, result, subject, extra, names));
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private static boolean isUnder(String path, String prefix) {
+        return path.startsWith(prefix) && (path.length() == prefix.length() || prefix.endsWith("/")
+                || path.charAt(prefix.length()) == '/');
+    }
+
+    private static String format(SimpleDateFormat format, long time, String username, byte type, boolean result,
+                                 String subject, int extra, Map<Integer, String> names) {
+        StringBuilder line = new StringBuilder(format.format(new Date(time))).append(' ').append(username).append(' ');
+        switch (type) {
+            case AuditLog.READ:
+            case AuditLog.WRITE:
+            case AuditLog.EXECUTE:
+                line.append(type == AuditLog.READ ? "read" : type == AuditLog.WRITE ? "write" : "execute")
+                        .append(result ? " allowed " : " denied ").append(subject);
+                break;
+            case AuditLog.CHMOD:
+                line.append("chmod").append(result ? " ok " : " denied ").append(subject);
+                if (result) {
+                    line.append(' ').append(FilePermission.modeString(extra));
+                }
+                break;
+            case AuditLog.CHOWN:
+                line.append("chown").append(result ? " ok " : " denied ").append(subject);
+                if (result) {
+                    line.append(" -> ").append(names.getOrDefault(extra, "?"));
+                }
+                break;
+            case AuditLog.COMMAND:
+                line.append("command ").append(subject);
+                break;
+            default:
+                line.append("unknown(").append(type).append(") ").append(subject);
+        }
+        return line.toString();
+    }
+
+    static List<Path> rotatedLogs(Path directory) throws IOException {
+        List<Path> rotated = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, AuditLog.LOG_FILE + ".*")) {
+            for (Path candidate : stream) {
+                if (rotationNumber(candidate) > 0) {
+                    rotated.add(candidate);
+                }
+            }
+        }
+        Collections.sort(rotated, (a, b) -> Integer.compare(rotationNumber(a), rotationNumber(b)));
+        return rotated;
+    }
+
+    static int rotationNumber(Path rotated) {
+        String name = rotated.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(AuditLog.LOG_FILE.length() + 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+}
@@ -1,66 +1,287 @@
 package org.shellassignment.auth;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.shellassignment.console.ConsoleInput;
 
+// The user accounts shared by every session. Who is logged in is tracked per session, so each
+// operation is given the user acting on it. Accounts live in a UserStore when one is given and are
+// read from it on first use; passwords are kept only as salted hashes, checked on the hasher's pool.
+// Other shells may change the store, so whenever it has been rewritten the accounts held here are
+// brought up to date from it, and ones deleted there are dropped. A user keeps its User object across
+// this, so sessions see the change; a new password is a new credential object, which SessionTokens
+// notices.
+//
+// Failed logins are limited per username and per source before any hashing happens, and enough wrong
+// passwords in a row lock the account for a while (mysh.auth.lockoutAfter, mysh.auth.lockoutSeconds);
+// a lockoutAfter of 0 or less turns lockout off.
+// Refusals are decided on the caller's thread from a table lookup, so guessing costs the shell nothing.
 public class AuthenticationManager {
+    public static final String CONSOLE_SOURCE = "console";
+
     private final Map<String, User> users;
-    private User currentUser;
-    private final Scanner scanner;
+    private final UserStore store;
+    private final PasswordHasher hasher;
+    private final LoginRateLimiter userLimiter;
+    private final LoginRateLimiter sourceLimiter;
+    private final int lockoutAfter = Integer.getInteger("mysh.auth.lockoutAfter", 10);
+    private final long lockoutMillis = Long.getLong("mysh.auth.lockoutSeconds", 300) * 1000;
+    private final LongAdder lockoutRefusals = new LongAdder();
+    private final LongAdder overloadRefusals = new LongAdder();
+    // The store generation the cached users were last checked against
+    private volatile long syncedGeneration = -1;
 
+    // Accounts kept in memory only, lost on exit
     public AuthenticationManager() {
-        this.users = new HashMap<>();
-        this.scanner = new Scanner(System.in);
+        this(null);
+    }
+
+    public AuthenticationManager(UserStore store) {
+        this(store, new PasswordHasher());
+    }
+
+    public AuthenticationManager(UserStore store, PasswordHasher hasher) {
+        this.users = new ConcurrentHashMap<>();
+        this.store = store;
+        this.hasher = hasher;
+        int tableSize = Integer.getInteger("mysh.auth.limiterSlots", 4096);
+        this.userLimiter = new LoginRateLimiter("per user", Integer.getInteger("mysh.auth.userBurst", 5),
+                Integer.getInteger("mysh.auth.userPerMinute", 5), tableSize);
+        this.sourceLimiter = new LoginRateLimiter("per source", Integer.getInteger("mysh.auth.sourceBurst", 20),
+                Integer.getInteger("mysh.auth.sourcePerMinute", 30), tableSize);
         initializeDefaultUsers();
     }
 
     private void initializeDefaultUsers() {
-        // Create default admin user
-        User adminUser = new User("admin", "1234", User.UserRole.ADMIN);
+        // Create default admin user, only when there are no accounts at all yet
+        if (store != null && store.count() > 0) {
+            return;
+        }
+        User adminUser = new User("admin", hasher.hash("1234"), User.UserRole.ADMIN);
         users.put("admin", adminUser);
+        create(adminUser);
+    }
+
+    public PasswordHasher getHasher() {
+        return hasher;
     }
 
-    public boolean login() {
+    // Prompts on the console; returns the user, or null if the credentials were wrong or input ended
+    public User login() {
+        ConsoleInput input = ConsoleInput.get();
         System.out.println("=== Shell Authentication ===");
-        System.out.print("Username: ");
-        String username = scanner.nextLine().trim();
-        
-        System.out.print("Password: ");
-        String password = scanner.nextLine().trim();
+        String username = input.readLine("Username: ");
+        if (username == null) {
+            return null;
+        }
+        username = username.trim();
 
-        User user = users.get(username);
-        if (user != null && user.getPassword().equals(password) && user.isActive()) {
-            currentUser = user;
+        String password = input.readLine("Password: ");
+        if (password == null) {
+            return null;
+        }
+        password = password.trim();
+
+        User user = authenticate(username, password);
+        if (user != null) {
             System.out.println("Welcome, " + username + " (" + user.getRole().getRoleName() + ")!");
-            return true;
         } else {
             System.out.println("Invalid username or password!");
-            return false;
         }
+        return user;
+    }
+
+    // Blocks the caller until the hash has been checked; see authenticateAsync
+    public User authenticate(String username, String password) {
+        return authenticateAsync(username, password, CONSOLE_SOURCE).join();
+    }
+
+    public User authenticate(String username, String password, String source) {
+        return authenticateAsync(username, password, source).join();
+    }
+
+    // Checks the password on the hasher's pool; completes with the user, or null if the credentials
+    // were wrong, the account is inactive or locked, or the username or source has failed too often.
+    // The source is where the attempt came from, such as a client address.
+    public CompletableFuture<User> authenticateAsync(String username, String password, String source) {
+        // Tokens are reserved before any hashing, so concurrent attempts cannot all pass on the same one
+        if (!sourceLimiter.tryAcquire(source)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!userLimiter.tryAcquire(username)) {
+            sourceLimiter.refund(source);
+            return CompletableFuture.completedFuture(null);
+        }
+        User known = getUser(username);
+        if (known != null && known.isLockedOut(System.currentTimeMillis())) {
+            refund(username, source);
+            lockoutRefusals.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return hasher.submit(() -> verifyCredentials(username, password, source));
+        } catch (RejectedExecutionException e) {
+            refund(username, source);
+            overloadRefusals.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // For an attempt that succeeded or was refused without checking the password
+    private void refund(String username, String source) {
+        sourceLimiter.refund(source);
+        userLimiter.refund(username);
     }
 
-    public void logout() {
-        if (currentUser != null) {
-            System.out.println("Goodbye, " + currentUser.getUsername() + "!");
-            currentUser = null;
+    private User verifyCredentials(String username, String password, String source) {
+        User user = getUser(username);
+        if (user == null) {
+            hasher.verifyUnknown(password);
+            recordFailure(null, username);
+            return null;
+        }
+        PasswordHash credential = user.getCredential();
+        if (!hasher.verify(password, credential)) {
+            recordFailure(user, username);
+            return null;
+        }
+        refund(username, source);
+        if (!user.isActive()) {
+            return null;
         }
+        if (user.getFailedLogins() > 0) {
+            userLimiter.reset(username);
+        }
+        // Only now is the plaintext at hand, so this is where a hash made at an old cost is upgraded
+        PasswordHash rehashed = hasher.needsRehash(credential) ? hasher.hash(password) : null;
+        if (user.getLockedUntil() != 0 || rehashed != null) {
+            modify(username, user, changed -> {
+                changed.clearLockout();
+                // Unless the password was changed meanwhile
+                if (rehashed != null && changed.getCredential() == credential) {
+                    changed.setCredential(rehashed);
+                }
+            });
+        } else {
+            user.clearLockout();
+        }
+        return user;
     }
 
-    public User getCurrentUser() {
-        return currentUser;
+    // The failed attempt keeps the limiter tokens it reserved; this counts it against the account
+    private void recordFailure(User user, String username) {
+        if (user == null || lockoutAfter <= 0) {
+            return;
+        }
+        int failures = user.recordFailedLogin();
+        // At or past the limit rather than a multiple of it, so a limit lowered since the count began
+        // still applies; the count starts again from the lockout
+        if (failures >= lockoutAfter) {
+            // Saved so that restarting the shell does not lift it
+            modify(username, user, locked -> {
+                locked.clearLockout();
+                locked.lockUntil(System.currentTimeMillis() + lockoutMillis);
+            });
+            System.err.println("Warning: account '" + username + "' locked for " + lockoutMillis / 1000
+                    + "s after " + failures + " failed logins");
+        }
     }
 
-    public boolean isLoggedIn() {
-        return currentUser != null;
+    public User getUser(String username) {
+        if (username == null) {
+            return null;
+        }
+        syncWithStore();
+        User user = users.get(username);
+        if (user == null && store != null) {
+            User stored = store.find(username);
+            if (stored != null) {
+                User raced = users.putIfAbsent(username, stored);
+                user = raced != null ? raced : stored;
+            }
+        }
+        return user;
     }
 
-    public boolean isAdmin() {
-        return currentUser != null && currentUser.isAdmin();
+    // Re-reads the cached users if the store has been written since they were last checked
+    private void syncWithStore() {
+        if (store == null || store.generation() == syncedGeneration) {
+            return;
+        }
+        synchronized (users) {
+            long generation = store.generation();
+            if (generation == syncedGeneration) {
+                return;
+            }
+            for (Map.Entry<String, User> entry : users.entrySet()) {
+                User stored = store.find(entry.getKey());
+                if (stored == null) {
+                    users.remove(entry.getKey(), entry.getValue());
+                } else {
+                    update(entry.getValue(), stored);
+                }
+            }
+            syncedGeneration = generation;
+        }
     }
 
-    public boolean createUser(String username, String password, User.UserRole role) {
-        if (!isAdmin()) {
+    private static void update(User user, User stored) {
+        if (!stored.getCredential().sameAs(user.getCredential())) {
+            user.setCredential(stored.getCredential());
+        }
+        user.setRole(stored.getRole());
+        user.setActive(stored.isActive());
+        // Failures short of a lockout are only counted in memory, so a count is taken from the store
+        // only along with a lockout set or lifted there
+        if (stored.getLockedUntil() != user.getLockedUntil()) {
+            user.restoreLockout(stored.getFailedLogins(), stored.getLockedUntil());
+        }
+    }
+
+    // Saves a new account to the store, if there is one
+    private void create(User user) {
+        save(all -> all.put(user.getUsername(), user));
+    }
+
+    // Changes an account and writes it through to the store, if there is one. The sync lock is held
+    // throughout, so a sync cannot undo the change before it is saved; an account another shell has
+    // deleted meanwhile is not brought back.
+    private void modify(String username, User user, Consumer<User> change) {
+        synchronized (users) {
+            change.accept(user);
+            save(all -> {
+                if (all.replace(username, user) == null) {
+                    users.remove(username, user);
+                }
+            });
+        }
+    }
+
+    private void save(Consumer<Map<String, User>> change) {
+        if (store == null) {
+            return;
+        }
+        synchronized (users) {
+            try {
+                store.update(change);
+            } catch (IOException e) {
+                System.err.println("Warning: could not save users to " + store.getFile() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isAdmin(User actor) {
+        return actor != null && actor.isAdmin();
+    }
+
+    public boolean createUser(User actor, String username, String password, User.UserRole role) {
+        if (!isAdmin(actor)) {
             System.out.println("Error: Only admin users can create new users.");
             return false;
         }
@@ -75,19 +296,22 @@ public class AuthenticationManager {
             return false;
         }
 
-        if (users.containsKey(username)) {
+        if (getUser(username.trim()) != null) {
             System.out.println("Error: User '" + username + "' already exists.");
             return false;
         }
-
-        User newUser = new User(username.trim(), password.trim(), role);
-        users.put(username.trim(), newUser);
+        User newUser = new User(username.trim(), hasher.hash(password.trim()), role);
+        if (users.putIfAbsent(username.trim(), newUser) != null) {
+            System.out.println("Error: User '" + username + "' already exists.");
+            return false;
+        }
+        create(newUser);
         System.out.println("User '" + username + "' created successfully with role: " + role.getRoleName());
         return true;
     }
 
-    public boolean deleteUser(String username) {
-        if (!isAdmin()) {
+    public boolean deleteUser(User actor, String username) {
+        if (!isAdmin(actor)) {
             System.out.println("Error: Only admin users can delete users.");
             return false;
         }
@@ -97,23 +321,27 @@ public class AuthenticationManager {
             return false;
         }
 
-        if (!users.containsKey(username)) {
+        if (getUser(username) == null) {
             System.out.println("Error: User '" + username + "' does not exist.");
             return false;
         }
 
-        if (username.equals(currentUser.getUsername())) {
+        if (username.equals(actor.getUsername())) {
             System.out.println("Error: Cannot delete your own account.");
             return false;
         }
 
-        User deletedUser = users.remove(username);
+        if (users.remove(username) == null) {
+            System.out.println("Error: User '" + username + "' does not exist.");
+            return false;
+        }
+        save(all -> all.remove(username));
         System.out.println("User '" + username + "' deleted successfully.");
         return true;
     }
 
-    public boolean changePassword(String username, String newPassword) {
-        if (!isAdmin() && !username.equals(currentUser.getUsername())) {
+    public boolean changePassword(User actor, String username, String newPassword) {
+        if (!isAdmin(actor) && (actor == null || !actor.getUsername().equals(username))) {
             System.out.println("Error: You can only change your own password.");
             return false;
         }
@@ -128,43 +356,80 @@ public class AuthenticationManager {
             return false;
         }
 
-        User user = users.get(username);
+        User user = getUser(username);
         if (user == null) {
             System.out.println("Error: User '" + username + "' does not exist.");
             return false;
         }
 
-        user.setPassword(newPassword.trim());
+        PasswordHash credential = hasher.hash(newPassword.trim());
+        modify(username, user, changed -> changed.setCredential(credential));
         System.out.println("Password for user '" + username + "' changed successfully.");
         return true;
     }
 
-    public void listUsers() {
-        if (!isAdmin()) {
+    // Lifts a lockout before it runs out
+    public boolean unlockUser(User actor, String username) {
+        if (!isAdmin(actor)) {
+            System.out.println("Error: Only admin users can unlock users.");
+            return false;
+        }
+
+        User user = getUser(username);
+        if (user == null) {
+            System.out.println("Error: User '" + username + "' does not exist.");
+            return false;
+        }
+
+        userLimiter.reset(username);
+        modify(username, user, User::clearLockout);
+        System.out.println("User '" + username + "' unlocked.");
+        return true;
+    }
+
+    public boolean listUsers(User actor) {
+        if (!isAdmin(actor)) {
             System.out.println("Error: Only admin users can list users.");
-            return;
+            return false;
         }
 
         System.out.println("=== User List ===");
         System.out.printf("%-15s %-10s %-8s%n", "Username", "Role", "Status");
         System.out.println("--------------------------------");
         
-        for (User user : users.values()) {
-            String status = user.isActive() ? "Active" : "Inactive";
+        Map<String, User> all = new TreeMap<>();
+        if (store != null) {
+            for (User stored : store.readAll()) {
+                all.put(stored.getUsername(), stored);
+            }
+        }
+        all.putAll(users);
+        long now = System.currentTimeMillis();
+        for (User user : all.values()) {
+            String status = !user.isActive() ? "Inactive" : user.isLockedOut(now) ? "Locked" : "Active";
             System.out.printf("%-15s %-10s %-8s%n", 
                 user.getUsername(), 
                 user.getRole().getRoleName(), 
                 status);
         }
+        return true;
     }
 
-    public void showCurrentUser() {
-        if (currentUser != null) {
-            System.out.println("Current User: " + currentUser.getUsername());
-            System.out.println("Role: " + currentUser.getRole().getRoleName());
-            System.out.println("Status: " + (currentUser.isActive() ? "Active" : "Inactive"));
+    public void showUser(User user) {
+        if (user != null) {
+            System.out.println("Current User: " + user.getUsername());
+            System.out.println("Role: " + user.getRole().getRoleName());
+            System.out.println("Status: " + (user.isActive() ? "Active" : "Inactive"));
         } else {
             System.out.println("No user currently logged in.");
         }
     }
-} 
\ No newline at end of file
+
+    public void printStatistics() {
+        System.out.println("=== Login Rate Limits ===");
+        userLimiter.printStatistics();
+        sourceLimiter.printStatistics();
+        System.out.println("Refused while locked: " + lockoutRefusals.sum());
+        System.out.println("Refused with verification queue full: " + overloadRefusals.sum());
+    }
+}
@@ -0,0 +1,117 @@
+package org.shellassignment.auth;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Measures how many logins per second the verification pool sustains at each hashing cost, with
+// many callers logging in at once, then how long a large user file takes to write, open and search.
+// Run with:
+//   java -cp target/classes org.shellassignment.auth.LoginBenchmark [iterations...]
+// -Dmysh.auth.verifyThreads sizes the pool as it would in the shell; -Dmysh.bench.seconds and
+// -Dmysh.bench.users set the run length per cost and the size of the user file.
+public class LoginBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] costs = args.length > 0 ? new int[args.length] : new int[]{1_000, 10_000, 100_000, 310_000};
+        for (int i = 0; i < args.length; i++) {
+            costs[i] = Integer.parseInt(args[i]);
+        }
+        int threads = Integer.getInteger("mysh.auth.verifyThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int seconds = Integer.getInteger("mysh.bench.seconds", 3);
+        int callers = threads * 8;
+
+        System.out.println("Login Benchmark");
+        System.out.println("===============");
+        System.out.printf("%d verifier thread(s), %d concurrent caller(s), %d s per cost%n%n", threads, callers, seconds);
+        System.out.printf("%-12s %12s %14s%n", "Iterations", "Logins/sec", "Avg latency");
+        for (int cost : costs) {
+            measureLogins(cost, threads, callers, seconds);
+        }
+
+        measureStore(Integer.getInteger("mysh.bench.users", 100_000));
+    }
+
+    private static void measureLogins(int cost, int threads, int callers, int seconds) throws InterruptedException {
+        PasswordHasher hasher = new PasswordHasher(cost, threads);
+        AuthenticationManager auth = new AuthenticationManager(null, hasher);
+        // Warm up the JIT on the hashing path before timing
+        for (int i = 0; i < threads * 2; i++) {
+            auth.authenticate("admin", "1234");
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder logins = new LongAdder();
+        LongAdder latency = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            Thread worker = new Thread(() -> {
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    if (auth.authenticate("admin", "1234") == null) {
+                        throw new IllegalStateException("login failed");
+                    }
+                    latency.add(System.nanoTime() - start);
+                    logins.increment();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long count = logins.sum();
+        System.out.printf("%-12d %12.1f %11.2f ms%n", cost, count / elapsed,
+                count == 0 ? 0 : latency.sum() / 1e6 / count);
+        hasher.shutdown();
+    }
+
+    private static void measureStore(int count) throws Exception {
+        System.out.printf("%nUser file with %,d account(s)%n", count);
+        Path directory = Files.createTempDirectory("mysh-users");
+        Path file = directory.resolve("users.db");
+        try {
+            // Real hashes are too slow to make by the hundred thousand; the file only cares about their size
+            PasswordHasher hasher = new PasswordHasher(1, 1);
+            PasswordHash credential = hasher.hash("secret");
+            hasher.shutdown();
+            List<User> users = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                users.add(new User("user" + i, credential, User.UserRole.STANDARD));
+            }
+
+            long start = System.nanoTime();
+            new UserStore(file).save(users);
+            System.out.printf("  write: %.1f ms (%,d bytes)%n", (System.nanoTime() - start) / 1e6, Files.size(file));
+
+            start = System.nanoTime();
+            UserStore store = new UserStore(file);
+            System.out.printf("  open:  %.2f ms%n", (System.nanoTime() - start) / 1e6);
+
+            int lookups = 1_000_000;
+            start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < lookups; i++) {
+                if (store.find("user" + (i % count)) != null) {
+                    found++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("  find:  %.2f us per lookup (%,d found)%n", elapsed / 1e3 / lookups, found);
+
+            start = System.nanoTime();
+            int read = store.readAll().size();
+            System.out.printf("  read all: %.1f ms (%,d account(s))%n", (System.nanoTime() - start) / 1e6, read);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.shellassignment.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets for failed logins, one per key (a username or a source address). Every attempt reserves
+// a token before its password is checked and a key with none left is refused at once; a failed attempt
+// keeps its token and a successful one hands it back, so only guessing is slowed. Tokens come back at a
+// steady rate up to the burst size. Because the token is taken up front, any number of concurrent
+// attempts for one key can start at most as many password checks as the bucket holds.
+//
+// Buckets live in a fixed-size open-addressed table and are found and updated with compare-and-set, so
+// checks never lock and the table never grows. A bucket that has refilled completely is idle and holds
+// nothing a fresh one would not, so its slot may be taken by another key. When every slot near a key's
+// is busy the key goes untracked rather than pushing out a bucket that is still counting; account
+// lockout on User still bounds guessing against any one account.
+public class LoginRateLimiter {
+    // Tokens are counted in units of 1/60000, so a rate per minute is also the refill per millisecond
+    private static final long UNIT = 60_000;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final int PROBES = 8;
+
+    private final String name;
+    private final long capacity;
+    private final long refillPerMillis;
+    private final AtomicReferenceArray<Bucket> table;
+    private final int mask;
+    private final long epoch = System.nanoTime();
+
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    // State is the last refill time in milliseconds since the epoch above the token count, in one long
+    private final class Bucket {
+        final String key;
+        final AtomicLong state;
+
+        Bucket(String key, long now, long tokens) {
+            this.key = key;
+            this.state = new AtomicLong(now << TOKEN_BITS | tokens);
+        }
+
+        long tokensAt(long now) {
+            return refill(state.get(), now);
+        }
+
+        // Takes one token if there is one, whether or not this thread's view of the clock is the latest
+        boolean tryTake(long now) {
+            while (true) {
+                long current = state.get();
+                long tokens = refill(current, now);
+                if (tokens < UNIT) {
+                    return false;
+                }
+                long updated = Math.max(now, current >>> TOKEN_BITS) << TOKEN_BITS | (tokens - UNIT);
+                if (state.compareAndSet(current, updated)) {
+                    return true;
+                }
+            }
+        }
+
+        void give(long now) {
+            while (true) {
+                long current = state.get();
+                long tokens = Math.min(capacity, refill(current, now) + UNIT);
+                long updated = Math.max(now, current >>> TOKEN_BITS) << TOKEN_BITS | tokens;
+                if (state.compareAndSet(current, updated)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public LoginRateLimiter(String name, int burst, int perMinute, int tableSize) {
+        if (burst < 1 || perMinute < 1 || (long) burst * UNIT > TOKEN_MASK) {
+            throw new IllegalArgumentException("burst must be 1-" + TOKEN_MASK / UNIT + " and rate positive");
+        }
+        this.name = name;
+        this.capacity = burst * UNIT;
+        this.refillPerMillis = perMinute;
+        int size = Integer.highestOneBit(Math.max(PROBES, tableSize - 1)) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    // Reserves a password check for the key: takes a token and returns true, or returns false if the key
+    // has none left. The token stays spent if the login fails; refund() returns it if it succeeds.
+    public boolean tryAcquire(String key) {
+        long now = now();
+        int start = spread(key.hashCode());
+        int idle = -1;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int index = (start + probe) & mask;
+            Bucket bucket = table.get(index);
+            if (bucket == null) {
+                if (table.compareAndSet(index, null, new Bucket(key, now, capacity - UNIT))) {
+                    return true;
+                }
+                bucket = table.get(index);
+            }
+            if (bucket.key.equals(key)) {
+                if (bucket.tryTake(now)) {
+                    return true;
+                }
+                refused.increment();
+                return false;
+            }
+            if (idle < 0 && bucket.tokensAt(now) >= capacity) {
+                idle = index;
+            }
+        }
+        if (idle >= 0) {
+            Bucket evicted = table.get(idle);
+            if (evicted != null && evicted.tokensAt(now) >= capacity
+                    && table.compareAndSet(idle, evicted, new Bucket(key, now, capacity - UNIT))) {
+                evictions.increment();
+                return true;
+            }
+        }
+        // Nowhere to track this key; it is let through, so each such attempt still costs a password
+        // check, but the table itself stays intact
+        overflows.increment();
+        return true;
+    }
+
+    // Hands back the token tryAcquire took, for an attempt that succeeded or was never checked
+    public void refund(String key) {
+        long now = now();
+        int start = spread(key.hashCode());
+        for (int probe = 0; probe < PROBES; probe++) {
+            Bucket bucket = table.get((start + probe) & mask);
+            if (bucket != null && bucket.key.equals(key)) {
+                bucket.give(now);
+                return;
+            }
+        }
+    }
+
+    // Forgets the key's failures, as after a successful login or an admin unlock
+    public void reset(String key) {
+        int start = spread(key.hashCode());
+        for (int probe = 0; probe < PROBES; probe++) {
+            int index = (start + probe) & mask;
+            Bucket bucket = table.get(index);
+            if (bucket != null && bucket.key.equals(key)) {
+                table.compareAndSet(index, bucket, null);
+                return;
+            }
+        }
+    }
+
+    public int getTrackedCount() {
+        long now = now();
+        int count = 0;
+        for (int i = 0; i < table.length(); i++) {
+            Bucket bucket = table.get(i);
+            if (bucket != null && bucket.tokensAt(now) < capacity) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void printStatistics() {
+        System.out.println("Limiter: " + name + " (burst " + capacity / UNIT + ", " + refillPerMillis + "/min, "
+                + table.length() + " slots)");
+        System.out.println("  Tracked keys: " + getTrackedCount());
+        System.out.println("  Refused: " + refused.sum());
+        System.out.println("  Idle evictions: " + evictions.sum());
+        System.out.println("  Untracked (table full): " + overflows.sum());
+    }
+
+    private long refill(long state, long now) {
+        long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+        return Math.min(capacity, (state & TOKEN_MASK) + elapsed * refillPerMillis);
+    }
+
+    private long now() {
+        return (System.nanoTime() - epoch) / 1_000_000;
+    }
+
+    private int spread(int hash) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,48 @@
+package org.shellassignment.auth;
+
+import java.util.Arrays;
+
+// A salted PBKDF2 hash of a password and the iteration count it was made with
+public final class PasswordHash {
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    public PasswordHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt.clone();
+        this.hash = hash.clone();
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public byte[] getSalt() {
+        return salt.clone();
+    }
+
+    public byte[] getHash() {
+        return hash.clone();
+    }
+
+    // Package-private access without the defensive copies, for hashing and storage
+    byte[] salt() {
+        return salt;
+    }
+
+    byte[] hash() {
+        return hash;
+    }
+
+    // Whether both were made from the same password with the same salt and cost
+    boolean sameAs(PasswordHash other) {
+        return other != null && iterations == other.iterations && Arrays.equals(salt, other.salt)
+                && Arrays.equals(hash, other.hash);
+    }
+
+    @Override
+    public String toString() {
+        return "PasswordHash{iterations=" + iterations + '}';
+    }
+}
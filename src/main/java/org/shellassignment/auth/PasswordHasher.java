@@ -0,0 +1,107 @@
+package org.shellassignment.auth;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Hashes passwords with PBKDF2-HMAC-SHA256 and a random salt per password. The iteration count is the
+// cost knob (mysh.auth.iterations); hashes made at an older cost still verify and are upgraded on the
+// next successful login. Verification runs on a small pool of its own (mysh.auth.verifyThreads), so a
+// burst of logins queues there instead of tying up the threads that run commands. The queue holds at
+// most mysh.auth.verifyQueue checks; submit() refuses work beyond that rather than letting a flood of
+// attempts pile up hashes without bound.
+public class PasswordHasher {
+    public static final int DEFAULT_ITERATIONS = 100_000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final ThreadPoolExecutor pool;
+    private final SecureRandom random = new SecureRandom();
+    // Checked against when the user does not exist, so an unknown name takes as long as a wrong password
+    private volatile PasswordHash decoy;
+
+    public PasswordHasher() {
+        this(Integer.getInteger("mysh.auth.iterations", DEFAULT_ITERATIONS),
+                Integer.getInteger("mysh.auth.verifyThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Integer.getInteger("mysh.auth.verifyQueue", 256));
+    }
+
+    public PasswordHasher(int iterations, int threads) {
+        this(iterations, threads, 256);
+    }
+
+    public PasswordHasher(int iterations, int threads, int queueSize) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be positive");
+        }
+        this.iterations = iterations;
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread thread = new Thread(r, "password-verifier-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public PasswordHash hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return new PasswordHash(iterations, salt, derive(password, salt, iterations));
+    }
+
+    public boolean verify(String password, PasswordHash stored) {
+        byte[] actual = derive(password, stored.salt(), stored.getIterations());
+        // Compares every byte whatever the first mismatch, so timing says nothing about the hash
+        return MessageDigest.isEqual(actual, stored.hash());
+    }
+
+    // Spends the same time as verifying against a real hash, and always fails
+    public boolean verifyUnknown(String password) {
+        PasswordHash current = decoy;
+        if (current == null) {
+            current = hash("");
+            decoy = current;
+        }
+        verify(password, current);
+        return false;
+    }
+
+    public boolean needsRehash(PasswordHash stored) {
+        return stored.getIterations() != iterations;
+    }
+
+    // Runs hashing work on the verification pool; throws RejectedExecutionException when its queue is full
+    public <T> CompletableFuture<T> submit(Supplier<T> work) {
+        return CompletableFuture.supplyAsync(work, pool);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package org.shellassignment.auth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Signed tokens that stand in for a password, so a script can log in without the console prompts and
+// without paying for a password hash. A token names the user, a random ID and an expiry, and carries an
+// HMAC-SHA256 over those and the user's current password hash: changing the password or deleting the
+// account voids every token issued before. The key is made once and kept in token.key, readable only by
+// its owner, so tokens work across shell processes.
+//
+// A checked token is kept in a cache until it expires, and later checks are a map lookup and a compare.
+// Revoked token IDs go to revoked-tokens, which every process rereads when it grows, so a logout in one
+// shell is seen by the next check anywhere. Appends and the compaction that drops expired entries hold
+// an exclusive lock on the sibling revoked-tokens.lock, so no revocation is lost to a rewrite. Readers
+// keep the file they read open: its inode cannot be reused while they do, so a file key that differs
+// from it always means the file was rewritten, however much has been appended since.
+public class SessionTokens {
+    public static final String TOKEN_VARIABLE = "MYSH_TOKEN";
+    public static final String TOKEN_FILE_VARIABLE = "MYSH_TOKEN_FILE";
+    private static final String PREFIX = "mysh";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+    private static final int ID_BYTES = 12;
+    private static final long SWEEP_INTERVAL_MILLIS = 30_000;
+
+    private final Path revokedFile;
+    private final Path lockFile;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final int maxCached;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    // Revoked token ID to its expiry; after that the signature check rejects it anyway
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    // The revocation file as last read: the open file, its identity and how much of it was read
+    private FileChannel revokedChannel;
+    private Object revokedKey;
+    private long revokedLength;
+    private volatile long nextSweep;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    // A token that passed the signature check, and the account state it was checked against
+    private static final class Entry {
+        final String id;
+        final long expiresAt;
+        final User user;
+        final PasswordHash credential;
+
+        Entry(String id, long expiresAt, User user, PasswordHash credential) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.user = user;
+            this.credential = credential;
+        }
+    }
+
+    public SessionTokens(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.key = new SecretKeySpec(loadOrCreateKey(directory.resolve("token.key")), ALGORITHM);
+        this.revokedFile = directory.resolve("revoked-tokens");
+        this.lockFile = directory.resolve("revoked-tokens.lock");
+        this.maxCached = Integer.getInteger("mysh.token.cacheSize", 4096);
+        loadRevocations();
+    }
+
+    // The token handed to this process through MYSH_TOKEN, or read from the file MYSH_TOKEN_FILE names
+    public static String fromEnvironment() {
+        String token = System.getenv(TOKEN_VARIABLE);
+        if (token != null && !token.trim().isEmpty()) {
+            return token.trim();
+        }
+        String file = System.getenv(TOKEN_FILE_VARIABLE);
+        if (file == null || file.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(Paths.get(file.trim())), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            System.err.println("Warning: cannot read token file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String issue(User user, long ttlMillis) {
+        byte[] id = new byte[ID_BYTES];
+        random.nextBytes(id);
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        String payload = PREFIX + "." + encode(user.getUsername().getBytes(StandardCharsets.UTF_8)) + "."
+                + encode(id) + "." + expiresAt;
+        return payload + "." + encode(sign(payload, user.getCredential()));
+    }
+
+    // The user the token logs in, or null if it is malformed, forged, expired, revoked or outdated
+    public User verify(String token, AuthenticationManager users) {
+        refreshRevocations();
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+
+        Entry cached = cache.get(token);
+        if (cached != null) {
+            // Still the same account with the same password: not deleted, recreated or changed since
+            if (cached.expiresAt > now && !revoked.containsKey(cached.id)
+                    && users.getUser(cached.user.getUsername()) == cached.user
+                    && cached.user.getCredential() == cached.credential && cached.user.isActive()) {
+                hits.increment();
+                return cached.user;
+            }
+            cache.remove(token);
+        }
+        misses.increment();
+
+        String[] parts = token.split("\\.");
+        if (parts.length != 5 || !parts[0].equals(PREFIX)) {
+            rejected.increment();
+            return null;
+        }
+        User user;
+        long expiresAt;
+        byte[] signature;
+        try {
+            user = users.getUser(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+            expiresAt = Long.parseLong(parts[3]);
+            signature = Base64.getUrlDecoder().decode(parts[4]);
+        } catch (IllegalArgumentException e) {
+            rejected.increment();
+            return null;
+        }
+        if (user == null || !user.isActive() || expiresAt <= now || revoked.containsKey(parts[2])) {
+            rejected.increment();
+            return null;
+        }
+        PasswordHash credential = user.getCredential();
+        String payload = token.substring(0, token.lastIndexOf('.'));
+        if (!MessageDigest.isEqual(signature, sign(payload, credential))) {
+            rejected.increment();
+            return null;
+        }
+        if (cache.size() < maxCached) {
+            cache.put(token, new Entry(parts[2], expiresAt, user, credential));
+        }
+        return user;
+    }
+
+    // The username a token claims, without checking it; null if it is not a token at all
+    public static String usernameOf(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 5 || !parts[0].equals(PREFIX)) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Makes the token unusable in every shell process from now on
+    public boolean revoke(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 5 || !parts[0].equals(PREFIX)) {
+            return false;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(parts[3]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String id = parts[2];
+        if (revoked.putIfAbsent(id, expiresAt) != null) {
+            return true;
+        }
+        cache.remove(token);
+        if (expiresAt > System.currentTimeMillis()) {
+            appendRevocation(id, expiresAt);
+        }
+        return true;
+    }
+
+    public int getCachedCount() {
+        return cache.size();
+    }
+
+    public void printStatistics() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        System.out.println("=== Session Token Cache ===");
+        System.out.println("Cached tokens: " + cache.size());
+        System.out.println("Revoked tokens: " + revoked.size());
+        System.out.println("Hits: " + hitCount);
+        System.out.println("Misses: " + (lookups - hitCount));
+        System.out.println("Rejected: " + rejected.sum());
+        System.out.printf("Hit ratio: %.1f%%%n", lookups == 0 ? 0.0 : 100.0 * hitCount / lookups);
+    }
+
+    private byte[] sign(String payload, PasswordHash credential) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update(payload.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(credential.hash());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        }
+    }
+
+    // Drops expired entries from the cache and the revocation list, at most every SWEEP_INTERVAL_MILLIS
+    private void sweepIfDue(long now) {
+        if (now < nextSweep && cache.size() < maxCached) {
+            return;
+        }
+        nextSweep = now + SWEEP_INTERVAL_MILLIS;
+        cache.values().removeIf(entry -> entry.expiresAt <= now);
+        revoked.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private byte[] loadOrCreateKey(Path file) throws IOException {
+        if (Files.exists(file)) {
+            return Files.readAllBytes(file);
+        }
+        byte[] created = new byte[KEY_BYTES];
+        random.nextBytes(created);
+        Path temp = Files.createTempFile(file.getParent(), "token", ".key");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the data directory's own protection has to do
+            }
+            Files.write(temp, created);
+            // Another shell starting at the same moment may have made one first; both then use that one
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            return created;
+        } catch (FileAlreadyExistsException e) {
+            return Files.readAllBytes(file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Reads the whole revocation file, rewriting it without expired entries if it has any
+    private synchronized void loadRevocations() throws IOException {
+        revoked.clear();
+        closeRevocations();
+        try (FileChannel lock = openLock()) {
+            lock.lock();
+            if (!Files.exists(revokedFile)) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<String> live = new ArrayList<>();
+            List<String> lines = Files.readAllLines(revokedFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                if (addRevocation(line, now)) {
+                    live.add(line);
+                }
+            }
+            if (live.size() < lines.size()) {
+                Path temp = revokedFile.resolveSibling(revokedFile.getFileName() + ".tmp");
+                Files.write(temp, live, StandardCharsets.UTF_8);
+                Files.move(temp, revokedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            // Nobody can append or rewrite while the lock is held, so this is the file just read
+            revokedChannel = FileChannel.open(revokedFile, StandardOpenOption.READ);
+            revokedKey = Files.readAttributes(revokedFile, BasicFileAttributes.class).fileKey();
+            revokedLength = revokedChannel.size();
+        }
+    }
+
+    private void closeRevocations() throws IOException {
+        FileChannel channel = revokedChannel;
+        revokedChannel = null;
+        revokedKey = null;
+        revokedLength = 0;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Picks up revocations other processes appended since the last look
+    private synchronized void refreshRevocations() {
+        try {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(revokedFile, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                if (revokedChannel != null) {
+                    loadRevocations();
+                }
+                return;
+            }
+            Object key = attributes.fileKey();
+            if (revokedChannel == null || (key != null && !key.equals(revokedKey))
+                    || attributes.size() < revokedLength) {
+                // Created or compacted by another process since the last look
+                loadRevocations();
+                return;
+            }
+            long length = attributes.size();
+            if (length == revokedLength) {
+                return;
+            }
+            ByteBuffer added = ByteBuffer.allocate((int) (length - revokedLength));
+            while (added.hasRemaining()) {
+                if (revokedChannel.read(added, revokedLength + added.position()) < 0) {
+                    break;
+                }
+            }
+            // Only whole lines; a line still being written is read next time
+            int end = added.position();
+            while (end > 0 && added.get(end - 1) != '\n') {
+                end--;
+            }
+            long now = System.currentTimeMillis();
+            for (String line : new String(added.array(), 0, end, StandardCharsets.UTF_8).split("\n")) {
+                addRevocation(line, now);
+            }
+            revokedLength += end;
+        } catch (IOException e) {
+            System.err.println("Warning: cannot read " + revokedFile + ": " + e.getMessage());
+        }
+    }
+
+    private boolean addRevocation(String line, long now) {
+        int space = line.indexOf(' ');
+        if (space <= 0) {
+            return false;
+        }
+        try {
+            long expiresAt = Long.parseLong(line.substring(space + 1).trim());
+            if (expiresAt <= now) {
+                return false;
+            }
+            revoked.put(line.substring(0, space), expiresAt);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private synchronized void appendRevocation(String id, long expiresAt) {
+        byte[] line = (id + " " + expiresAt + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            try (FileChannel lock = openLock()) {
+                lock.lock();
+                Files.write(revokedFile, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            refreshRevocations();
+        } catch (IOException e) {
+            System.err.println("Warning: revocation of token " + id + " not saved: " + e.getMessage());
+        }
+    }
+
+    // Closing the channel releases the lock taken on it
+    private FileChannel openLock() throws IOException {
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+}
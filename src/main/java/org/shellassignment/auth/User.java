@@ -1,10 +1,16 @@
 package org.shellassignment.auth;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class User {
     private String username;
-    private String password;
+    // Replaced as a whole when the password changes or is rehashed at a new cost
+    private volatile PasswordHash credential;
     private UserRole role;
     private boolean isActive;
+    // Wrong passwords since the last good one, and when a lockout they caused ends (0 if none)
+    private final AtomicInteger failedLogins;
+    private volatile long lockedUntil;
 
     public enum UserRole {
         ADMIN("admin"),
@@ -21,11 +27,22 @@ public class User {
         }
     }
 
-    public User(String username, String password, UserRole role) {
+    public User(String username, PasswordHash credential, UserRole role) {
+        this(username, credential, role, true);
+    }
+
+    public User(String username, PasswordHash credential, UserRole role, boolean isActive) {
+        this(username, credential, role, isActive, 0, 0);
+    }
+
+    public User(String username, PasswordHash credential, UserRole role, boolean isActive, int failedLogins,
+            long lockedUntil) {
         this.username = username;
-        this.password = password;
+        this.credential = credential;
         this.role = role;
-        this.isActive = true;
+        this.isActive = isActive;
+        this.failedLogins = new AtomicInteger(failedLogins);
+        this.lockedUntil = lockedUntil;
     }
 
     public String getUsername() {
@@ -36,12 +53,12 @@ public class User {
         this.username = username;
     }
 
-    public String getPassword() {
-        return password;
+    public PasswordHash getCredential() {
+        return credential;
     }
 
-    public void setPassword(String password) {
-        this.password = password;
+    public void setCredential(PasswordHash credential) {
+        this.credential = credential;
     }
 
     public UserRole getRole() {
@@ -60,6 +77,39 @@ public class User {
         isActive = active;
     }
 
+    public int getFailedLogins() {
+        return failedLogins.get();
+    }
+
+    // Counts a wrong password; returns how many there have been in a row
+    public int recordFailedLogin() {
+        return failedLogins.incrementAndGet();
+    }
+
+    public long getLockedUntil() {
+        return lockedUntil;
+    }
+
+    public boolean isLockedOut(long now) {
+        return lockedUntil > now;
+    }
+
+    public void lockUntil(long until) {
+        lockedUntil = until;
+    }
+
+    // After a good password or an admin unlock
+    public void clearLockout() {
+        failedLogins.set(0);
+        lockedUntil = 0;
+    }
+
+    // Takes on a lockout state read back from the store
+    void restoreLockout(int failedLogins, long lockedUntil) {
+        this.failedLogins.set(failedLogins);
+        this.lockedUntil = lockedUntil;
+    }
+
     public boolean isAdmin() {
         return role == UserRole.ADMIN;
     }
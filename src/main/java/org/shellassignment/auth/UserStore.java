@@ -0,0 +1,284 @@
+package org.shellassignment.auth;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+// The user accounts file. It is mapped rather than parsed at startup: a fixed-width index of record
+// offsets, sorted by username, lets a login find and decode just its own record by binary search.
+// Changes rewrite the whole file to a temporary name and move it into place, so a crash leaves either
+// the old file or the new one.
+//
+// Several shells may share the file. Changes go through update(), which holds an exclusive lock on a
+// sibling .lock file (the data file itself is replaced, so it cannot carry the lock) and re-reads the
+// file first, so one process never writes back another's change from a stale mapping. Lookups notice a
+// replaced file by its identity, size and modification time and map it again.
+//
+// Layout (big-endian):
+//   int magic, int version, int count
+//   int offset[count]                       record offsets, in username order
+//   records: short name length, name (UTF-8), byte role, byte active,
+//            int iterations, byte salt length, salt, byte hash length, hash,
+//            int failed logins, long locked until (epoch millis, 0 if not locked)
+// Version 1 files, whose records end at the hash, are still read and are rewritten as version 2.
+public class UserStore {
+    private static final int MAGIC = 0x4D595553; // "MYUS"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 12;
+
+    private final Path file;
+    private final Path lockFile;
+    // Read-only view of the current file; readers work on duplicates so they never share a position
+    private volatile ByteBuffer mapped;
+    // What the mapped file looked like, to tell when another process has replaced it
+    private volatile Object mappedKey;
+    private volatile long mappedSize = -1;
+    private volatile long mappedModified = -1;
+    // Counts mappings, so callers holding records from an older one know to read them again
+    private volatile long generation;
+
+    public UserStore(Path file) throws IOException {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        remap();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Changes whenever the file has been written or replaced since the last call that saw it
+    public long generation() {
+        current();
+        return generation;
+    }
+
+    public int count() {
+        ByteBuffer in = current();
+        return in == null ? 0 : in.getInt(8);
+    }
+
+    // The stored user, or null when there is none by that name
+    public User find(String username) {
+        ByteBuffer in = current();
+        if (in == null) {
+            return null;
+        }
+        in = in.duplicate();
+        byte[] wanted = username.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = in.getInt(8) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = in.getInt(HEADER_BYTES + middle * 4);
+            int compared = compareName(in, offset, wanted);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                in.position(offset);
+                return readRecord(in, in.getInt(4));
+            }
+        }
+        return null;
+    }
+
+    public List<User> readAll() {
+        List<User> users = new ArrayList<>();
+        ByteBuffer in = current();
+        if (in == null) {
+            return users;
+        }
+        in = in.duplicate();
+        int version = in.getInt(4);
+        int count = in.getInt(8);
+        for (int i = 0; i < count; i++) {
+            in.position(in.getInt(HEADER_BYTES + i * 4));
+            users.add(readRecord(in, version));
+        }
+        return users;
+    }
+
+    // Applies a change to the accounts as they are on disk now, keyed by username, and saves the result;
+    // other processes using the file wait meanwhile
+    public synchronized void update(Consumer<Map<String, User>> change) throws IOException {
+        try (FileChannel channel = openLock()) {
+            channel.lock();
+            remap();
+            Map<String, User> all = new TreeMap<>();
+            for (User user : readAll()) {
+                all.put(user.getUsername(), user);
+            }
+            change.accept(all);
+            write(all.values());
+        }
+    }
+
+    // Replaces every account with the given ones
+    public synchronized void save(Collection<User> users) throws IOException {
+        try (FileChannel channel = openLock()) {
+            channel.lock();
+            write(users);
+        }
+    }
+
+    // Closing the channel releases the lock taken on it
+    private FileChannel openLock() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private void write(Collection<User> users) throws IOException {
+        List<User> sorted = new ArrayList<>(users);
+        sorted.sort((a, b) -> compareBytes(a.getUsername().getBytes(StandardCharsets.UTF_8),
+                b.getUsername().getBytes(StandardCharsets.UTF_8)));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(createPrivate(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            int offset = HEADER_BYTES + sorted.size() * 4;
+            byte[][] records = new byte[sorted.size()][];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = encode(sorted.get(i));
+                out.writeInt(offset);
+                offset += records[i].length;
+            }
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        remap();
+    }
+
+    // Password hashes are only for this account to read, so the file is created rw------- rather than
+    // with the umask's permissions, as token.key is
+    private static OutputStream createPrivate(Path path) throws IOException {
+        try {
+            return Channels.newOutputStream(Files.newByteChannel(path,
+                    EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the data directory's own protection has to do
+            return Files.newOutputStream(path, StandardOpenOption.CREATE_NEW);
+        }
+    }
+
+    // The mapping of the file as it is now, mapped again if another process has replaced it
+    private ByteBuffer current() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            Object key = attributes.fileKey();
+            if ((key != null && !key.equals(mappedKey)) || attributes.size() != mappedSize
+                    || attributes.lastModifiedTime().toMillis() != mappedModified) {
+                synchronized (this) {
+                    remap();
+                }
+            }
+        } catch (IOException e) {
+            // Missing or unreadable for now: keep answering from the last good mapping
+        }
+        return mapped;
+    }
+
+    private void remap() throws IOException {
+        generation++;
+        if (!Files.exists(file)) {
+            mapped = null;
+            mappedKey = null;
+            mappedSize = -1;
+            mappedModified = -1;
+            return;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_BYTES || in.getInt(0) != MAGIC || in.getInt(4) < 1 || in.getInt(4) > VERSION) {
+                throw new IOException("unrecognized user file " + file);
+            }
+            mapped = in;
+            mappedKey = attributes.fileKey();
+            mappedSize = attributes.size();
+            mappedModified = attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    private static byte[] encode(User user) {
+        byte[] name = user.getUsername().getBytes(StandardCharsets.UTF_8);
+        PasswordHash credential = user.getCredential();
+        ByteBuffer out = ByteBuffer.allocate(2 + name.length + 2 + 4 + 1 + credential.salt().length
+                + 1 + credential.hash().length + 4 + 8);
+        out.putShort((short) name.length).put(name);
+        out.put((byte) user.getRole().ordinal()).put((byte) (user.isActive() ? 1 : 0));
+        out.putInt(credential.getIterations());
+        out.put((byte) credential.salt().length).put(credential.salt());
+        out.put((byte) credential.hash().length).put(credential.hash());
+        out.putInt(user.getFailedLogins()).putLong(user.getLockedUntil());
+        return out.array();
+    }
+
+    private static User readRecord(ByteBuffer in, int version) {
+        byte[] name = new byte[in.getShort() & 0xFFFF];
+        in.get(name);
+        User.UserRole role = User.UserRole.values()[in.get()];
+        boolean active = in.get() != 0;
+        int iterations = in.getInt();
+        byte[] salt = new byte[in.get() & 0xFF];
+        in.get(salt);
+        byte[] hash = new byte[in.get() & 0xFF];
+        in.get(hash);
+        int failedLogins = version >= 2 ? in.getInt() : 0;
+        long lockedUntil = version >= 2 ? in.getLong() : 0;
+        return new User(new String(name, StandardCharsets.UTF_8), new PasswordHash(iterations, salt, hash), role,
+                active, failedLogins, lockedUntil);
+    }
+
+    // Compares the record's name at offset with wanted, as unsigned bytes
+    private static int compareName(ByteBuffer in, int offset, byte[] wanted) {
+        int length = in.getShort(offset) & 0xFFFF;
+        int limit = Math.min(length, wanted.length);
+        for (int i = 0; i < limit; i++) {
+            int compared = Integer.compare(in.get(offset + 2 + i) & 0xFF, wanted[i] & 0xFF);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return Integer.compare(length, wanted.length);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int limit = Math.min(a.length, b.length);
+        for (int i = 0; i < limit; i++) {
+            int compared = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+}
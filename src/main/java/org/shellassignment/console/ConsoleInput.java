@@ -0,0 +1,225 @@
+package org.shellassignment.console;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// The one reader of the shell's standard input. Everything that wants console input (the login
+// prompts, the command loop, interactive demos) asks this class for it, so no two buffers read ahead
+// of each other on the same stream and lose lines.
+//
+// A background thread reads stdin in large blocks and queues complete lines, up to
+// mysh.console.readAhead of them, so piped input is read at full speed while commands run. Lines are
+// edited as a terminal in raw mode would send them: backspace and DEL erase a character, ^U the line
+// and ^W the last word. pollLine() and readLine(timeout) never block past what they are given.
+public final class ConsoleInput {
+    // Queued after the last line; compared by identity, so no input line can be mistaken for it
+    private static final String END = new String("<end of input>");
+    private static ConsoleInput instance;
+
+    private final InputStream in;
+    private final BlockingQueue<String> lines;
+    // Tokens left over from the current line, for nextToken()/nextInt()
+    private final ArrayDeque<String> tokens = new ArrayDeque<>();
+    private Thread reader;
+    private volatile boolean ended;
+
+    ConsoleInput(InputStream in, int readAhead) {
+        this.in = in;
+        this.lines = new LinkedBlockingQueue<>(readAhead);
+    }
+
+    // The console input of this process; stdin is not touched until the first read
+    public static synchronized ConsoleInput get() {
+        if (instance == null) {
+            instance = new ConsoleInput(System.in, Integer.getInteger("mysh.console.readAhead", 10_000));
+        }
+        return instance;
+    }
+
+    // Blocks for the next line; null once input has ended
+    public String readLine() {
+        start();
+        try {
+            return deliver(lines.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public String readLine(String prompt) {
+        System.out.print(prompt);
+        System.out.flush();
+        return readLine();
+    }
+
+    // The next line if one has already arrived, otherwise null at once; see isEnded() to tell the two apart
+    public String pollLine() {
+        start();
+        return deliver(lines.poll());
+    }
+
+    // Waits at most the given time for a line; null if none came or input has ended
+    public String readLine(long timeout, TimeUnit unit) {
+        start();
+        try {
+            return deliver(lines.poll(timeout, unit));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Whether input has ended and every line has been read
+    public boolean isEnded() {
+        return ended && lines.peek() == END;
+    }
+
+    // Lines read ahead and waiting
+    public int available() {
+        int count = lines.size();
+        return ended && count > 0 ? count - 1 : count;
+    }
+
+    // The next whitespace-separated token, reading more lines as needed, like Scanner.next()
+    public String nextToken() {
+        while (tokens.isEmpty()) {
+            String line = readLine();
+            if (line == null) {
+                throw new NoSuchElementException("end of input");
+            }
+            for (String token : line.trim().split("\\s+")) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+        }
+        return tokens.poll();
+    }
+
+    // Like Scanner.nextInt(): a token that is not a number is consumed and reported
+    public int nextInt() {
+        String token = nextToken();
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new InputMismatchException("not a number: " + token);
+        }
+    }
+
+    private String deliver(String line) {
+        if (line == END) {
+            // Left in place, so every later read sees the end too
+            lines.offer(END);
+            return null;
+        }
+        if (line != null) {
+            // Whole lines read directly discard any tokens left from an earlier one
+            tokens.clear();
+        }
+        return line;
+    }
+
+    private synchronized void start() {
+        if (reader != null) {
+            return;
+        }
+        reader = new Thread(this::readAll, "console-input");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAll() {
+        byte[] block = new byte[64 * 1024];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try {
+            int read;
+            while ((read = in.read(block)) >= 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (block[i] == '\n') {
+                        line.write(block, start, i - start);
+                        queue(line);
+                        start = i + 1;
+                    }
+                }
+                line.write(block, start, read - start);
+            }
+            if (line.size() > 0) {
+                // A last line without a newline still counts
+                queue(line);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading input: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ended = true;
+            try {
+                lines.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void queue(ByteArrayOutputStream line) throws InterruptedException {
+        byte[] bytes = line.toByteArray();
+        line.reset();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        // Waits while the read-ahead is full, so a fast producer cannot grow it without bound
+        lines.put(edit(new String(bytes, 0, length, StandardCharsets.UTF_8)));
+    }
+
+    // Applies the editing keys a raw-mode terminal passes through; most lines have none
+    static String edit(String raw) {
+        int i = 0;
+        while (i < raw.length() && raw.charAt(i) >= ' ' && raw.charAt(i) != 0x7F) {
+            i++;
+        }
+        if (i == raw.length()) {
+            return raw;
+        }
+        StringBuilder edited = new StringBuilder(raw.length());
+        for (int j = 0; j < raw.length(); j++) {
+            char c = raw.charAt(j);
+            switch (c) {
+                case '\b':
+                case 0x7F:
+                    if (edited.length() > 0) {
+                        edited.setLength(edited.length() - 1);
+                    }
+                    break;
+                case 0x15: // ^U
+                    edited.setLength(0);
+                    break;
+                case 0x17: // ^W
+                    int end = edited.length();
+                    while (end > 0 && edited.charAt(end - 1) == ' ') {
+                        end--;
+                    }
+                    while (end > 0 && edited.charAt(end - 1) != ' ') {
+                        end--;
+                    }
+                    edited.setLength(end);
+                    break;
+                default:
+                    if (c >= ' ' || c == '\t') {
+                        edited.append(c);
+                    }
+            }
+        }
+        return edited.toString();
+    }
+}
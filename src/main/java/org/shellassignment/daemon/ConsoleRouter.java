@@ -0,0 +1,74 @@
+package org.shellassignment.daemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Builtins print to System.out and System.err. Once installed, bytes written through either go to
+// the stream bound to the writing thread, or to the original console when none is. The binding is not
+// inherited: pool threads (password verifiers, the common pool, watchers) are started by whichever
+// thread needs one first and outlive its command, so a thread only writes to a connection when it is
+// started through bound(), as pipeline stages and process output readers are.
+public final class ConsoleRouter extends OutputStream {
+    private static final ThreadLocal<OutputStream> TARGET = new ThreadLocal<>();
+    private static boolean installed;
+
+    private final OutputStream console;
+
+    private ConsoleRouter(OutputStream console) {
+        this.console = console;
+    }
+
+    static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        System.setOut(new PrintStream(new ConsoleRouter(System.out), true));
+        System.setErr(new PrintStream(new ConsoleRouter(System.err), true));
+        installed = true;
+    }
+
+    static void bind(OutputStream target) {
+        TARGET.set(target);
+    }
+
+    static void unbind() {
+        TARGET.remove();
+    }
+
+    // The task, to be run on a thread the current command starts, writing where the command writes
+    public static Runnable bound(Runnable task) {
+        OutputStream target = TARGET.get();
+        if (target == null) {
+            return task;
+        }
+        return () -> {
+            TARGET.set(target);
+            try {
+                task.run();
+            } finally {
+                TARGET.remove();
+            }
+        };
+    }
+
+    private OutputStream target() {
+        OutputStream target = TARGET.get();
+        return target != null ? target : console;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        target().write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        target().write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target().flush();
+    }
+}
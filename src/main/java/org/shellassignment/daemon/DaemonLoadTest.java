@@ -0,0 +1,154 @@
+package org.shellassignment.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Opens many sessions against a running daemon, logs them all in, then has every session run the
+// same command back to back and reports throughput and latency. Extra idle sessions can be held open
+// alongside, to see what they cost the busy ones. Run with:
+//   java -cp target/classes org.shellassignment.daemon.DaemonLoadTest [port] [sessions] [commands] [idle] [command]
+// Logs in as admin/1234 unless -Dmysh.loadtest.user and -Dmysh.loadtest.password say otherwise.
+public class DaemonLoadTest {
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : ShellDaemon.DEFAULT_PORT;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int commands = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int idle = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        String command = args.length > 4 ? String.join(" ", Arrays.copyOfRange(args, 4, args.length)) : "pwd";
+        String user = System.getProperty("mysh.loadtest.user", "admin");
+        String password = System.getProperty("mysh.loadtest.password", "1234");
+
+        System.out.println("Daemon Load Test");
+        System.out.println("================");
+        System.out.printf("%d active session(s) x %d command(s) of '%s', %d idle session(s)%n",
+                sessions, commands, command, idle);
+
+        List<Client> idleClients = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < idle; i++) {
+            Client client = new Client(port);
+            client.login(user, password);
+            idleClients.add(client);
+        }
+        if (idle > 0) {
+            System.out.printf("Logged in %d idle session(s) in %.0f ms%n", idle, (System.nanoTime() - start) / 1e6);
+        }
+
+        long[][] latencies = new long[sessions][commands];
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(sessions);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            long[] timings = latencies[i];
+            Thread thread = new Thread(() -> {
+                try (Client client = new Client(port)) {
+                    client.login(user, password);
+                    ready.countDown();
+                    go.await();
+                    for (int c = 0; c < commands; c++) {
+                        long sent = System.nanoTime();
+                        client.run(command);
+                        timings[c] = System.nanoTime() - sent;
+                    }
+                } catch (IOException | InterruptedException e) {
+                    failures.incrementAndGet();
+                    ready.countDown();
+                }
+            }, "load-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        ready.await();
+        start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).filter(t -> t > 0).sorted().toArray();
+        System.out.printf("Completed %,d command(s) in %.2f s: %,.0f commands/sec%n", all.length, seconds,
+                all.length / seconds);
+        if (all.length > 0) {
+            System.out.printf("Latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6, all[all.length - 1] / 1e6);
+        }
+        if (failures.get() > 0) {
+            System.out.println("Failed sessions: " + failures.get());
+        }
+        for (Client client : idleClients) {
+            client.close();
+        }
+    }
+
+    // One blocking connection; a command is done when the prompt comes back
+    private static final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private String prompt = "Username: ";
+
+        Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        void login(String user, String password) throws IOException {
+            readUntil("Username: ");
+            send(user);
+            readUntil("Password: ");
+            send(password);
+            prompt = user + ShellDaemon.PROMPT_SUFFIX;
+            String reply = readUntil(prompt);
+            if (!reply.contains("Welcome")) {
+                throw new IOException("login failed: " + reply);
+            }
+        }
+
+        String run(String command) throws IOException {
+            send(command);
+            return readUntil(prompt);
+        }
+
+        private void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        private String readUntil(String marker) throws IOException {
+            StringBuilder received = new StringBuilder();
+            while (!endsWith(received, marker)) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new IOException("connection closed after: " + received);
+                }
+                received.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+            return received.toString();
+        }
+
+        private static boolean endsWith(StringBuilder text, String suffix) {
+            int offset = text.length() - suffix.length();
+            return offset >= 0 && text.indexOf(suffix, offset) == offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
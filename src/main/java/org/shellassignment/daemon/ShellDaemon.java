@@ -0,0 +1,414 @@
+package org.shellassignment.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.shellassignment.Shell;
+import org.shellassignment.auth.User;
+import org.shellassignment.session.Session;
+
+// Serves shell sessions to many clients from one JVM. A single selector thread does all socket I/O;
+// command lines are run on a small worker pool, one at a time per connection, so a connection that is
+// only logged in holds a channel, a selection key and a few fields, with no thread and no buffers.
+//
+// The protocol is plain lines, so any line-based client (nc, telnet) works: the daemon asks for a
+// username and password, then prints the usual "user@mysh> " prompt after every command. Only the
+// loopback interface is bound. Run with:
+//   java -cp target/classes org.shellassignment.daemon.ShellDaemon [port]
+public class ShellDaemon {
+    public static final int DEFAULT_PORT = 7070;
+    static final String PROMPT_SUFFIX = "@mysh> ";
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    // A client that stops reading is disconnected rather than allowed to grow its queue without bound
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+    private static final int MAX_LOGIN_ATTEMPTS = 3;
+
+    private final Shell shell;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ThreadPoolExecutor workers;
+    // Connections with output waiting to be written; only the selector thread changes interest ops
+    private final Queue<Connection> writeRequests = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public ShellDaemon(Shell shell, int port) throws IOException {
+        this.shell = shell;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        int size = Integer.getInteger("mysh.daemon.workers", 64);
+        AtomicInteger threads = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread worker = new Thread(r, "mysh-worker-" + threads.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+        // Idle daemons keep no worker threads around
+        workers.allowCoreThreadTimeOut(true);
+        ConsoleRouter.install();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("mysh.daemon.port", DEFAULT_PORT);
+        ShellDaemon daemon = new ShellDaemon(new Shell(), port);
+        System.out.println("mysh daemon listening on 127.0.0.1:" + daemon.getPort());
+        daemon.run();
+    }
+
+    public void run() throws IOException {
+        while (running) {
+            selector.select();
+            Connection requested;
+            while ((requested = writeRequests.poll()) != null) {
+                requested.enableWrites();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flushToChannel();
+                    }
+                } catch (IOException e) {
+                    connection.disconnect();
+                }
+            }
+        }
+        selector.close();
+        server.close();
+        workers.shutdownNow();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.incrementAndGet();
+            connection.send("=== Shell Authentication ===\nUsername: ");
+        }
+    }
+
+    private static String sourceOf(SocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private enum State { USERNAME, PASSWORD, VERIFYING, READY }
+
+    private final class Connection extends OutputStream {
+        private final SocketChannel channel;
+        // The client's address, which failed logins are limited by
+        private final String source;
+        private SelectionKey key;
+        // Bytes of a line that has not ended yet; created only when a read stops mid-line
+        private ByteArrayOutputStream partial;
+
+        private final Queue<String> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<>();
+        private int pendingBytes;
+        private volatile boolean disconnectRequested;
+        private volatile boolean closed;
+
+        // Only touched by the worker currently draining the inbox
+        private State state = State.USERNAME;
+        private String username;
+        private int failedLogins;
+        // Also read by the selector thread when the client disconnects
+        private volatile Session session;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.source = sourceOf(channel);
+        }
+
+        // Selector thread: splits what arrived into lines and hands them to a worker
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                disconnect();
+                return;
+            }
+            readBuffer.flip();
+            int start = 0;
+            byte[] bytes = new byte[readBuffer.remaining()];
+            readBuffer.get(bytes);
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                String line;
+                if (partial != null) {
+                    partial.write(bytes, start, i - start);
+                    line = partial.toString("UTF-8");
+                    partial = null;
+                } else {
+                    line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                }
+                inbox.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+                start = i + 1;
+            }
+            if (start < bytes.length) {
+                if (partial == null) {
+                    partial = new ByteArrayOutputStream();
+                }
+                partial.write(bytes, start, bytes.length - start);
+                if (partial.size() > MAX_LINE_BYTES) {
+                    disconnect();
+                    return;
+                }
+            }
+            if (!inbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this::drainInbox);
+            }
+        }
+
+        // Worker thread: handles queued lines in order; at most one worker runs this per connection
+        private void drainInbox() {
+            ConsoleRouter.bind(this);
+            try {
+                while (true) {
+                    String line;
+                    while (!closed && state != State.VERIFYING && (line = inbox.poll()) != null) {
+                        handle(line);
+                    }
+                    if (state == State.VERIFYING) {
+                        // Stays scheduled, so no other worker starts; the finished login resumes draining
+                        return;
+                    }
+                    scheduled.set(false);
+                    // A line may have arrived after the last poll but before the flag was cleared
+                    if (closed || inbox.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } finally {
+                ConsoleRouter.unbind();
+            }
+        }
+
+        private void handle(String line) {
+            switch (state) {
+                case USERNAME:
+                    username = line.trim();
+                    state = State.PASSWORD;
+                    send("Password: ");
+                    return;
+                case PASSWORD:
+                    login(line.trim());
+                    return;
+                default:
+                    break;
+            }
+
+            try {
+                shell.execute(line, session);
+            } catch (RuntimeException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            if (session.isExitRequested()) {
+                // exit ends this connection only, whatever arguments or operators came with it
+                disconnect();
+            } else if (!session.isOpen()) {
+                // logout: the connection stays, and the next user has to authenticate
+                session = null;
+                state = State.USERNAME;
+                send("Username: ");
+            } else {
+                send(session.getUsername() + PROMPT_SUFFIX);
+            }
+        }
+
+        // The hash is checked on the hasher's pool, so no worker waits on it; lines typed meanwhile stay
+        // queued until the result is in
+        private void login(String password) {
+            state = State.VERIFYING;
+            shell.getAuthenticationManager().authenticateAsync(username, password, source)
+                    .whenComplete((user, error) -> workers.execute(() -> {
+                        ConsoleRouter.bind(this);
+                        try {
+                            if (error != null) {
+                                System.err.println("Error: " + error.getMessage());
+                            }
+                            finishLogin(user);
+                        } finally {
+                            ConsoleRouter.unbind();
+                        }
+                        drainInbox();
+                    }));
+        }
+
+        private void finishLogin(User user) {
+            state = State.USERNAME;
+            if (closed) {
+                return;
+            }
+            if (user == null) {
+                if (++failedLogins >= MAX_LOGIN_ATTEMPTS) {
+                    send("Authentication failed.\n");
+                    disconnectAfterFlush();
+                    return;
+                }
+                send("Invalid username or password!\nUsername: ");
+                return;
+            }
+            session = shell.getSessionManager().open(user, shell.getStartDirectory());
+            if (session == null) {
+                send("Too many open sessions.\n");
+                disconnectAfterFlush();
+                return;
+            }
+            if (closed) {
+                // The client went away while the password was being checked
+                shell.getSessionManager().close(session);
+                return;
+            }
+            failedLogins = 0;
+            state = State.READY;
+            send("Welcome, " + user.getUsername() + " (" + user.getRole().getRoleName() + ")!\n"
+                    + user.getUsername() + PROMPT_SUFFIX);
+        }
+
+        private void send(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            write(bytes, 0, bytes.length);
+        }
+
+        // Any thread: queues output for the selector to write
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (closed || length == 0) {
+                return;
+            }
+            boolean overflow;
+            synchronized (outbox) {
+                outbox.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length)));
+                pendingBytes += length;
+                overflow = pendingBytes > MAX_PENDING_OUTPUT;
+            }
+            if (overflow) {
+                disconnect();
+                return;
+            }
+            if (writeRequested.compareAndSet(false, true)) {
+                writeRequests.add(this);
+                selector.wakeup();
+            }
+        }
+
+        // Selector thread
+        void enableWrites() {
+            writeRequested.set(false);
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Selector thread: writes until the socket is full or nothing is left
+        void flushToChannel() throws IOException {
+            synchronized (outbox) {
+                ByteBuffer next;
+                while ((next = outbox.peek()) != null) {
+                    pendingBytes -= channel.write(next);
+                    if (next.hasRemaining()) {
+                        return;
+                    }
+                    outbox.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (disconnectRequested) {
+                disconnect();
+            }
+        }
+
+        private void disconnectAfterFlush() {
+            disconnectRequested = true;
+            if (writeRequested.compareAndSet(false, true)) {
+                writeRequests.add(this);
+                selector.wakeup();
+            }
+        }
+
+        synchronized void disconnect() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.decrementAndGet();
+            Session open = session;
+            if (open != null) {
+                shell.getSessionManager().close(open);
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.shellassignment.fs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DirectoryListingCache implements DirectoryWatcher.Listener {
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final int capacity;
+    private final Map<Path, List<Path>> listings;
+    private final DirectoryWatcher watcher;
+    // Bumped on every invalidation so a listing that raced with a change is not cached
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public DirectoryListingCache() {
+        this(Integer.getInteger("mysh.ls.cache.size", DEFAULT_CAPACITY));
+    }
+
+    public DirectoryListingCache(int capacity) {
+        this.capacity = capacity;
+        // Access-ordered, so the eldest entry is the least recently listed directory
+        this.listings = new LinkedHashMap<Path, List<Path>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, List<Path>> eldest) {
+                if (size() <= DirectoryListingCache.this.capacity) {
+                    return false;
+                }
+                evictions++;
+                if (watcher != null) {
+                    watcher.unregister(eldest.getKey());
+                }
+                return true;
+            }
+        };
+
+        DirectoryWatcher created = null;
+        try {
+            created = new DirectoryWatcher("ls-cache-watcher", this);
+        } catch (IOException e) {
+            System.err.println("ls: directory watching unavailable, listings will not be cached: " + e.getMessage());
+        }
+        this.watcher = created;
+    }
+
+    public List<Path> list(Path directory) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        long startGeneration;
+        synchronized (this) {
+            List<Path> cached = listings.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            startGeneration = generation;
+        }
+
+        boolean watched = watcher != null && watcher.register(key);
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(key)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        }
+        List<Path> listing = Collections.unmodifiableList(entries);
+
+        synchronized (this) {
+            if (watched && generation == startGeneration) {
+                listings.put(key, listing);
+            } else if (watched && !listings.containsKey(key)) {
+                watcher.unregister(key);
+            }
+        }
+        return listing;
+    }
+
+    // Drops a directory's listing at once. For changes the shell makes itself: the watch event for them
+    // arrives asynchronously, and an ls right after the change must not be served the old listing.
+    public synchronized void invalidate(Path directory) {
+        if (directory != null) {
+            directoryChanged(directory.toAbsolutePath().normalize());
+        }
+    }
+
+    // Drops the listing of a removed directory, of everything below it and of its parent
+    public synchronized void invalidateTree(Path directory) {
+        Path root = directory.toAbsolutePath().normalize();
+        generation++;
+        int before = listings.size();
+        listings.keySet().removeIf(key -> key.startsWith(root));
+        invalidations += before - listings.size();
+        invalidate(root.getParent());
+    }
+
+    @Override
+    public synchronized void directoryChanged(Path directory) {
+        generation++;
+        if (listings.remove(directory) != null) {
+            invalidations++;
+        }
+    }
+
+    @Override
+    public synchronized void directoryInvalid(Path directory) {
+        directoryChanged(directory);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void printStatistics() {
+        long lookups = hits + misses;
+        System.out.println("=== Directory Listing Cache ===");
+        System.out.println("Cached directories: " + listings.size() + "/" + capacity);
+        System.out.println("Watched directories: " + (watcher != null ? watcher.getWatchedCount() : 0));
+        System.out.println("Hits: " + hits);
+        System.out.println("Misses: " + misses);
+        System.out.printf("Hit ratio: %.1f%%%n", lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+        System.out.println("Evictions: " + evictions);
+        System.out.println("Invalidations: " + invalidations);
+    }
+}
@@ -0,0 +1,155 @@
+package org.shellassignment.fs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+public class DirectorySizeCache implements DirectoryWatcher.Listener {
+    private static final Entry[] NO_CHILDREN = new Entry[0];
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    // Bumped for a directory and all of its ancestors whenever something below them changes
+    private final Map<Path, Long> versions = new ConcurrentHashMap<>();
+    private final DirectoryWatcher watcher;
+
+    private static final class Entry {
+        final Path directory;
+        final long version;
+        final long totalBytes;
+        final Entry[] children;
+        final boolean cacheable;
+
+        Entry(Path directory, long version, long totalBytes, Entry[] children, boolean cacheable) {
+            this.directory = directory;
+            this.version = version;
+            this.totalBytes = totalBytes;
+            this.children = children;
+            this.cacheable = cacheable;
+        }
+    }
+
+    public DirectorySizeCache() {
+        DirectoryWatcher created = null;
+        try {
+            created = new DirectoryWatcher("du-cache-watcher", this);
+        } catch (IOException e) {
+            System.err.println("du: directory watching unavailable, sizes will not be cached: " + e.getMessage());
+        }
+        this.watcher = created;
+    }
+
+    public long sizeOf(Path path) throws IOException {
+        Path target = path.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attrs.isDirectory()) {
+            return attrs.size();
+        }
+        return lookup(target).totalBytes;
+    }
+
+    // Reports every directory down to maxDepth, children before their parent (like du)
+    public void report(Path directory, int maxDepth, BiConsumer<Path, Long> sink) {
+        report(lookup(directory.toAbsolutePath().normalize()), 0, maxDepth, sink);
+    }
+
+    private void report(Entry entry, int depth, int maxDepth, BiConsumer<Path, Long> sink) {
+        if (depth < maxDepth) {
+            for (Entry child : entry.children) {
+                report(child, depth + 1, maxDepth, sink);
+            }
+        }
+        sink.accept(entry.directory, entry.totalBytes);
+    }
+
+    public int getCachedDirectoryCount() {
+        return entries.size();
+    }
+
+    private Entry lookup(Path directory) {
+        Entry cached = cachedEntry(directory);
+        if (cached != null) {
+            return cached;
+        }
+        Entry walked = new SizeWalker().walk(directory);
+        // Gone, or no longer a directory
+        return walked != null ? walked : new Entry(directory, 0L, 0L, NO_CHILDREN, false);
+    }
+
+    private Entry cachedEntry(Path directory) {
+        Entry entry = entries.get(directory);
+        if (entry != null && entry.version == currentVersion(directory)) {
+            return entry;
+        }
+        return null;
+    }
+
+    private long currentVersion(Path directory) {
+        Long version = versions.get(directory);
+        return version == null ? 0L : version;
+    }
+
+    private void invalidate(Path directory) {
+        for (Path p = directory; p != null; p = p.getParent()) {
+            versions.merge(p, 1L, Long::sum);
+            entries.remove(p);
+        }
+    }
+
+    @Override
+    public void directoryChanged(Path directory) {
+        invalidate(directory);
+    }
+
+    @Override
+    public void directoryInvalid(Path directory) {
+        invalidate(directory);
+    }
+
+    // One du walk. A directory's version is taken before it is read, so a change during the walk leaves
+    // its entry out of date rather than wrongly current.
+    private class SizeWalker extends ParallelTreeWalker<Entry> {
+        // Version each directory being read had when reading started; absent when it cannot be watched
+        private final Map<Path, Long> startVersions = new ConcurrentHashMap<>();
+
+        @Override
+        protected Entry preVisitDirectory(Path directory) {
+            Entry cached = cachedEntry(directory);
+            if (cached != null) {
+                return cached;
+            }
+            // Watch before listing so that a change during the walk bumps the version we captured
+            if (watcher != null && watcher.register(directory)) {
+                startVersions.put(directory, currentVersion(directory));
+            }
+            return null;
+        }
+
+        @Override
+        protected long visitFile(Path file, BasicFileAttributes attributes) {
+            return attributes.size();
+        }
+
+        @Override
+        protected Entry postVisitDirectory(Path directory, long total, List<Entry> subdirectories, boolean complete) {
+            Long version = startVersions.remove(directory);
+            // Entries that could not be read are not counted, so the total is only a best effort
+            boolean cacheable = complete && version != null;
+            Entry[] children = subdirectories.isEmpty() ? NO_CHILDREN : subdirectories.toArray(new Entry[0]);
+            for (Entry child : children) {
+                total += child.totalBytes;
+                cacheable &= child.cacheable;
+            }
+            Entry entry = new Entry(directory, version != null ? version : 0L, total, children, cacheable);
+            if (cacheable) {
+                entries.put(directory, entry);
+            }
+            return entry;
+        }
+    }
+}
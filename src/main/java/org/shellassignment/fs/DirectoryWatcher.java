@@ -0,0 +1,94 @@
+package org.shellassignment.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DirectoryWatcher implements Closeable {
+    public interface Listener {
+        // An entry directly inside the directory was created, deleted or modified (or events were lost)
+        void directoryChanged(Path directory);
+
+        // The directory can no longer be watched, usually because it was deleted
+        void directoryInvalid(Path directory);
+    }
+
+    private final WatchService watchService;
+    private final Map<Path, WatchKey> keys = new ConcurrentHashMap<>();
+    private final Listener listener;
+    private final Thread pollThread;
+
+    public DirectoryWatcher(String name, Listener listener) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.listener = listener;
+        this.pollThread = new Thread(this::pollEvents, name);
+        this.pollThread.setDaemon(true);
+        this.pollThread.start();
+    }
+
+    // Returns false when the directory cannot be watched (watch limit reached, unsupported filesystem, ...)
+    public boolean register(Path directory) {
+        if (keys.containsKey(directory)) {
+            return true;
+        }
+        try {
+            WatchKey key = directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(directory, key);
+            return true;
+        } catch (IOException | ClosedWatchServiceException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    public void unregister(Path directory) {
+        WatchKey key = keys.remove(directory);
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    public boolean isWatched(Path directory) {
+        return keys.containsKey(directory);
+    }
+
+    public int getWatchedCount() {
+        return keys.size();
+    }
+
+    private void pollEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            // Every event kind (including OVERFLOW) just means the directory's contents are stale
+            if (!key.pollEvents().isEmpty()) {
+                listener.directoryChanged(directory);
+            }
+            if (!key.reset()) {
+                keys.remove(directory, key);
+                listener.directoryInvalid(directory);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        keys.clear();
+        watchService.close();
+    }
+}
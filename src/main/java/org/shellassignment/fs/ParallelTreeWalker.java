@@ -0,0 +1,117 @@
+package org.shellassignment.fs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Visits a path and everything below it on the common fork/join pool; rm -r, du, chmod -R and chown -R
+// are all walks. Each directory is read by one task: entries that are not directories are visited inline
+// and subdirectories are forked, and the directory is finished once they all are, so its result can be
+// built from theirs. Symbolic links are visited but never followed.
+//
+// The hooks run on several threads at once, each directory's on the thread that reads it. A walker
+// collects the errors of one walk.
+public abstract class ParallelTreeWalker<R> {
+    private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+
+    // Returns the root's result, or null when the root is not a directory
+    public R walk(Path root) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            error("No such file or directory: " + root);
+            return null;
+        } catch (IOException e) {
+            error("Cannot read " + root + ": " + e.getMessage());
+            return null;
+        }
+        if (!attributes.isDirectory()) {
+            visitFile(root, attributes);
+            return null;
+        }
+        return ForkJoinPool.commonPool().invoke(new WalkTask(root));
+    }
+
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    protected void error(String message) {
+        errors.add(message);
+    }
+
+    // Before a directory is read. A result skips it: nothing below it is visited and the result stands for it.
+    protected R preVisitDirectory(Path directory) {
+        return null;
+    }
+
+    // An entry that is not a directory; returns what it adds to its directory's total
+    protected abstract long visitFile(Path file, BasicFileAttributes attributes);
+
+    // After everything below the directory. subdirectories holds their results in listing order; complete is
+    // false when the directory or one of its entries could not be read.
+    protected abstract R postVisitDirectory(Path directory, long total, List<R> subdirectories, boolean complete);
+
+    private class WalkTask extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        WalkTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected R compute() {
+            R skipped = preVisitDirectory(directory);
+            if (skipped != null) {
+                return skipped;
+            }
+
+            long total = 0;
+            boolean complete = true;
+            List<WalkTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        // Removed since the listing
+                        continue;
+                    } catch (IOException e) {
+                        error("Cannot read " + entry + ": " + e.getMessage());
+                        complete = false;
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new WalkTask(entry));
+                    } else {
+                        total += visitFile(entry, attributes);
+                    }
+                }
+            } catch (IOException e) {
+                error("Cannot read directory " + directory + ": " + e.getMessage());
+                complete = false;
+            }
+
+            invokeAll(subdirectories);
+            List<R> results = new ArrayList<>(subdirectories.size());
+            for (WalkTask subdirectory : subdirectories) {
+                results.add(subdirectory.join());
+            }
+            return postVisitDirectory(directory, total, results, complete);
+        }
+    }
+}
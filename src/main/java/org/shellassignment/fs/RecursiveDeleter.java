@@ -0,0 +1,88 @@
+package org.shellassignment.fs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+// rm -r as a tree walk: files go as their directory is read, a directory once everything in it is gone.
+// The root itself goes if the caller has checked its parent; the walk only checks directories it empties.
+public class RecursiveDeleter extends ParallelTreeWalker<Boolean> {
+    private final Predicate<Path> canModifyDirectory;
+    private final boolean force;
+    private final Queue<Path> deleted = new ConcurrentLinkedQueue<>();
+    // Entries still there when the walk is done; a directory denied counts once, with all it holds
+    private final LongAdder remaining = new LongAdder();
+
+    // canModifyDirectory is asked once per directory; the entries inside it are covered by that answer
+    public RecursiveDeleter(Predicate<Path> canModifyDirectory, boolean force) {
+        this.canModifyDirectory = canModifyDirectory;
+        this.force = force;
+    }
+
+    public void delete(Path root) {
+        if (force && !Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        walk(root);
+    }
+
+    public List<Path> getDeletedPaths() {
+        return new ArrayList<>(deleted);
+    }
+
+    public long getRemainingCount() {
+        return remaining.sum();
+    }
+
+    @Override
+    protected Boolean preVisitDirectory(Path directory) {
+        if (!canModifyDirectory.test(directory)) {
+            error("Permission denied: " + directory);
+            remaining.increment();
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    @Override
+    protected long visitFile(Path file, BasicFileAttributes attributes) {
+        deleteOne(file);
+        return 0;
+    }
+
+    @Override
+    protected Boolean postVisitDirectory(Path directory, long total, List<Boolean> subdirectories, boolean complete) {
+        // Whatever could not be read is still in there
+        if (!complete) {
+            remaining.increment();
+            return false;
+        }
+        return deleteOne(directory);
+    }
+
+    private boolean deleteOne(Path target) {
+        try {
+            Files.delete(target);
+            deleted.add(target);
+            return true;
+        } catch (NoSuchFileException e) {
+            // Already gone, nothing to report
+            return true;
+        } catch (IOException e) {
+            if (!force) {
+                error("Cannot remove " + target + ": " + e.getMessage());
+            }
+            remaining.increment();
+            return false;
+        }
+    }
+}
@@ -1,23 +1,34 @@
 package org.shellassignment.memory;
 
-import java.util.Scanner;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+import org.shellassignment.console.ConsoleInput;
 
 public class MemoryManagementDemo {
     public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
-        
+        try {
+            // Reads through the shell's console input, so it can share stdin with anything else that prompts
+            run(ConsoleInput.get());
+        } catch (InputMismatchException e) {
+            System.out.println("\nError: " + e.getMessage());
+        } catch (NoSuchElementException e) {
+            System.out.println("\nInput ended. Exiting...");
+        }
+    }
+
+    private static void run(ConsoleInput input) {
         System.out.println("Memory Management System Demo");
         System.out.println("============================");
         
         // Get memory configuration
         System.out.print("Enter total number of frames: ");
-        int totalFrames = scanner.nextInt();
+        int totalFrames = input.nextInt();
         
         System.out.println("\nSelect page replacement algorithm:");
         System.out.println("1. FIFO (First-In-First-Out)");
         System.out.println("2. LRU (Least Recently Used)");
         System.out.print("Enter your choice (1 or 2): ");
-        int algorithmChoice = scanner.nextInt();
+        int algorithmChoice = input.nextInt();
         
         PageReplacementAlgorithm algorithm = 
             (algorithmChoice == 1) ? PageReplacementAlgorithm.FIFO 
@@ -34,23 +45,23 @@ public class MemoryManagementDemo {
             System.out.println("5. Exit");
             System.out.print("Enter your choice (1-5): ");
             
-            int choice = scanner.nextInt();
+            int choice = input.nextInt();
             
             switch (choice) {
                 case 1:
                     System.out.print("Enter process ID: ");
-                    int processId = scanner.nextInt();
+                    int processId = input.nextInt();
                     System.out.print("Enter number of pages to allocate: ");
-                    int numPages = scanner.nextInt();
+                    int numPages = input.nextInt();
                     memoryManager.allocatePages(processId, numPages);
                     System.out.println("Memory allocated successfully!");
                     break;
                     
                 case 2:
                     System.out.print("Enter process ID: ");
-                    processId = scanner.nextInt();
+                    processId = input.nextInt();
                     System.out.print("Enter page ID to access: ");
-                    int pageId = scanner.nextInt();
+                    int pageId = input.nextInt();
                     boolean success = memoryManager.accessPage(processId, pageId);
                     if (success) {
                         System.out.println("Page access successful!");
@@ -61,7 +72,7 @@ public class MemoryManagementDemo {
                     
                 case 3:
                     System.out.print("Enter process ID to deallocate: ");
-                    processId = scanner.nextInt();
+                    processId = input.nextInt();
                     memoryManager.freeProcessPages(processId);
                     System.out.println("Memory deallocated successfully!");
                     break;
@@ -72,7 +83,6 @@ public class MemoryManagementDemo {
                     
                 case 5:
                     System.out.println("Exiting...");
-                    scanner.close();
                     return;
                     
                 default:
@@ -0,0 +1,211 @@
+package org.shellassignment.permissions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Named user and group entries layered over a FilePermission's owner/group/other triplets. Group
+// entries are also kept as one bitset per permission, so matching a user's groups is a bitwise
+// intersection however many groups there are. Instances are immutable; modify returns a new one.
+//
+// As in POSIX.1e, the mask limits what named users and the group class (owning group and named groups)
+// are granted. Without a mask entry it is the union of those entries, so it limits nothing. A mask entry,
+// once set, stays through later changes that do not give one, until it is removed with m:: or replaced;
+// an ACL holding only a mask still limits the owning group.
+//
+// Text form, as used by setfacl and the permission store: user:bob:rwx,group:dev:r-x,mask::r-x
+// (u:, g: and m: are accepted as short forms, and perms may also be given as a subset like "rx").
+public final class Acl {
+    private final int[] userIds;
+    private final int[] userBits;
+    private final int[] groupIds;
+    private final int[] groupBits;
+    private final GroupSet namedGroups;
+    private final GroupSet readGroups;
+    private final GroupSet writeGroups;
+    private final GroupSet executeGroups;
+    // Bits of the mask entry, or -1 when there is none
+    private final int maskBits;
+
+    private Acl(Map<Integer, Integer> users, Map<Integer, Integer> groups, int maskBits) {
+        this.maskBits = maskBits;
+        userIds = new int[users.size()];
+        userBits = new int[users.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> user : users.entrySet()) {
+            userIds[i] = user.getKey();
+            userBits[i++] = user.getValue();
+        }
+
+        groupIds = new int[groups.size()];
+        groupBits = new int[groups.size()];
+        GroupSet named = GroupSet.EMPTY;
+        GroupSet read = GroupSet.EMPTY;
+        GroupSet write = GroupSet.EMPTY;
+        GroupSet execute = GroupSet.EMPTY;
+        i = 0;
+        for (Map.Entry<Integer, Integer> group : groups.entrySet()) {
+            int id = group.getKey();
+            int bits = group.getValue();
+            groupIds[i] = id;
+            groupBits[i++] = bits;
+            named = named.with(id);
+            read = (bits & FilePermission.READ_BIT) != 0 ? read.with(id) : read;
+            write = (bits & FilePermission.WRITE_BIT) != 0 ? write.with(id) : write;
+            execute = (bits & FilePermission.EXECUTE_BIT) != 0 ? execute.with(id) : execute;
+        }
+        namedGroups = named;
+        readGroups = read;
+        writeGroups = write;
+        executeGroups = execute;
+    }
+
+    // Bits of the named entry for this user, or -1 when there is none
+    public int userBits(int userId) {
+        for (int i = 0; i < userIds.length; i++) {
+            if (userIds[i] == userId) {
+                return userBits[i];
+            }
+        }
+        return -1;
+    }
+
+    // Union of the named group entries matching any of the groups, or -1 when none match
+    public int groupBits(GroupSet groups) {
+        if (!groups.intersects(namedGroups)) {
+            return -1;
+        }
+        return (groups.intersects(readGroups) ? FilePermission.READ_BIT : 0)
+                | (groups.intersects(writeGroups) ? FilePermission.WRITE_BIT : 0)
+                | (groups.intersects(executeGroups) ? FilePermission.EXECUTE_BIT : 0);
+    }
+
+    public boolean isEmpty() {
+        return userIds.length == 0 && groupIds.length == 0 && maskBits < 0;
+    }
+
+    // What named users and the group class are granted at most: the mask entry, else the union of the
+    // named entries and the owning group's bits
+    public int mask(int owningGroupBits) {
+        if (maskBits >= 0) {
+            return maskBits;
+        }
+        int mask = owningGroupBits;
+        for (int bits : userBits) {
+            mask |= bits;
+        }
+        for (int bits : groupBits) {
+            mask |= bits;
+        }
+        return mask;
+    }
+
+    public List<String> entries() {
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < userIds.length; i++) {
+            entries.add("user:" + IdTable.USERS.nameOf(userIds[i]) + ":" + triplet(userBits[i]));
+        }
+        for (int i = 0; i < groupIds.length; i++) {
+            entries.add("group:" + IdTable.GROUPS.nameOf(groupIds[i]) + ":" + triplet(groupBits[i]));
+        }
+        if (maskBits >= 0) {
+            entries.add("mask::" + triplet(maskBits));
+        }
+        return entries;
+    }
+
+    static String triplet(int bits) {
+        return FilePermission.modeString(bits).substring(6);
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", entries());
+    }
+
+    public static Acl parse(String text) {
+        return modify(null, text);
+    }
+
+    // Adds or replaces the entries in spec, keeping the mask unless spec sets one; returns null if spec is
+    // not valid
+    public static Acl modify(Acl base, String spec) {
+        return apply(base, spec, false);
+    }
+
+    // Removes the entries named in spec (perms, if given, are ignored), the mask too if spec names it;
+    // returns null if spec is not valid
+    public static Acl remove(Acl base, String spec) {
+        return apply(base, spec, true);
+    }
+
+    private static Acl apply(Acl base, String spec, boolean remove) {
+        Map<Integer, Integer> users = new TreeMap<>();
+        Map<Integer, Integer> groups = new TreeMap<>();
+        int mask = base != null ? base.maskBits : -1;
+        if (base != null) {
+            for (int i = 0; i < base.userIds.length; i++) {
+                users.put(base.userIds[i], base.userBits[i]);
+            }
+            for (int i = 0; i < base.groupIds.length; i++) {
+                groups.put(base.groupIds[i], base.groupBits[i]);
+            }
+        }
+
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":", -1);
+            if (parts.length < 2 || parts.length > 3 || (!remove && parts.length != 3)) {
+                return null;
+            }
+            boolean user = "u".equals(parts[0]) || "user".equals(parts[0]);
+            boolean group = "g".equals(parts[0]) || "group".equals(parts[0]);
+            boolean isMask = "m".equals(parts[0]) || "mask".equals(parts[0]);
+            // The mask has no name: mask::r-x
+            if (isMask ? !parts[1].isEmpty() : (!user && !group) || parts[1].isEmpty()) {
+                return null;
+            }
+            if (isMask) {
+                mask = remove ? -1 : parseBits(parts[2]);
+                if (!remove && mask < 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (remove) {
+                if (user) {
+                    users.remove(IdTable.USERS.intern(parts[1]));
+                } else {
+                    groups.remove(IdTable.GROUPS.intern(parts[1]));
+                }
+                continue;
+            }
+            int bits = parseBits(parts[2]);
+            if (bits < 0) {
+                return null;
+            }
+            if (user) {
+                users.put(IdTable.USERS.intern(parts[1]), bits);
+            } else {
+                groups.put(IdTable.GROUPS.intern(parts[1]), bits);
+            }
+        }
+        return new Acl(users, groups, mask);
+    }
+
+    // Accepts "r-x" or any subset of "rwx" in any order; returns -1 otherwise
+    private static int parseBits(String perms) {
+        if (perms.length() == 3 && FilePermission.parseMode("------" + perms) >= 0) {
+            return FilePermission.parseMode("------" + perms);
+        }
+        int bits = 0;
+        for (char c : perms.toCharArray()) {
+            int bit = "rwx".indexOf(c);
+            if (bit < 0) {
+                return -1;
+            }
+            bits |= 4 >> bit;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,187 @@
+package org.shellassignment.permissions;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Resolves an external command to the file that would run and decides whether the user may execute it.
+// PATH lookups are cached per command name and execute decisions per (user, binary); decisions are
+// tagged with the decision cache's epoch, so any chmod, chown, ACL or group change retires them all.
+// Decisions that came from the file's real attributes are not kept, since those change without an epoch bump.
+// On Windows a command without one of the PATHEXT extensions is looked up with each of them in turn, as
+// cmd.exe does, so "git" finds git.exe.
+public class ExecutableResolver {
+    public enum Status { ALLOWED, DENIED, NOT_FOUND }
+
+    public static final class Launch {
+        public final Status status;
+        // Absolute path of the binary; null when it was not found
+        public final String path;
+
+        Launch(Status status, String path) {
+            this.status = status;
+            this.path = path;
+        }
+    }
+
+    private static final class Decision {
+        final long epoch;
+        final boolean allowed;
+
+        Decision(long epoch, boolean allowed) {
+            this.epoch = epoch;
+            this.allowed = allowed;
+        }
+    }
+
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private final PermissionManager permissionManager;
+    private final String[] extensions;
+    private final String defaultPath;
+    private final String[] searchPath;
+    private final Map<String, String> resolved = new ConcurrentHashMap<>();
+    private final Map<String, Decision> decisions = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ExecutableResolver(PermissionManager permissionManager) {
+        this(permissionManager, System.getenv("PATH"));
+    }
+
+    public ExecutableResolver(PermissionManager permissionManager, String path) {
+        this(permissionManager, path, WINDOWS ? extensionsOf(System.getenv("PATHEXT")) : new String[0]);
+    }
+
+    // extensions are appended to commands that do not already end in one; empty where there is no PATHEXT
+    public ExecutableResolver(PermissionManager permissionManager, String path, String[] extensions) {
+        this.permissionManager = permissionManager;
+        this.extensions = extensions;
+        this.defaultPath = path;
+        this.searchPath = searchPathOf(path);
+    }
+
+    // The directories of a PATH value; empty entries, which mean the current directory, are left out
+    public static String[] searchPathOf(String path) {
+        if (path == null) {
+            return new String[0];
+        }
+        return Arrays.stream(path.split(File.pathSeparator)).filter(d -> !d.isEmpty()).toArray(String[]::new);
+    }
+
+    // The extensions of a PATHEXT value, with cmd.exe's list when it is unset
+    public static String[] extensionsOf(String pathext) {
+        if (pathext == null || pathext.trim().isEmpty()) {
+            pathext = ".COM;.EXE;.BAT;.CMD";
+        }
+        return Arrays.stream(pathext.split(";")).map(String::trim).filter(e -> e.startsWith("."))
+                .toArray(String[]::new);
+    }
+
+    public Launch check(String command, File workingDirectory, String username) {
+        return check(command, workingDirectory, username, null);
+    }
+
+    // searchPath is the caller's PATH when it may differ from the shell's own; null means the shell's
+    public Launch check(String command, File workingDirectory, String username, String searchPath) {
+        String path = resolve(command, workingDirectory, searchPath);
+        if (path == null) {
+            return new Launch(Status.NOT_FOUND, null);
+        }
+
+        String key = username + '\n' + path;
+        long epoch = permissionManager.getDecisionCache().epoch();
+        Decision decision = decisions.get(key);
+        if (decision != null && decision.epoch == epoch) {
+            hits.increment();
+            return new Launch(decision.allowed ? Status.ALLOWED : Status.DENIED, path);
+        }
+
+        misses.increment();
+        boolean allowed = permissionManager.canExecute(path, username);
+        PosixPermissionSource posix = permissionManager.getPosixSource();
+        if (posix == null || permissionManager.getFilePermission(path) != null) {
+            decisions.put(key, new Decision(epoch, allowed));
+        }
+        return new Launch(allowed ? Status.ALLOWED : Status.DENIED, path);
+    }
+
+    // The absolute path the command runs from: relative to the working directory when it names a path,
+    // else the first match on PATH
+    public String resolve(String command, File workingDirectory, String searchPath) {
+        if (command.indexOf(File.separatorChar) >= 0 || command.indexOf('/') >= 0) {
+            for (String candidate : candidates(command)) {
+                File file = new File(candidate);
+                if (!file.isAbsolute()) {
+                    file = new File(workingDirectory, candidate);
+                }
+                file = file.toPath().normalize().toFile();
+                if (file.isFile()) {
+                    return file.getPath();
+                }
+            }
+            return null;
+        }
+
+        if (searchPath != null && !searchPath.equals(defaultPath)) {
+            // Only the shell's own PATH is cached; a session that exported its own searches it each time
+            return search(command, searchPathOf(searchPath));
+        }
+        String cached = resolved.get(command);
+        // A cached binary that has since been removed is looked up again rather than reported missing
+        if (cached != null && new File(cached).isFile()) {
+            return cached;
+        }
+        String found = search(command, this.searchPath);
+        if (found != null) {
+            resolved.put(command, found);
+        } else {
+            resolved.remove(command);
+        }
+        return found;
+    }
+
+    private String search(String command, String[] directories) {
+        String[] names = candidates(command);
+        for (String directory : directories) {
+            for (String name : names) {
+                File candidate = new File(directory, name);
+                if (candidate.isFile() && candidate.canExecute()) {
+                    return candidate.getAbsoluteFile().toPath().normalize().toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    // The file names a command may run from: itself if it already ends in an executable extension (or
+    // there are none), else the command with each extension in PATHEXT order
+    private String[] candidates(String command) {
+        if (extensions.length == 0) {
+            return new String[]{command};
+        }
+        for (String extension : extensions) {
+            if (command.regionMatches(true, command.length() - extension.length(), extension, 0, extension.length())) {
+                return new String[]{command};
+            }
+        }
+        String[] names = new String[extensions.length];
+        for (int i = 0; i < extensions.length; i++) {
+            names[i] = command + extensions[i].toLowerCase();
+        }
+        return names;
+    }
+
+    public void printStatistics() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        System.out.println("=== Execute Permission Cache ===");
+        System.out.println("Resolved commands: " + resolved.size());
+        System.out.println("Cached decisions: " + decisions.size());
+        System.out.println("Hits: " + hitCount);
+        System.out.println("Misses: " + (lookups - hitCount));
+        System.out.printf("Hit ratio: %.1f%%%n", lookups == 0 ? 0.0 : 100.0 * hitCount / lookups);
+    }
+}
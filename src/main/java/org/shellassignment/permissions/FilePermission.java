@@ -18,119 +18,320 @@ public class FilePermission {
         public String getSymbol() {
             return symbol;
         }
+
+        // Bit for this permission within one rwx triplet
+        int bit() {
+            return 4 >> ordinal();
+        }
     }
 
-    private final String owner;
-    private final Set<Permission> ownerPermissions;
-    private final Set<Permission> groupPermissions;
-    private final Set<Permission> otherPermissions;
-    private final String group;
+    // Mode layout matches POSIX: special bits, then owner, group and other rwx triplets
+    public static final int SETUID = 04000;
+    public static final int SETGID = 02000;
+    public static final int STICKY = 01000;
+    public static final int READ_BIT = 4;
+    public static final int WRITE_BIT = 2;
+    public static final int EXECUTE_BIT = 1;
+    private static final int OWNER_SHIFT = 6;
+    private static final int GROUP_SHIFT = 3;
+    private static final int OTHER_SHIFT = 0;
+    private static final int MODE_MASK = 07777;
+
+    private static final String[] MODE_STRINGS = new String[512];
+
+    static {
+        char[] symbols = {'r', 'w', 'x'};
+        for (int mode = 0; mode < MODE_STRINGS.length; mode++) {
+            char[] chars = new char[9];
+            for (int i = 0; i < 9; i++) {
+                chars[i] = (mode & (0400 >> i)) != 0 ? symbols[i % 3] : '-';
+            }
+            MODE_STRINGS[mode] = new String(chars);
+        }
+    }
+
+    private final int ownerId;
+    private final int groupId;
+    // Null unless named user or group entries were added with setfacl
+    private final Acl acl;
+    // PermissionManager never mutates a published permission; the setters stay safe for direct callers
+    private volatile short mode;
 
     public FilePermission(String owner, String group) {
-        this.owner = owner;
-        this.group = group;
-        this.ownerPermissions = EnumSet.of(Permission.READ, Permission.WRITE);
-        this.groupPermissions = EnumSet.of(Permission.READ);
-        this.otherPermissions = EnumSet.of(Permission.READ);
+        this(owner, group, 0644);
     }
 
-    public FilePermission(String owner, String group, Set<Permission> ownerPerms, 
+    public FilePermission(String owner, String group, Set<Permission> ownerPerms,
                          Set<Permission> groupPerms, Set<Permission> otherPerms) {
-        this.owner = owner;
-        this.group = group;
-        this.ownerPermissions = EnumSet.copyOf(ownerPerms);
-        this.groupPermissions = EnumSet.copyOf(groupPerms);
-        this.otherPermissions = EnumSet.copyOf(otherPerms);
+        this(owner, group, toBits(ownerPerms) << OWNER_SHIFT | toBits(groupPerms) << GROUP_SHIFT | toBits(otherPerms));
+    }
+
+    public FilePermission(String owner, String group, int mode) {
+        this(IdTable.USERS.intern(owner), IdTable.GROUPS.intern(group), mode);
+    }
+
+    public FilePermission(int ownerId, int groupId, int mode) {
+        this(ownerId, groupId, mode, null);
+    }
+
+    public FilePermission(int ownerId, int groupId, int mode, Acl acl) {
+        this.ownerId = ownerId;
+        this.groupId = groupId;
+        this.mode = (short) (mode & MODE_MASK);
+        this.acl = acl == null || acl.isEmpty() ? null : acl;
     }
 
     public boolean canRead(String username, String userGroup) {
-        if (owner.equals(username)) {
-            return ownerPermissions.contains(Permission.READ);
-        } else if (group.equals(userGroup)) {
-            return groupPermissions.contains(Permission.READ);
-        } else {
-            return otherPermissions.contains(Permission.READ);
-        }
+        return canRead(IdTable.USERS.idOf(username), IdTable.GROUPS.idOf(userGroup));
     }
 
     public boolean canWrite(String username, String userGroup) {
-        if (owner.equals(username)) {
-            return ownerPermissions.contains(Permission.WRITE);
-        } else if (group.equals(userGroup)) {
-            return groupPermissions.contains(Permission.WRITE);
-        } else {
-            return otherPermissions.contains(Permission.WRITE);
-        }
+        return canWrite(IdTable.USERS.idOf(username), IdTable.GROUPS.idOf(userGroup));
     }
 
     public boolean canExecute(String username, String userGroup) {
-        if (owner.equals(username)) {
-            return ownerPermissions.contains(Permission.EXECUTE);
-        } else if (group.equals(userGroup)) {
-            return groupPermissions.contains(Permission.EXECUTE);
-        } else {
-            return otherPermissions.contains(Permission.EXECUTE);
+        return canExecute(IdTable.USERS.idOf(username), IdTable.GROUPS.idOf(userGroup));
+    }
+
+    public boolean canRead(int userId, int userGroupId) {
+        return (permissionBits(userId, userGroupId) & READ_BIT) != 0;
+    }
+
+    public boolean canWrite(int userId, int userGroupId) {
+        return (permissionBits(userId, userGroupId) & WRITE_BIT) != 0;
+    }
+
+    public boolean canExecute(int userId, int userGroupId) {
+        return (permissionBits(userId, userGroupId) & EXECUTE_BIT) != 0;
+    }
+
+    // The rwx triplet that applies to this user: owner, else group, else other
+    public int permissionBits(int userId, int userGroupId) {
+        int shift = userId == ownerId ? OWNER_SHIFT : userGroupId == groupId ? GROUP_SHIFT : OTHER_SHIFT;
+        return (mode >> shift) & 7;
+    }
+
+    // The bits that apply to a user in any number of groups: owner, else a named user entry, else the
+    // union of every matching group entry (owning group included), else other. The ACL's mask limits
+    // the named user and group answers.
+    public int permissionBits(int userId, GroupSet groups) {
+        int mode = this.mode;
+        if (userId == ownerId) {
+            return (mode >> OWNER_SHIFT) & 7;
+        }
+        int owningGroupBits = (mode >> GROUP_SHIFT) & 7;
+        Acl acl = this.acl;
+        if (acl != null) {
+            int bits = acl.userBits(userId);
+            if (bits >= 0) {
+                return bits & acl.mask(owningGroupBits);
+            }
         }
+        int bits = groups.contains(groupId) ? owningGroupBits : -1;
+        if (acl != null) {
+            int named = acl.groupBits(groups);
+            if (named >= 0) {
+                bits = bits < 0 ? named : bits | named;
+            }
+            if (bits >= 0) {
+                bits &= acl.mask(owningGroupBits);
+            }
+        }
+        return bits >= 0 ? bits : mode & 7;
     }
 
     public void setOwnerPermissions(Set<Permission> permissions) {
-        this.ownerPermissions.clear();
-        this.ownerPermissions.addAll(permissions);
+        setTriplet(OWNER_SHIFT, toBits(permissions));
     }
 
     public void setGroupPermissions(Set<Permission> permissions) {
-        this.groupPermissions.clear();
-        this.groupPermissions.addAll(permissions);
+        setTriplet(GROUP_SHIFT, toBits(permissions));
     }
 
     public void setOtherPermissions(Set<Permission> permissions) {
-        this.otherPermissions.clear();
-        this.otherPermissions.addAll(permissions);
+        setTriplet(OTHER_SHIFT, toBits(permissions));
+    }
+
+    private synchronized void setTriplet(int shift, int bits) {
+        mode = (short) ((mode & ~(7 << shift)) | (bits << shift));
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public synchronized void setMode(int mode) {
+        this.mode = (short) (mode & MODE_MASK);
     }
 
     public String getOwner() {
-        return owner;
+        return IdTable.USERS.nameOf(ownerId);
     }
 
     public String getGroup() {
-        return group;
+        return IdTable.GROUPS.nameOf(groupId);
+    }
+
+    public int getOwnerId() {
+        return ownerId;
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
+    public Acl getAcl() {
+        return acl;
     }
 
     public Set<Permission> getOwnerPermissions() {
-        return EnumSet.copyOf(ownerPermissions);
+        return toSet(mode >> OWNER_SHIFT);
     }
 
     public Set<Permission> getGroupPermissions() {
-        return EnumSet.copyOf(groupPermissions);
+        return toSet(mode >> GROUP_SHIFT);
     }
 
     public Set<Permission> getOtherPermissions() {
-        return EnumSet.copyOf(otherPermissions);
+        return toSet(mode >> OTHER_SHIFT);
+    }
+
+    private static int toBits(Set<Permission> permissions) {
+        int bits = 0;
+        for (Permission permission : permissions) {
+            bits |= permission.bit();
+        }
+        return bits;
+    }
+
+    private static Set<Permission> toSet(int bits) {
+        Set<Permission> permissions = EnumSet.noneOf(Permission.class);
+        for (Permission permission : Permission.values()) {
+            if ((bits & permission.bit()) != 0) {
+                permissions.add(permission);
+            }
+        }
+        return permissions;
+    }
+
+    // Parses the 9-character rwxrwxrwx form; returns -1 if the string is not in that form
+    public static int parseMode(String mode) {
+        if (mode.length() != 9) {
+            return -1;
+        }
+        int bits = 0;
+        for (int i = 0; i < 9; i++) {
+            char c = mode.charAt(i);
+            if (c == "rwx".charAt(i % 3)) {
+                bits |= 0400 >> i;
+            } else if (c != '-') {
+                return -1;
+            }
+        }
+        return bits;
+    }
+
+    // Applies a mode given as rwxrwxrwx, octal (644, 4755) or symbolic clauses (u+x,go-w,a=r) to the
+    // current mode; returns -1 if the spec is in none of those forms
+    public static int applyMode(String spec, int current) {
+        int bits = parseMode(spec);
+        if (bits >= 0) {
+            return bits;
+        }
+        if (!spec.isEmpty() && spec.length() <= 4 && spec.chars().allMatch(c -> c >= '0' && c <= '7')) {
+            return Integer.parseInt(spec, 8);
+        }
+
+        int mode = current & MODE_MASK;
+        for (String clause : spec.split(",", -1)) {
+            int i = 0;
+            int who = 0;
+            for (; i < clause.length() && "ugoa".indexOf(clause.charAt(i)) >= 0; i++) {
+                who |= whoMask(clause.charAt(i));
+            }
+            if (who == 0) {
+                who = MODE_MASK;
+            }
+            if (i == clause.length()) {
+                return -1;
+            }
+            // One clause may carry several operations, as in u+x-w
+            while (i < clause.length()) {
+                char op = clause.charAt(i++);
+                if (op != '+' && op != '-' && op != '=') {
+                    return -1;
+                }
+                int perms = 0;
+                for (; i < clause.length() && "rwxst".indexOf(clause.charAt(i)) >= 0; i++) {
+                    perms |= permMask(clause.charAt(i));
+                }
+                perms &= who;
+                if (op == '+') {
+                    mode |= perms;
+                } else if (op == '-') {
+                    mode &= ~perms;
+                } else {
+                    mode = (mode & ~who) | perms;
+                }
+            }
+        }
+        return mode;
+    }
+
+    // Every bit a u, g or o clause can touch, special bit included
+    private static int whoMask(char who) {
+        switch (who) {
+            case 'u':
+                return SETUID | 0700;
+            case 'g':
+                return SETGID | 0070;
+            case 'o':
+                return STICKY | 0007;
+            default:
+                return MODE_MASK;
+        }
+    }
+
+    private static int permMask(char perm) {
+        switch (perm) {
+            case 'r':
+                return 0444;
+            case 'w':
+                return 0222;
+            case 'x':
+                return 0111;
+            case 's':
+                return SETUID | SETGID;
+            default:
+                return STICKY;
+        }
+    }
+
+    public static String modeString(int mode) {
+        String base = MODE_STRINGS[mode & 0777];
+        if ((mode & (SETUID | SETGID | STICKY)) == 0) {
+            return base;
+        }
+        char[] chars = base.toCharArray();
+        if ((mode & SETUID) != 0) {
+            chars[2] = chars[2] == 'x' ? 's' : 'S';
+        }
+        if ((mode & SETGID) != 0) {
+            chars[5] = chars[5] == 'x' ? 's' : 'S';
+        }
+        if ((mode & STICKY) != 0) {
+            chars[8] = chars[8] == 'x' ? 't' : 'T';
+        }
+        return new String(chars);
     }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        
-        // Owner permissions
-        sb.append(ownerPermissions.contains(Permission.READ) ? "r" : "-");
-        sb.append(ownerPermissions.contains(Permission.WRITE) ? "w" : "-");
-        sb.append(ownerPermissions.contains(Permission.EXECUTE) ? "x" : "-");
-        
-        // Group permissions
-        sb.append(groupPermissions.contains(Permission.READ) ? "r" : "-");
-        sb.append(groupPermissions.contains(Permission.WRITE) ? "w" : "-");
-        sb.append(groupPermissions.contains(Permission.EXECUTE) ? "x" : "-");
-        
-        // Other permissions
-        sb.append(otherPermissions.contains(Permission.READ) ? "r" : "-");
-        sb.append(otherPermissions.contains(Permission.WRITE) ? "w" : "-");
-        sb.append(otherPermissions.contains(Permission.EXECUTE) ? "x" : "-");
-        
-        return sb.toString();
+        // Trailing + marks extra ACL entries, as ls -l does
+        return acl == null ? modeString(mode) : modeString(mode) + "+";
     }
 
     public String toDetailedString() {
-        return String.format("%s %s:%s", toString(), owner, group);
+        return String.format("%s %s:%s", toString(), getOwner(), getGroup());
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package org.shellassignment.permissions;
+
+import java.util.Arrays;
+
+// Immutable set of interned group IDs, one bit per group. Membership tests are a single word lookup and
+// intersections cost one AND per 64 groups.
+public final class GroupSet {
+    public static final GroupSet EMPTY = new GroupSet(new long[0]);
+
+    private final long[] words;
+
+    private GroupSet(long[] words) {
+        this.words = words;
+    }
+
+    public static GroupSet of(int... groupIds) {
+        GroupSet set = EMPTY;
+        for (int groupId : groupIds) {
+            set = set.with(groupId);
+        }
+        return set;
+    }
+
+    public boolean contains(int groupId) {
+        int word = groupId >>> 6;
+        return groupId >= 0 && word < words.length && (words[word] & (1L << groupId)) != 0;
+    }
+
+    public GroupSet with(int groupId) {
+        if (groupId < 0 || contains(groupId)) {
+            return this;
+        }
+        long[] copy = Arrays.copyOf(words, Math.max(words.length, (groupId >>> 6) + 1));
+        copy[groupId >>> 6] |= 1L << groupId;
+        return new GroupSet(copy);
+    }
+
+    public GroupSet without(int groupId) {
+        if (!contains(groupId)) {
+            return this;
+        }
+        long[] copy = words.clone();
+        copy[groupId >>> 6] &= ~(1L << groupId);
+        return new GroupSet(copy);
+    }
+
+    public GroupSet union(GroupSet other) {
+        long[] larger = words.length >= other.words.length ? words : other.words;
+        long[] smaller = larger == words ? other.words : words;
+        long[] result = larger.clone();
+        for (int i = 0; i < smaller.length; i++) {
+            result[i] |= smaller[i];
+        }
+        return new GroupSet(result);
+    }
+
+    public boolean intersects(GroupSet other) {
+        int length = Math.min(words.length, other.words.length);
+        for (int i = 0; i < length; i++) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int[] ids() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        int[] ids = new int[count];
+        int next = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                ids[next++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,53 @@
+package org.shellassignment.permissions;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Interns user and group names to dense int IDs so permission checks compare ints instead of strings
+public class IdTable {
+    public static final IdTable USERS = new IdTable();
+    public static final IdTable GROUPS = new IdTable();
+
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int size;
+
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = name;
+            // Publish the name before the ID so readers never see an ID without a name
+            names = current;
+            ids.put(name, size);
+            return size++;
+        }
+    }
+
+    // Looks up an ID without creating one; UNKNOWN never matches an owner or group
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? UNKNOWN : id;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
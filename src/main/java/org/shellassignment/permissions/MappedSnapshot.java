@@ -0,0 +1,184 @@
+package org.shellassignment.permissions;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// The entries of a snapshot, searched where they lie in the mapped file so permission checks can start
+// before the snapshot has been read into the tree. Entries are sorted by the bytes of their key (see
+// PermissionTree.key) and prefix-compressed against the one before, except that every BLOCK_SIZE-th
+// entry is written whole. A lookup binary searches those whole keys through the block index at the end
+// of the file, then scans a single block.
+//
+// Removals made while the snapshot is still in use hide its entries; the file itself is never changed.
+final class MappedSnapshot {
+    static final int BLOCK_SIZE = 64;
+
+    private final ByteBuffer buffer;
+    // File offset of the first entry of each block
+    private final int[] blocks;
+    private final int entryCount;
+    private final int[] ownerIds;
+    private final int[] groupIds;
+    private final Acl[] acls;
+    private final Set<String> hiddenPaths = ConcurrentHashMap.newKeySet();
+    private final Set<String> hiddenSubtrees = ConcurrentHashMap.newKeySet();
+
+    MappedSnapshot(ByteBuffer buffer, int[] blocks, int entryCount, int[] ownerIds, int[] groupIds, Acl[] acls) {
+        this.buffer = buffer;
+        this.blocks = blocks;
+        this.entryCount = entryCount;
+        this.ownerIds = ownerIds;
+        this.groupIds = groupIds;
+        this.acls = acls;
+    }
+
+    // The permission the snapshot holds for exactly this path, or null
+    FilePermission get(String path) {
+        String key = PermissionTree.key(path);
+        if (blocks.length == 0 || isHidden(key)) {
+            return null;
+        }
+        byte[] target = key.getBytes(StandardCharsets.UTF_8);
+        // Each reader moves its own position through the shared mapping
+        ByteBuffer in = buffer.duplicate();
+
+        // Last block whose first key is not after the target
+        int low = 0;
+        int high = blocks.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            in.position(blocks[middle]);
+            PermissionStore.readVarInt(in);
+            int length = PermissionStore.readVarInt(in);
+            if (compare(in, in.position(), length, target) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        in.position(blocks[low]);
+        byte[] entry = new byte[Math.max(64, target.length)];
+        int count = Math.min(BLOCK_SIZE, entryCount - low * BLOCK_SIZE);
+        for (int i = 0; i < count; i++) {
+            int shared = PermissionStore.readVarInt(in);
+            int suffix = PermissionStore.readVarInt(in);
+            if (shared + suffix > entry.length) {
+                byte[] larger = new byte[Math.max(entry.length * 2, shared + suffix)];
+                System.arraycopy(entry, 0, larger, 0, shared);
+                entry = larger;
+            }
+            in.get(entry, shared, suffix);
+            int order = compare(entry, shared + suffix, target);
+            if (order == 0) {
+                return readPermission(in);
+            }
+            if (order > 0) {
+                return null;
+            }
+            skipValue(in);
+        }
+        return null;
+    }
+
+    // Every entry not hidden, in key order, under the path it was saved with
+    void forEach(BiConsumer<String, FilePermission> action) {
+        if (blocks.length == 0) {
+            return;
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(blocks[0]);
+        // The key is kept after a leading '/', which makes the buffer the saved path of most entries
+        byte[] path = new byte[256];
+        path[0] = '/';
+        for (int i = 0; i < entryCount; i++) {
+            int shared = PermissionStore.readVarInt(in);
+            int suffix = PermissionStore.readVarInt(in);
+            if (1 + shared + suffix > path.length) {
+                byte[] larger = new byte[Math.max(path.length * 2, 1 + shared + suffix)];
+                System.arraycopy(path, 0, larger, 0, 1 + shared);
+                path = larger;
+            }
+            in.get(path, 1 + shared, suffix);
+            FilePermission permission = readPermission(in);
+            String saved = in.get() == 0 ? new String(path, 0, 1 + shared + suffix, StandardCharsets.UTF_8)
+                    : PermissionStore.readString(in);
+            if (hiddenPaths.isEmpty() && hiddenSubtrees.isEmpty()
+                    || !isHidden(new String(path, 1, shared + suffix, StandardCharsets.UTF_8))) {
+                action.accept(saved, permission);
+            }
+        }
+    }
+
+    void hide(String path) {
+        hiddenPaths.add(PermissionTree.key(path));
+    }
+
+    void hideSubtree(String path) {
+        hiddenSubtrees.add(PermissionTree.key(path));
+    }
+
+    private boolean isHidden(String key) {
+        if (hiddenPaths.contains(key)) {
+            return true;
+        }
+        if (hiddenSubtrees.isEmpty()) {
+            return false;
+        }
+        if (hiddenSubtrees.contains("") || hiddenSubtrees.contains(key)) {
+            return true;
+        }
+        for (int i = key.indexOf('/'); i >= 0; i = key.indexOf('/', i + 1)) {
+            if (hiddenSubtrees.contains(key.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reads the value of an entry up to the saved path, which the caller reads or skips
+    private FilePermission readPermission(ByteBuffer in) {
+        int owner = ownerIds[PermissionStore.readVarInt(in)];
+        int group = groupIds[PermissionStore.readVarInt(in)];
+        int mode = in.getShort();
+        Acl acl = acls[PermissionStore.readVarInt(in)];
+        return new FilePermission(owner, group, mode, acl);
+    }
+
+    private static void skipValue(ByteBuffer in) {
+        PermissionStore.readVarInt(in);
+        PermissionStore.readVarInt(in);
+        in.getShort();
+        PermissionStore.readVarInt(in);
+        if (in.get() != 0) {
+            int length = PermissionStore.readVarInt(in);
+            in.position(in.position() + length);
+        }
+    }
+
+    // Unsigned byte order, which is the order the snapshot is written in
+    static int compare(byte[] a, int aLength, byte[] b) {
+        int limit = Math.min(aLength, b.length);
+        for (int i = 0; i < limit; i++) {
+            int order = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return aLength - b.length;
+    }
+
+    private static int compare(ByteBuffer in, int offset, int length, byte[] b) {
+        int limit = Math.min(length, b.length);
+        for (int i = 0; i < limit; i++) {
+            int order = (in.get(offset + i) & 0xFF) - (b[i] & 0xFF);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return length - b.length;
+    }
+}
@@ -0,0 +1,92 @@
+package org.shellassignment.permissions;
+
+// Measures FilePermission checks per second. Run with:
+//   java -cp target/classes org.shellassignment.permissions.PermissionCheckBenchmark [seconds]
+public class PermissionCheckBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int PERMISSION_COUNT = 1024;
+    private static final int ACL_GROUPS = 512;
+
+    private interface Check {
+        boolean run(FilePermission permission, int i);
+    }
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+
+        String[] users = {"admin", "user1", "user2", "guest"};
+        String[] groups = {"admin", "users", "users", "guests"};
+        FilePermission[] permissions = new FilePermission[PERMISSION_COUNT];
+        for (int i = 0; i < permissions.length; i++) {
+            permissions[i] = new FilePermission(users[i % 3], groups[i % 3], (i * 37) & 0777);
+        }
+        int[] userIds = new int[users.length];
+        int[] groupIds = new int[groups.length];
+        for (int i = 0; i < users.length; i++) {
+            userIds[i] = IdTable.USERS.intern(users[i]);
+            groupIds[i] = IdTable.GROUPS.intern(groups[i]);
+        }
+
+        System.out.println("Permission Check Benchmark");
+        System.out.println("==========================");
+        measure("canRead(int, int)", seconds, permissions,
+                (p, i) -> p.canRead(userIds[i & 3], groupIds[i & 3]));
+        measure("canWrite(int, int)", seconds, permissions,
+                (p, i) -> p.canWrite(userIds[i & 3], groupIds[i & 3]));
+        measure("canExecute(int, int)", seconds, permissions,
+                (p, i) -> p.canExecute(userIds[i & 3], groupIds[i & 3]));
+        measure("canRead(String, String)", seconds, permissions,
+                (p, i) -> p.canRead(users[i & 3], groups[i & 3]));
+        measure("toString()", seconds, permissions,
+                (p, i) -> p.toString().charAt(0) == 'r');
+
+        // Users in a few hundred groups checked against ACLs naming a few hundred others
+        FilePermission[] withAcls = new FilePermission[PERMISSION_COUNT];
+        for (int i = 0; i < withAcls.length; i++) {
+            StringBuilder spec = new StringBuilder("u:guest:r");
+            for (int g = i % 2; g < ACL_GROUPS; g += 2) {
+                spec.append(",g:bench").append(g).append(g % 3 == 0 ? ":rw" : ":r");
+            }
+            withAcls[i] = new FilePermission(userIds[i % 3], groupIds[i % 3], (i * 37) & 0777, Acl.parse(spec.toString()));
+        }
+        GroupSet[] memberships = new GroupSet[users.length];
+        for (int u = 0; u < users.length; u++) {
+            GroupSet membership = GroupSet.of(groupIds[u]);
+            for (int g = u; g < ACL_GROUPS; g += 4) {
+                membership = membership.with(IdTable.GROUPS.intern("bench" + g));
+            }
+            memberships[u] = membership;
+        }
+        measure("canWrite(ACL, " + ACL_GROUPS + " groups)", seconds, withAcls,
+                (p, i) -> (p.permissionBits(userIds[i & 3], memberships[i & 3]) & FilePermission.WRITE_BIT) != 0);
+    }
+
+    private static void measure(String name, double seconds, FilePermission[] permissions, Check check) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            runFor(seconds / WARMUP_ROUNDS, permissions, check);
+        }
+        long[] result = runFor(seconds, permissions, check);
+        double opsPerSecond = result[0] / (result[1] / 1e9);
+        // Printing the allowed count keeps the JIT from discarding the checks
+        System.out.printf("%-26s %,15.0f ops/s  (allowed %d)%n", name, opsPerSecond, result[2]);
+    }
+
+    private static long[] runFor(double seconds, FilePermission[] permissions, Check check) {
+        long budget = (long) (seconds * 1e9);
+        long operations = 0;
+        long allowed = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            // Check the clock once per batch so timing stays out of the measured loop
+            for (int i = 0; i < permissions.length; i++) {
+                if (check.run(permissions[i], i)) {
+                    allowed++;
+                }
+            }
+            operations += permissions.length;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < budget);
+        return new long[]{operations, elapsed, allowed};
+    }
+}
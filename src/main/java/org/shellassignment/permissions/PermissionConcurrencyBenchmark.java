@@ -0,0 +1,175 @@
+package org.shellassignment.permissions;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Stress-checks PermissionManager under concurrent readers and a writer, then measures canRead
+// throughput as reader threads are added. Run with:
+//   java -cp target/classes org.shellassignment.permissions.PermissionConcurrencyBenchmark [seconds]
+public class PermissionConcurrencyBenchmark {
+    private static final String ROOT = "/stress";
+    private static final int DIRECTORIES = 64;
+    private static final int FILES_PER_DIRECTORY = 64;
+    // The only modes a writer ever publishes for user1's files; readers must never see anything else
+    private static final int MODE_A = 0400;
+    private static final int MODE_B = 0200;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        PermissionManager manager = new PermissionManager();
+        manager.setUserGroup("user1", "users");
+        manager.setFilePermissions(ROOT, "admin", "admin", 0755);
+
+        System.out.println("Permission Concurrency Stress Test");
+        System.out.println("==================================");
+        boolean passed = stress(manager, maxThreads, seconds);
+        System.out.println(passed ? "Result: PASS" : "Result: FAIL");
+
+        System.out.println("\nConcurrent canRead Throughput (one writer running)");
+        System.out.println("==================================================");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double opsPerSecond = throughput(manager, threads, seconds);
+            System.out.printf("%2d reader thread(s): %,15.0f checks/s%n", threads, opsPerSecond);
+        }
+    }
+
+    private static String path(int directory, int file) {
+        return ROOT + "/d" + directory + "/f" + file;
+    }
+
+    // Readers check that every effective permission is one the writer could have published
+    private static boolean stress(PermissionManager manager, int readers, double seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong violations = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        AtomicLong checks = new AtomicLong();
+        int user1 = IdTable.USERS.intern("user1");
+        int users = IdTable.GROUPS.intern("users");
+
+        Thread writer = new Thread(() -> {
+            int step = 0;
+            while (running.get()) {
+                int directory = step % DIRECTORIES;
+                int file = (step / DIRECTORIES) % FILES_PER_DIRECTORY;
+                switch (step % 3) {
+                    case 0:
+                        manager.setFilePermissions(path(directory, file), "user1", "users", MODE_A);
+                        break;
+                    case 1:
+                        manager.setFilePermissions(path(directory, file), "user1", "users", MODE_B);
+                        break;
+                    default:
+                        manager.removeFilePermission(path(directory, file));
+                }
+                step++;
+            }
+        }, "stress-writer");
+
+        Thread[] readerThreads = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            final int seed = t;
+            readerThreads[t] = new Thread(() -> {
+                int i = seed;
+                long local = 0;
+                while (running.get()) {
+                    try {
+                        FilePermission permission = manager.getEffectivePermission(
+                                path(i % DIRECTORIES, (i / DIRECTORIES) % FILES_PER_DIRECTORY));
+                        int bits = permission.permissionBits(user1, users);
+                        boolean inherited = permission.getOwnerId() != user1;
+                        // Inherited from ROOT (0755) gives user1 r-x through "other"; explicit must be r or w only
+                        boolean valid = inherited ? bits == 5 : (bits << 6 == MODE_A || bits << 6 == MODE_B);
+                        if (!valid) {
+                            violations.incrementAndGet();
+                        }
+                        manager.canRead(path(i % DIRECTORIES, 0), "user1");
+                        local++;
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                    i += 7;
+                }
+                checks.addAndGet(local);
+            }, "stress-reader-" + t);
+        }
+
+        writer.start();
+        for (Thread reader : readerThreads) {
+            reader.start();
+        }
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        writer.join();
+        for (Thread reader : readerThreads) {
+            reader.join();
+        }
+
+        System.out.printf("Readers: %d, checks: %,d, torn reads: %d, exceptions: %d%n",
+                readers, checks.get(), violations.get(), failures.get());
+        return violations.get() == 0 && failures.get() == 0;
+    }
+
+    private static double throughput(PermissionManager manager, int readers, double seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong total = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(readers);
+
+        Thread writer = new Thread(() -> {
+            int step = 0;
+            while (running.get()) {
+                manager.setFilePermissions(path(step % DIRECTORIES, 0), "user1", "users", (step & 1) == 0 ? MODE_A : MODE_B);
+                step++;
+                try {
+                    // Read-heavy workload: roughly one write per millisecond
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+
+        Thread[] threads = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                long local = 0;
+                long allowed = 0;
+                int i = seed;
+                started.countDown();
+                while (running.get()) {
+                    for (int batch = 0; batch < 1024; batch++) {
+                        if (manager.canRead(path(i % DIRECTORIES, i % FILES_PER_DIRECTORY), "user1")) {
+                            allowed++;
+                        }
+                        i += 13;
+                    }
+                    local += 1024;
+                }
+                total.addAndGet(local);
+                // Publishing the result keeps the checks from being optimized away
+                sink += allowed;
+            });
+        }
+
+        writer.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        started.await();
+        long start = System.nanoTime();
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        writer.join();
+        return total.get() / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,98 @@
+package org.shellassignment.permissions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remembers the rwx bits a user was granted on a path, so repeated checks skip the group lookup and
+// the tree walk. One entry answers read, write and execute checks alike. Every permission or group
+// change bumps the epoch, which retires all entries at once without touching them.
+public class PermissionDecisionCache {
+    public static final int DEFAULT_CAPACITY = 65536;
+    // Returned by lookup when there is no current decision
+    public static final int MISS = -1;
+
+    private static final class Decision {
+        final long epoch;
+        final int bits;
+
+        Decision(long epoch, int bits) {
+            this.epoch = epoch;
+            this.bits = bits;
+        }
+    }
+
+    private final int capacity;
+    // userId -> path -> decision
+    private final Map<Integer, Map<String, Decision>> decisions = new ConcurrentHashMap<>();
+    private final AtomicLong epoch = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PermissionDecisionCache() {
+        this(Integer.getInteger("mysh.perm.cache.size", DEFAULT_CAPACITY));
+    }
+
+    public PermissionDecisionCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Read before computing a decision and pass it to store, so a decision that raced with a change
+    // is stored already out of date
+    public long epoch() {
+        return epoch.get();
+    }
+
+    // Call after the change is visible to readers
+    public void invalidate() {
+        epoch.incrementAndGet();
+    }
+
+    public int lookup(int userId, String path, long currentEpoch) {
+        Map<String, Decision> userDecisions = decisions.get(userId);
+        Decision decision = userDecisions == null ? null : userDecisions.get(path);
+        if (decision == null || decision.epoch != currentEpoch) {
+            misses.increment();
+            return MISS;
+        }
+        hits.increment();
+        return decision.bits;
+    }
+
+    public void store(int userId, String path, long decisionEpoch, int bits) {
+        Map<String, Decision> userDecisions = decisions.computeIfAbsent(userId, id -> new ConcurrentHashMap<>());
+        if (userDecisions.size() >= capacity && !userDecisions.containsKey(path)) {
+            // Stale entries are never cleaned up one by one; starting over also drops them
+            userDecisions.clear();
+            evictions.increment();
+        }
+        userDecisions.put(path, new Decision(decisionEpoch, bits));
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public void printStatistics() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        int entries = 0;
+        for (Map<String, Decision> userDecisions : decisions.values()) {
+            entries += userDecisions.size();
+        }
+        System.out.println("=== Permission Decision Cache ===");
+        System.out.println("Cached decisions: " + entries + " across " + decisions.size() + " user(s), "
+                + capacity + " per user");
+        System.out.println("Hits: " + hitCount);
+        System.out.println("Misses: " + (lookups - hitCount));
+        System.out.printf("Hit ratio: %.1f%%%n", lookups == 0 ? 0.0 : 100.0 * hitCount / lookups);
+        System.out.println("Epoch: " + epoch.get());
+        System.out.println("Evictions: " + evictions.sum());
+    }
+}
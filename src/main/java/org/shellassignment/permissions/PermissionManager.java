@@ -1,20 +1,78 @@
 package org.shellassignment.permissions;
 
 import java.io.File;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import org.shellassignment.audit.AuditLog;
 
 public class PermissionManager {
-    private final Map<String, FilePermission> filePermissions;
+    private static final String DEFAULT_OWNER = "admin";
+
+    private final PermissionTree filePermissions;
     private final Map<String, String> userGroups; // username -> group mapping
+    private final Map<String, GroupSet> supplementaryGroups = new ConcurrentHashMap<>();
+    // username -> primary plus supplementary groups, rebuilt whenever either changes
+    private final Map<String, GroupSet> memberships = new ConcurrentHashMap<>();
+    // What a path with no explicit permission on it or its ancestors resolves to; never stored in the tree
+    private volatile FilePermission defaultPermission;
+    private final PermissionDecisionCache decisionCache = new PermissionDecisionCache();
+    // Entries that apply for this run only: never logged, left out of snapshots, and made permanent as
+    // soon as anything sets a permission on the same path
+    private final Set<String> transientPaths = ConcurrentHashMap.newKeySet();
+    // Null unless real file attributes are used for paths the shell has no explicit permission for
+    private volatile PosixPermissionSource posixSource;
+    private volatile AuditLog auditLog;
+
+    // Null when permissions only live in memory
+    private final PermissionStore store;
+    private final CountDownLatch loadedLatch = new CountDownLatch(1);
+    private volatile boolean loaded;
+    // Entries of the mapped snapshot not yet read into filePermissions; null once they all have been
+    private volatile MappedSnapshot snapshot;
+    private final CountDownLatch hydratedLatch = new CountDownLatch(1);
+    private Thread loaderThread;
+    private volatile boolean compacting;
+    // Keeps a scheduled compaction and a direct compact() call from writing the snapshot at the same time
+    private final Object compactionLock = new Object();
 
+    // Checks read without locking. Every mutation is synchronized on the manager and publishes a new
+    // FilePermission instead of changing one that readers may hold.
     public PermissionManager() {
-        this.filePermissions = new HashMap<>();
-        this.userGroups = new HashMap<>();
+        this(null, null);
+    }
+
+    // Loads the store on a background thread so startup does not wait for it. Checks wait only until the
+    // snapshot is mapped and the logs replayed, and meanwhile read entries straight from the mapping;
+    // changes wait until the whole snapshot is in the tree. Bootstrap runs before anyone else gets in.
+    public PermissionManager(PermissionStore store, Consumer<PermissionManager> bootstrap) {
+        this.filePermissions = new PermissionTree();
+        this.userGroups = new ConcurrentHashMap<>();
+        this.store = store;
         initializeDefaultGroups();
+        this.defaultPermission = createDefaultPermission(DEFAULT_OWNER);
+
+        if (store == null) {
+            markLoaded();
+            hydratedLatch.countDown();
+            if (bootstrap != null) {
+                bootstrap.accept(this);
+            }
+            return;
+        }
+        CountDownLatch locked = new CountDownLatch(1);
+        loaderThread = new Thread(() -> load(bootstrap, locked), "permission-loader");
+        loaderThread.setDaemon(true);
+        loaderThread.start();
+        awaitUninterruptibly(locked);
     }
 
     private void initializeDefaultGroups() {
@@ -23,164 +81,671 @@ public class PermissionManager {
         userGroups.put("root", "admin");
     }
 
-    public void setUserGroup(String username, String group) {
+    // Holds the manager lock from before the constructor returns until the snapshot is fully read in, so
+    // mutators simply queue on the lock and readers wait on the latch until checks can be answered
+    private void load(Consumer<PermissionManager> bootstrap, CountDownLatch locked) {
+        synchronized (this) {
+            locked.countDown();
+            try {
+                store.load(new PermissionStore.Replay() {
+                    @Override
+                    public void snapshot(MappedSnapshot mapped) {
+                        snapshot = mapped;
+                    }
+
+                    @Override
+                    public void put(String path, int ownerId, int groupId, int mode, Acl acl) {
+                        filePermissions.put(path, new FilePermission(ownerId, groupId, mode, acl));
+                    }
+
+                    @Override
+                    public void remove(String path) {
+                        removeExplicit(path);
+                    }
+
+                    @Override
+                    public void removeSubtree(String path) {
+                        removeExplicitUnder(path);
+                    }
+
+                    @Override
+                    public void userGroup(String username, String group) {
+                        applyUserGroup(username, group);
+                    }
+
+                    @Override
+                    public void supplementaryGroups(String username, GroupSet groups) {
+                        applySupplementaryGroups(username, groups);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Warning: could not load permissions from " + store.getDirectory()
+                        + " (" + e.getMessage() + "); changes will not be saved.");
+            }
+
+            try {
+                if (bootstrap != null) {
+                    bootstrap.accept(this);
+                }
+            } finally {
+                markLoaded();
+            }
+            hydrate();
+        }
+        if (store.isOpen() && (store.hasRotatedLogs() || store.hasOutdatedSnapshot())) {
+            // A previous compaction did not finish, or the snapshot predates the block index
+            scheduleCompaction();
+        }
+    }
+
+    // Reads the rest of the snapshot into the tree. Anything the logs or bootstrap set or removed is newer.
+    private void hydrate() {
+        MappedSnapshot pending = snapshot;
+        if (pending != null) {
+            try {
+                pending.forEach((path, permission) -> {
+                    if (filePermissions.get(path) == null) {
+                        filePermissions.put(path, permission);
+                    }
+                });
+            } catch (RuntimeException e) {
+                System.err.println("Warning: could not read permission snapshot in " + store.getDirectory()
+                        + " (" + e.getMessage() + ")");
+            }
+            snapshot = null;
+        }
+        hydratedLatch.countDown();
+    }
+
+    private void markLoaded() {
+        loaded = true;
+        loadedLatch.countDown();
+    }
+
+    // Only needed by methods that do not take the manager lock
+    private void awaitLoaded() {
+        if (loaded || Thread.currentThread() == loaderThread) {
+            return;
+        }
+        awaitUninterruptibly(loadedLatch);
+    }
+
+    // For methods that go over every entry, which the mapped snapshot cannot serve
+    private void awaitHydrated() {
+        if (Thread.currentThread() != loaderThread) {
+            awaitUninterruptibly(hydratedLatch);
+        }
+    }
+
+    // Permission set on exactly this path, from the mapped snapshot while it is still being read in
+    private FilePermission explicit(String filePath) {
+        FilePermission permission = filePermissions.get(filePath);
+        MappedSnapshot pending = snapshot;
+        return permission != null || pending == null ? permission : pending.get(filePath);
+    }
+
+    // Permission set on this path or its nearest ancestor, as PermissionTree.resolve
+    private FilePermission nearest(String filePath) {
+        if (snapshot == null) {
+            return filePermissions.resolve(filePath);
+        }
+        int end = filePath.length();
+        while (true) {
+            FilePermission permission = explicit(filePath.substring(0, end));
+            if (permission != null || end == 0) {
+                return permission;
+            }
+            do {
+                end--;
+            } while (end > 0 && filePath.charAt(end) != '/' && filePath.charAt(end) != '\\');
+        }
+    }
+
+    private FilePermission removeExplicit(String filePath) {
+        FilePermission removed = filePermissions.remove(filePath);
+        MappedSnapshot pending = snapshot;
+        if (pending != null) {
+            if (removed == null) {
+                removed = pending.get(filePath);
+            }
+            pending.hide(filePath);
+        }
+        return removed;
+    }
+
+    // Whether anything may have been removed: the mapped snapshot is not searched for entries below the path
+    private boolean removeExplicitUnder(String directoryPath) {
+        boolean removed = filePermissions.removeSubtree(directoryPath) > 0;
+        MappedSnapshot pending = snapshot;
+        if (pending != null) {
+            pending.hideSubtree(directoryPath);
+            removed = true;
+        }
+        return removed;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Call at the end of every mutation: retires cached decisions, then writes the records the mutation
+    // queued in one go
+    private void persist() {
+        decisionCache.invalidate();
+        if (store == null) {
+            return;
+        }
+        try {
+            store.commit();
+        } catch (IOException e) {
+            System.err.println("Warning: could not save permission change: " + e.getMessage());
+            return;
+        }
+        if (store.needsCompaction()) {
+            scheduleCompaction();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        Thread compactor = new Thread(this::compact, "permission-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    // Folds the logs into a fresh snapshot. Writers are only blocked while the state is copied.
+    void compact() {
+        synchronized (compactionLock) {
+            compactLocked();
+        }
+    }
+
+    private void compactLocked() {
+        try {
+            List<PermissionStore.SnapshotEntry> entries = new ArrayList<>(filePermissions.size());
+            Map<String, String> groups;
+            Map<String, GroupSet> supplementary;
+            synchronized (this) {
+                if (!store.isOpen()) {
+                    return;
+                }
+                store.rotateLog();
+                filePermissions.forEach((path, permission) -> {
+                    if (!transientPaths.contains(path)) {
+                        entries.add(new PermissionStore.SnapshotEntry(path, permission.getOwnerId(),
+                                permission.getGroupId(), permission.getMode(), permission.getAcl()));
+                    }
+                });
+                groups = new HashMap<>(userGroups);
+                supplementary = new HashMap<>(supplementaryGroups);
+            }
+            store.writeSnapshot(entries, groups, supplementary);
+        } catch (IOException e) {
+            System.err.println("Warning: permission store compaction failed: " + e.getMessage());
+        } finally {
+            compacting = false;
+        }
+    }
+
+    public void close() {
+        awaitHydrated();
+        if (store == null) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Warning: could not close permission store: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void setUserGroup(String username, String group) {
+        applyUserGroup(username, group);
+        if (store != null) {
+            store.appendUserGroup(username, group);
+        }
+        persist();
+    }
+
+    private void applyUserGroup(String username, String group) {
         userGroups.put(username, group);
+        if (DEFAULT_OWNER.equals(username)) {
+            defaultPermission = createDefaultPermission(DEFAULT_OWNER);
+        }
+        rebuildMembership(username);
+    }
+
+    private void applySupplementaryGroups(String username, GroupSet groups) {
+        if (groups.isEmpty()) {
+            supplementaryGroups.remove(username);
+        } else {
+            supplementaryGroups.put(username, groups);
+        }
+        rebuildMembership(username);
+    }
+
+    private void rebuildMembership(String username) {
+        GroupSet groups = supplementaryGroups.getOrDefault(username, GroupSet.EMPTY)
+                .with(IdTable.GROUPS.intern(userGroups.getOrDefault(username, "users")));
+        memberships.put(username, groups);
+    }
+
+    // Replaces the user's supplementary groups (usermod -G)
+    public synchronized void setSupplementaryGroups(String username, Collection<String> groups) {
+        GroupSet set = GroupSet.EMPTY;
+        for (String group : groups) {
+            set = set.with(IdTable.GROUPS.intern(group));
+        }
+        applySupplementaryGroups(username, set);
+        if (store != null) {
+            store.appendSupplementaryGroups(username, set);
+        }
+        persist();
+    }
+
+    // Adds to the user's supplementary groups (usermod -aG)
+    public synchronized void addSupplementaryGroups(String username, Collection<String> groups) {
+        List<String> combined = new ArrayList<>(groups);
+        for (int id : supplementaryGroups.getOrDefault(username, GroupSet.EMPTY).ids()) {
+            combined.add(IdTable.GROUPS.nameOf(id));
+        }
+        setSupplementaryGroups(username, combined);
+    }
+
+    // Every group the user is in, primary group included
+    public GroupSet getGroups(String username) {
+        awaitLoaded();
+        GroupSet groups = memberships.get(username);
+        return groups != null ? groups : GroupSet.of(IdTable.GROUPS.intern(getUserGroup(username)));
+    }
+
+    // Primary group first, then the supplementary groups
+    public List<String> getGroupNames(String username) {
+        awaitLoaded();
+        String primary = getUserGroup(username);
+        List<String> names = new ArrayList<>();
+        names.add(primary);
+        for (int id : supplementaryGroups.getOrDefault(username, GroupSet.EMPTY).ids()) {
+            String name = IdTable.GROUPS.nameOf(id);
+            if (!name.equals(primary)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    public boolean hasUserGroup(String username) {
+        awaitLoaded();
+        return userGroups.containsKey(username);
     }
 
     public String getUserGroup(String username) {
+        awaitLoaded();
         return userGroups.getOrDefault(username, "users");
     }
 
     public FilePermission getFilePermission(String filePath) {
-        return filePermissions.get(filePath);
+        awaitLoaded();
+        return explicit(filePath);
     }
 
-    public void setFilePermission(String filePath, FilePermission permission) {
+    // The permission that applies to a path: its own, else the file's real attributes when POSIX hydration
+    // is on, else the nearest ancestor's, else the default
+    public FilePermission getEffectivePermission(String filePath) {
+        awaitLoaded();
+        PosixPermissionSource posix = posixSource;
+        if (posix != null && explicit(filePath) == null) {
+            FilePermission onDisk = posix.lookup(filePath);
+            if (onDisk != null) {
+                return onDisk;
+            }
+        }
+        FilePermission permission = nearest(filePath);
+        return permission != null ? permission : defaultPermission;
+    }
+
+    public void setPosixSource(PosixPermissionSource posixSource) {
+        // Decisions taken from a file's attributes are cached like any other; a change on disk retires them
+        posixSource.setChangeListener(decisionCache::invalidate);
+        this.posixSource = posixSource;
+        decisionCache.invalidate();
+    }
+
+    public PosixPermissionSource getPosixSource() {
+        return posixSource;
+    }
+
+    public int getExplicitPermissionCount() {
+        awaitHydrated();
+        return filePermissions.size();
+    }
+
+    // A permission that holds until the shell exits, unless the path already has one of its own. A saved
+    // entry identical to it, as older versions wrote, is dropped from the store and kept in memory only.
+    public synchronized void setTransientPermission(String filePath, FilePermission permission) {
+        FilePermission saved = explicit(filePath);
+        if (saved != null) {
+            if (transientPaths.contains(filePath) || !sameAs(saved, permission)) {
+                return;
+            }
+            if (store != null) {
+                store.appendRemove(filePath);
+            }
+        }
+        filePermissions.put(filePath, permission);
+        transientPaths.add(filePath);
+        persist();
+    }
+
+    private static boolean sameAs(FilePermission a, FilePermission b) {
+        return a.getOwnerId() == b.getOwnerId() && a.getGroupId() == b.getGroupId() && a.getMode() == b.getMode()
+                && a.getAcl() == null && b.getAcl() == null;
+    }
+
+    public synchronized void setFilePermission(String filePath, FilePermission permission) {
+        if (permission == null) {
+            removeFilePermission(filePath);
+            return;
+        }
+        putPermission(filePath, permission);
+        persist();
+    }
+
+    // chmod and chown go through here. With write-through on, a change that reached the file lives on disk
+    // and any explicit entry is dropped; ACLs cannot be written to disk, so those stay here as well.
+    private void applyChange(String filePath, FilePermission changed) {
+        PosixPermissionSource posix = posixSource;
+        if (posix != null && posix.write(filePath, changed) && changed.getAcl() == null) {
+            if (removeExplicit(filePath) != null && store != null && !transientPaths.remove(filePath)) {
+                store.appendRemove(filePath);
+            }
+            return;
+        }
+        putPermission(filePath, changed);
+    }
+
+    private void putPermission(String filePath, FilePermission permission) {
+        transientPaths.remove(filePath);
         filePermissions.put(filePath, permission);
+        if (store != null) {
+            store.appendPut(filePath, permission);
+        }
+    }
+
+    public synchronized void removeFilePermission(String filePath) {
+        if (removeExplicit(filePath) != null) {
+            if (store != null && !transientPaths.remove(filePath)) {
+                store.appendRemove(filePath);
+            }
+            persist();
+        }
+    }
+
+    public synchronized void removeFilePermissionsUnder(String directoryPath) {
+        if (removeExplicitUnder(directoryPath)) {
+            transientPaths.removeIf(path -> PermissionTree.isWithin(path, directoryPath));
+            if (store != null) {
+                store.appendRemoveSubtree(directoryPath);
+            }
+            persist();
+        }
+    }
+
+    public synchronized void removeFilePermissions(Collection<String> filePaths) {
+        for (String filePath : filePaths) {
+            if (removeExplicit(filePath) != null && store != null && !transientPaths.remove(filePath)) {
+                store.appendRemove(filePath);
+            }
+        }
+        persist();
     }
 
     public FilePermission createDefaultPermission(String owner) {
-        String group = getUserGroup(owner);
+        // Reads the map directly: this also runs in the constructor, before the load has finished
+        String group = userGroups.getOrDefault(owner, "users");
         return new FilePermission(owner, group);
     }
 
     public FilePermission createSystemFilePermission() {
         // System files have restricted permissions
-        Set<FilePermission.Permission> ownerPerms = EnumSet.of(FilePermission.Permission.READ, FilePermission.Permission.WRITE);
-        Set<FilePermission.Permission> groupPerms = EnumSet.of(FilePermission.Permission.READ);
-        Set<FilePermission.Permission> otherPerms = EnumSet.of(FilePermission.Permission.READ);
-        
-        return new FilePermission("admin", "admin", ownerPerms, groupPerms, otherPerms);
+        return new FilePermission("admin", "admin", 0644);
     }
 
     public FilePermission createExecutablePermission(String owner) {
         String group = getUserGroup(owner);
-        Set<FilePermission.Permission> ownerPerms = EnumSet.of(FilePermission.Permission.READ, FilePermission.Permission.WRITE, FilePermission.Permission.EXECUTE);
-        Set<FilePermission.Permission> groupPerms = EnumSet.of(FilePermission.Permission.READ, FilePermission.Permission.EXECUTE);
-        Set<FilePermission.Permission> otherPerms = EnumSet.of(FilePermission.Permission.READ, FilePermission.Permission.EXECUTE);
-        
-        return new FilePermission(owner, group, ownerPerms, groupPerms, otherPerms);
+        return new FilePermission(owner, group, 0755);
     }
 
     public boolean canRead(String filePath, String username) {
-        FilePermission permission = filePermissions.get(filePath);
-        if (permission == null) {
-            // Default permission if not set
-            permission = createDefaultPermission("admin");
-            filePermissions.put(filePath, permission);
-        }
-        
-        String userGroup = getUserGroup(username);
-        return permission.canRead(username, userGroup);
+        return check(filePath, username, FilePermission.READ_BIT, AuditLog.READ);
     }
 
     public boolean canWrite(String filePath, String username) {
-        FilePermission permission = filePermissions.get(filePath);
-        if (permission == null) {
-            // Default permission if not set
-            permission = createDefaultPermission("admin");
-            filePermissions.put(filePath, permission);
-        }
-        
-        String userGroup = getUserGroup(username);
-        return permission.canWrite(username, userGroup);
+        return check(filePath, username, FilePermission.WRITE_BIT, AuditLog.WRITE);
     }
 
     public boolean canExecute(String filePath, String username) {
-        FilePermission permission = filePermissions.get(filePath);
-        if (permission == null) {
-            // Default permission if not set
-            permission = createDefaultPermission("admin");
-            filePermissions.put(filePath, permission);
+        return check(filePath, username, FilePermission.EXECUTE_BIT, AuditLog.EXECUTE);
+    }
+
+    private boolean check(String filePath, String username, int bit, byte operation) {
+        boolean allowed = (permissionBits(filePath, username) & bit) != 0;
+        AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.permissionCheck(username, filePath, operation, allowed);
+        }
+        return allowed;
+    }
+
+    public void setAuditLog(AuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    // changed is null when the change was refused
+    private void auditChange(byte type, String username, String filePath, FilePermission changed) {
+        AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.permissionChange(type, username, filePath, changed);
+        }
+    }
+
+    // The rwx bits the user has on the path, from the decision cache when nothing changed since
+    private int permissionBits(String filePath, String username) {
+        awaitLoaded();
+        // Interned so users without a permission entry of their own still get distinct cache keys
+        int userId = IdTable.USERS.intern(username);
+        long epoch = decisionCache.epoch();
+        PosixPermissionSource posix = posixSource;
+        FilePermission onDisk = null;
+        if (posix != null && explicit(filePath) == null) {
+            // Stats the file: a change found on disk bumps the epoch, and the decision is then made afresh
+            onDisk = posix.lookup(filePath);
+        }
+        int bits = decisionCache.epoch() == epoch
+                ? decisionCache.lookup(userId, filePath, epoch) : PermissionDecisionCache.MISS;
+        if (bits == PermissionDecisionCache.MISS) {
+            FilePermission permission = onDisk != null ? onDisk : nearest(filePath);
+            if (permission == null) {
+                permission = defaultPermission;
+            }
+            bits = permission.permissionBits(userId, getGroups(username));
+            decisionCache.store(userId, filePath, epoch, bits);
         }
-        
-        String userGroup = getUserGroup(username);
-        return permission.canExecute(username, userGroup);
+        return bits;
+    }
+
+    public PermissionDecisionCache getDecisionCache() {
+        return decisionCache;
     }
 
-    public void setFilePermissions(String filePath, String owner, String group, 
+    public synchronized void setFilePermissions(String filePath, String owner, String group,
                                  Set<FilePermission.Permission> ownerPerms,
                                  Set<FilePermission.Permission> groupPerms,
                                  Set<FilePermission.Permission> otherPerms) {
         FilePermission permission = new FilePermission(owner, group, ownerPerms, groupPerms, otherPerms);
-        filePermissions.put(filePath, permission);
+        putPermission(filePath, permission);
+        persist();
     }
 
-    public void chmod(String filePath, String mode, String username) {
-        FilePermission permission = filePermissions.get(filePath);
-        if (permission == null) {
-            System.err.println("Error: File permission not found for " + filePath);
-            return;
-        }
+    public synchronized void setFilePermissions(String filePath, String owner, String group, int mode) {
+        putPermission(filePath, new FilePermission(owner, group, mode));
+        persist();
+    }
+
+    // Returns false if denied or the mode is not valid
+    public synchronized boolean chmod(String filePath, String mode, String username) {
+        FilePermission permission = getEffectivePermission(filePath);
 
         // Check if user can modify permissions (only owner or admin can)
         if (!permission.getOwner().equals(username) && !"admin".equals(username)) {
             System.err.println("Error: Permission denied. Only owner or admin can change file permissions.");
-            return;
+            auditChange(AuditLog.CHMOD, username, filePath, null);
+            return false;
         }
 
-        if (mode.length() != 9) {
-            System.err.println("Error: Invalid permission mode. Use format: rwxrwxrwx");
-            return;
+        int bits = FilePermission.applyMode(mode, permission.getMode());
+        if (bits < 0) {
+            printInvalidMode();
+            return false;
         }
 
-        // Parse owner permissions
-        Set<FilePermission.Permission> ownerPerms = parsePermissions(mode.substring(0, 3));
-        Set<FilePermission.Permission> groupPerms = parsePermissions(mode.substring(3, 6));
-        Set<FilePermission.Permission> otherPerms = parsePermissions(mode.substring(6, 9));
-
-        permission.setOwnerPermissions(ownerPerms);
-        permission.setGroupPermissions(groupPerms);
-        permission.setOtherPermissions(otherPerms);
-
-        System.out.println("Permissions changed for " + filePath + ": " + permission.toString());
-    }
+        // Inherited permissions are copied onto the path so the ancestor is left untouched
+        FilePermission changed = new FilePermission(permission.getOwnerId(), permission.getGroupId(), bits,
+                permission.getAcl());
+        applyChange(filePath, changed);
+        persist();
+        auditChange(AuditLog.CHMOD, username, filePath, changed);
 
-    private Set<FilePermission.Permission> parsePermissions(String permString) {
-        Set<FilePermission.Permission> permissions = EnumSet.noneOf(FilePermission.Permission.class);
-        
-        if (permString.charAt(0) == 'r') permissions.add(FilePermission.Permission.READ);
-        if (permString.charAt(1) == 'w') permissions.add(FilePermission.Permission.WRITE);
-        if (permString.charAt(2) == 'x') permissions.add(FilePermission.Permission.EXECUTE);
-        
-        return permissions;
+        System.out.println("Permissions changed for " + filePath + ": " + changed.toString());
+        return true;
     }
 
-    public void chown(String filePath, String newOwner, String username) {
-        FilePermission permission = filePermissions.get(filePath);
-        if (permission == null) {
-            System.err.println("Error: File permission not found for " + filePath);
-            return;
-        }
+    // Returns false if denied
+    public synchronized boolean chown(String filePath, String newOwner, String username) {
+        FilePermission permission = getEffectivePermission(filePath);
 
         // Only admin can change ownership
         if (!"admin".equals(username)) {
             System.err.println("Error: Permission denied. Only admin can change file ownership.");
-            return;
+            auditChange(AuditLog.CHOWN, username, filePath, null);
+            return false;
         }
 
         // Create new permission with new owner
-        FilePermission newPermission = new FilePermission(newOwner, permission.getGroup(),
-                permission.getOwnerPermissions(), permission.getGroupPermissions(), permission.getOtherPermissions());
-        
-        filePermissions.put(filePath, newPermission);
+        FilePermission newPermission = new FilePermission(IdTable.USERS.intern(newOwner), permission.getGroupId(),
+                permission.getMode(), permission.getAcl());
+
+        applyChange(filePath, newPermission);
+        persist();
+        auditChange(AuditLog.CHOWN, username, filePath, newPermission);
         System.out.println("Ownership changed for " + filePath + " to " + newOwner);
+        return true;
     }
 
-    public void lsPermissions(String filePath) {
-        FilePermission permission = filePermissions.get(filePath);
-        if (permission == null) {
-            System.out.println("No permission information available for " + filePath);
-            return;
+    // chmod over many paths as one batch: one log write and one cache invalidation. Symbolic modes apply
+    // to each path's own current mode. Returns the number of paths changed.
+    public synchronized int chmodAll(List<String> filePaths, String mode, String username) {
+        if (FilePermission.applyMode(mode, 0) < 0) {
+            printInvalidMode();
+            return 0;
+        }
+        boolean admin = "admin".equals(username);
+        int userId = IdTable.USERS.idOf(username);
+        FilePermission[] changed = new FilePermission[filePaths.size()];
+        // Reads do not need the lock, so the new permissions are worked out in parallel
+        IntStream.range(0, changed.length).parallel().forEach(i -> {
+            FilePermission permission = getEffectivePermission(filePaths.get(i));
+            if (admin || permission.getOwnerId() == userId) {
+                changed[i] = new FilePermission(permission.getOwnerId(), permission.getGroupId(),
+                        FilePermission.applyMode(mode, permission.getMode()), permission.getAcl());
+            }
+        });
+        return commitBatch(AuditLog.CHMOD, username, filePaths, changed);
+    }
+
+    // chown over many paths as one batch: one log write and one cache invalidation
+    public synchronized int chownAll(List<String> filePaths, String newOwner, String username) {
+        if (!"admin".equals(username)) {
+            System.err.println("Error: Permission denied. Only admin can change file ownership.");
+            for (String filePath : filePaths) {
+                auditChange(AuditLog.CHOWN, username, filePath, null);
+            }
+            return 0;
         }
+        int ownerId = IdTable.USERS.intern(newOwner);
+        FilePermission[] changed = new FilePermission[filePaths.size()];
+        IntStream.range(0, changed.length).parallel().forEach(i -> {
+            FilePermission permission = getEffectivePermission(filePaths.get(i));
+            changed[i] = new FilePermission(ownerId, permission.getGroupId(), permission.getMode(), permission.getAcl());
+        });
+        return commitBatch(AuditLog.CHOWN, username, filePaths, changed);
+    }
 
+    // A null entry in changed marks a path the user was not allowed to change
+    private int commitBatch(byte type, String username, List<String> filePaths, FilePermission[] changed) {
+        String command = type == AuditLog.CHMOD ? "chmod" : "chown";
+        int count = 0;
+        for (int i = 0; i < changed.length; i++) {
+            auditChange(type, username, filePaths.get(i), changed[i]);
+            if (changed[i] == null) {
+                System.err.println(command + ": Permission denied: " + filePaths.get(i));
+                continue;
+            }
+            applyChange(filePaths.get(i), changed[i]);
+            count++;
+        }
+        if (count > 0) {
+            persist();
+        }
+        return count;
+    }
+
+    // Replaces the ACL of a path (null removes it); only the owner or admin may. Returns false if denied.
+    public synchronized boolean setAcl(String filePath, Acl acl, String username) {
+        FilePermission permission = getEffectivePermission(filePath);
+        if (!permission.getOwner().equals(username) && !"admin".equals(username)) {
+            System.err.println("Error: Permission denied. Only owner or admin can change the ACL of " + filePath);
+            return false;
+        }
+        putPermission(filePath, new FilePermission(permission.getOwnerId(), permission.getGroupId(),
+                permission.getMode(), acl));
+        persist();
+        return true;
+    }
+
+    private static void printInvalidMode() {
+        System.err.println("Error: Invalid permission mode. Use rwxrwxrwx, octal (755) or symbolic (u+x,go-w).");
+    }
+
+    public void lsPermissions(String filePath) {
+        FilePermission permission = getEffectivePermission(filePath);
         System.out.println(permission.toDetailedString() + " " + filePath);
     }
 
     public void listAllPermissions() {
+        awaitHydrated();
         System.out.println("=== File Permissions ===");
-        for (Map.Entry<String, FilePermission> entry : filePermissions.entrySet()) {
-            System.out.println(entry.getValue().toDetailedString() + " " + entry.getKey());
-        }
+        filePermissions.forEach((filePath, permission) ->
+                System.out.println(permission.toDetailedString() + " " + filePath));
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,588 @@
+package org.shellassignment.permissions;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// On-disk permission state: a compact snapshot plus an append-only log of changes made since.
+// Startup maps the snapshot and replays the logs; compaction folds the logs into a new snapshot.
+//
+// Files in the data directory:
+//   permissions.snap     snapshot, entries sorted by key in blocks with a block index at the end, so it
+//                        can be searched in place (see MappedSnapshot)
+//   permissions.log      current log
+//   permissions.log.N    logs rotated out by a compaction that has not finished yet
+public class PermissionStore {
+    private static final int SNAPSHOT_MAGIC = 0x4D595053; // "MYPS"
+    // Version 2 added supplementary groups and ACLs, version 3 the block index; older snapshots are still
+    // read, all at once, and rewritten by the next compaction
+    private static final int SNAPSHOT_VERSION = 3;
+    private static final String SNAPSHOT_FILE = "permissions.snap";
+    private static final String LOG_FILE = "permissions.log";
+    private static final long MIN_COMPACTION_LOG_BYTES = 1024 * 1024;
+
+    static final byte RECORD_PUT = 1;
+    static final byte RECORD_REMOVE = 2;
+    static final byte RECORD_REMOVE_SUBTREE = 3;
+    static final byte RECORD_USER_GROUP = 4;
+    static final byte RECORD_SUPPLEMENTARY_GROUPS = 5;
+
+    // Receives the state read back from disk
+    interface Replay {
+        // A current snapshot, handed over as it is instead of entry by entry; comes before any log record
+        void snapshot(MappedSnapshot snapshot);
+
+        void put(String path, int ownerId, int groupId, int mode, Acl acl);
+
+        void remove(String path);
+
+        void removeSubtree(String path);
+
+        void userGroup(String username, String group);
+
+        void supplementaryGroups(String username, GroupSet groups);
+    }
+
+    static final class SnapshotEntry {
+        final String path;
+        final int ownerId;
+        final int groupId;
+        final int mode;
+        final Acl acl;
+        // Set while the snapshot is written
+        String key;
+        byte[] keyBytes;
+
+        SnapshotEntry(String path, int ownerId, int groupId, int mode, Acl acl) {
+            this.path = path;
+            this.ownerId = ownerId;
+            this.groupId = groupId;
+            this.mode = mode;
+            this.acl = acl;
+        }
+    }
+
+    private final Path directory;
+    private final boolean fsync;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final CRC32 crc = new CRC32();
+    private FileChannel log;
+    private FileLock lock;
+    private long logBytes;
+    // Also read by the compactor outside the manager lock
+    private volatile long snapshotBytes;
+    private boolean outdatedSnapshot;
+    private int nextRotation = 1;
+
+    public PermissionStore(Path directory) {
+        this.directory = directory;
+        this.fsync = Boolean.getBoolean("mysh.permissions.fsync");
+    }
+
+    public static Path defaultDirectory() {
+        String configured = System.getProperty("mysh.data.dir");
+        return configured != null ? Paths.get(configured) : Paths.get(System.getProperty("user.home"), ".mysh");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // Reads the snapshot and every log into replay, then opens the current log for appending
+    void load(Replay replay) throws IOException {
+        Files.createDirectories(directory);
+        log = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = log.tryLock();
+        if (lock == null) {
+            log.close();
+            log = null;
+            throw new IOException("permission store " + directory + " is in use by another shell");
+        }
+
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            snapshotBytes = Files.size(snapshot);
+            readSnapshot(snapshot, replay);
+        }
+        for (Path rotated : rotatedLogs()) {
+            try (FileChannel channel = FileChannel.open(rotated, StandardOpenOption.READ)) {
+                replayLog(channel, replay);
+            }
+        }
+        // A torn record at the end of the current log is cut off so new records follow valid ones
+        logBytes = replayLog(log, replay);
+        log.truncate(logBytes);
+        log.position(logBytes);
+    }
+
+    boolean isOpen() {
+        return log != null;
+    }
+
+    boolean hasRotatedLogs() {
+        return !rotatedLogs().isEmpty();
+    }
+
+    // The snapshot loaded was written in an older version
+    boolean hasOutdatedSnapshot() {
+        return outdatedSnapshot;
+    }
+
+    void appendPut(String path, FilePermission permission) {
+        try {
+            beginRecord(RECORD_PUT);
+            writeString(recordOut, path);
+            writeString(recordOut, permission.getOwner());
+            writeString(recordOut, permission.getGroup());
+            recordOut.writeShort(permission.getMode());
+            // Optional trailing field, so records without an ACL keep their original layout
+            if (permission.getAcl() != null) {
+                writeString(recordOut, permission.getAcl().toString());
+            }
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void appendRemove(String path) {
+        appendPath(RECORD_REMOVE, path);
+    }
+
+    void appendRemoveSubtree(String path) {
+        appendPath(RECORD_REMOVE_SUBTREE, path);
+    }
+
+    void appendUserGroup(String username, String group) {
+        try {
+            beginRecord(RECORD_USER_GROUP);
+            writeString(recordOut, username);
+            writeString(recordOut, group);
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void appendSupplementaryGroups(String username, GroupSet groups) {
+        try {
+            beginRecord(RECORD_SUPPLEMENTARY_GROUPS);
+            writeString(recordOut, username);
+            writeGroupNames(recordOut, groups);
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeGroupNames(DataOutputStream out, GroupSet groups) throws IOException {
+        int[] ids = groups.ids();
+        writeVarInt(out, ids.length);
+        for (int id : ids) {
+            writeString(out, IdTable.GROUPS.nameOf(id));
+        }
+    }
+
+    private static GroupSet readGroupNames(ByteBuffer in) {
+        GroupSet groups = GroupSet.EMPTY;
+        int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            groups = groups.with(IdTable.GROUPS.intern(readString(in)));
+        }
+        return groups;
+    }
+
+    private void appendPath(byte type, String path) {
+        try {
+            beginRecord(type);
+            writeString(recordOut, path);
+            endRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void beginRecord(byte type) throws IOException {
+        record.reset();
+        recordOut.writeByte(type);
+    }
+
+    // Frames the record as [length][type + payload][crc32] and queues it for the next commit
+    private void endRecord() throws IOException {
+        byte[] body = record.toByteArray();
+        crc.reset();
+        crc.update(body, 0, body.length);
+        pendingOut.writeInt(body.length);
+        pendingOut.write(body);
+        pendingOut.writeInt((int) crc.getValue());
+    }
+
+    // Writes all records appended since the last commit with a single write
+    void commit() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        if (log == null) {
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            logBytes += log.write(buffer);
+        }
+        if (fsync) {
+            log.force(false);
+        }
+    }
+
+    boolean needsCompaction() {
+        return log != null && logBytes > Math.max(MIN_COMPACTION_LOG_BYTES, snapshotBytes / 2);
+    }
+
+    // Moves the current log aside and starts an empty one; call while writers are blocked
+    void rotateLog() throws IOException {
+        commit();
+        for (Path rotated : rotatedLogs()) {
+            nextRotation = Math.max(nextRotation, rotationNumber(rotated) + 1);
+        }
+        Path rotated = directory.resolve(LOG_FILE + "." + nextRotation++);
+        // Copy rather than rename so the lock held on the open log stays valid on every platform
+        log.position(0);
+        try (FileChannel target = FileChannel.open(rotated, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < logBytes) {
+                copied += log.transferTo(copied, logBytes - copied, target);
+            }
+            target.force(true);
+        }
+        log.truncate(0);
+        log.position(0);
+        logBytes = 0;
+    }
+
+    // Writes a new snapshot and drops the logs it covers; safe to run without holding the manager lock
+    void writeSnapshot(List<SnapshotEntry> entries, Map<String, String> userGroups,
+                       Map<String, GroupSet> supplementaryGroups) throws IOException {
+        for (SnapshotEntry entry : entries) {
+            entry.key = PermissionTree.key(entry.path);
+            entry.keyBytes = entry.key.getBytes(StandardCharsets.UTF_8);
+        }
+        Collections.sort(entries, (a, b) -> MappedSnapshot.compare(a.keyBytes, a.keyBytes.length, b.keyBytes));
+
+        Map<Integer, Integer> userIndex = new HashMap<>();
+        Map<Integer, Integer> groupIndex = new HashMap<>();
+        List<String> userNames = new ArrayList<>();
+        List<String> groupNames = new ArrayList<>();
+        // ACLs are usually shared by many paths (setfacl -R), so each distinct one is written once
+        Map<String, Integer> aclIndex = new HashMap<>();
+        List<String> aclTexts = new ArrayList<>();
+        for (SnapshotEntry entry : entries) {
+            index(userIndex, userNames, entry.ownerId, IdTable.USERS);
+            index(groupIndex, groupNames, entry.groupId, IdTable.GROUPS);
+            if (entry.acl != null && !aclIndex.containsKey(entry.acl.toString())) {
+                aclIndex.put(entry.acl.toString(), aclTexts.size() + 1);
+                aclTexts.add(entry.acl.toString());
+            }
+        }
+
+        List<Path> covered = rotatedLogs();
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), 256 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            writeNames(out, userNames);
+            writeNames(out, groupNames);
+            out.writeInt(userGroups.size());
+            for (Map.Entry<String, String> group : userGroups.entrySet()) {
+                writeString(out, group.getKey());
+                writeString(out, group.getValue());
+            }
+            out.writeInt(supplementaryGroups.size());
+            for (Map.Entry<String, GroupSet> groups : supplementaryGroups.entrySet()) {
+                writeString(out, groups.getKey());
+                writeGroupNames(out, groups.getValue());
+            }
+            writeNames(out, aclTexts);
+
+            out.writeInt(entries.size());
+            int[] blocks = new int[(entries.size() + MappedSnapshot.BLOCK_SIZE - 1) / MappedSnapshot.BLOCK_SIZE];
+            byte[] previous = new byte[0];
+            for (int i = 0; i < entries.size(); i++) {
+                SnapshotEntry entry = entries.get(i);
+                byte[] key = entry.keyBytes;
+                int shared = 0;
+                if (i % MappedSnapshot.BLOCK_SIZE == 0) {
+                    // Blocks start with a whole key so a lookup can begin reading there
+                    blocks[i / MappedSnapshot.BLOCK_SIZE] = out.size();
+                } else {
+                    int limit = Math.min(previous.length, key.length);
+                    while (shared < limit && previous[shared] == key[shared]) {
+                        shared++;
+                    }
+                }
+                writeVarInt(out, shared);
+                writeVarInt(out, key.length - shared);
+                out.write(key, shared, key.length - shared);
+                writeVarInt(out, userIndex.get(entry.ownerId));
+                writeVarInt(out, groupIndex.get(entry.groupId));
+                out.writeShort(entry.mode);
+                writeVarInt(out, entry.acl == null ? 0 : aclIndex.get(entry.acl.toString()));
+                // The path as it was set, only when it is not simply '/' and the key
+                if (entry.path.length() == entry.key.length() + 1 && entry.path.startsWith("/")
+                        && entry.path.endsWith(entry.key)) {
+                    out.writeByte(0);
+                } else {
+                    out.writeByte(1);
+                    writeString(out, entry.path);
+                }
+                previous = key;
+            }
+            int index = out.size();
+            for (int block : blocks) {
+                out.writeInt(block);
+            }
+            out.writeInt(index);
+            out.writeInt(blocks.length);
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotBytes = Files.size(snapshot);
+        for (Path rotated : covered) {
+            Files.deleteIfExists(rotated);
+        }
+    }
+
+    private static void index(Map<Integer, Integer> indexes, List<String> names, int id, IdTable table) {
+        if (!indexes.containsKey(id)) {
+            indexes.put(id, names.size());
+            names.add(table.nameOf(id));
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            writeString(out, name);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void readSnapshot(Path snapshot, Replay replay) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = in.getInt() == SNAPSHOT_MAGIC ? in.getInt() : -1;
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("unrecognized permission snapshot " + snapshot);
+            }
+            int[] ownerIds = readNames(in, IdTable.USERS);
+            int[] groupIds = readNames(in, IdTable.GROUPS);
+            int userGroupCount = in.getInt();
+            for (int i = 0; i < userGroupCount; i++) {
+                replay.userGroup(readString(in), readString(in));
+            }
+            Acl[] acls = new Acl[1];
+            if (version >= 2) {
+                int supplementaryCount = in.getInt();
+                for (int i = 0; i < supplementaryCount; i++) {
+                    replay.supplementaryGroups(readString(in), readGroupNames(in));
+                }
+                int aclCount = in.getInt();
+                acls = new Acl[aclCount + 1];
+                for (int i = 1; i <= aclCount; i++) {
+                    acls[i] = Acl.parse(readString(in));
+                }
+            }
+
+            int entryCount = in.getInt();
+            if (version >= 3) {
+                int footer = in.limit() - 8;
+                int index = in.getInt(footer);
+                int[] blocks = new int[in.getInt(footer + 4)];
+                if (blocks.length != (entryCount + MappedSnapshot.BLOCK_SIZE - 1) / MappedSnapshot.BLOCK_SIZE) {
+                    throw new IOException("damaged permission snapshot " + snapshot);
+                }
+                for (int i = 0; i < blocks.length; i++) {
+                    blocks[i] = in.getInt(index + 4 * i);
+                }
+                // The mapping stays valid after the channel is closed
+                replay.snapshot(new MappedSnapshot(in, blocks, entryCount, ownerIds, groupIds, acls));
+                return;
+            }
+            outdatedSnapshot = true;
+            byte[] path = new byte[256];
+            for (int i = 0; i < entryCount; i++) {
+                int shared = readVarInt(in);
+                int suffix = readVarInt(in);
+                if (shared + suffix > path.length) {
+                    byte[] larger = new byte[Math.max(path.length * 2, shared + suffix)];
+                    System.arraycopy(path, 0, larger, 0, shared);
+                    path = larger;
+                }
+                in.get(path, shared, suffix);
+                int owner = ownerIds[readVarInt(in)];
+                int group = groupIds[readVarInt(in)];
+                int mode = in.getShort();
+                Acl acl = version >= 2 ? acls[readVarInt(in)] : null;
+                replay.put(new String(path, 0, shared + suffix, StandardCharsets.UTF_8), owner, group, mode, acl);
+            }
+        }
+    }
+
+    private static int[] readNames(ByteBuffer in, IdTable table) {
+        int[] ids = new int[in.getInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = table.intern(readString(in));
+        }
+        return ids;
+    }
+
+    // Applies every complete record and returns the length of the valid prefix
+    private long replayLog(FileChannel channel, Replay replay) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 check = new CRC32();
+        long valid = 0;
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int length = in.getInt();
+            if (length < 1 || in.remaining() < length + 4) {
+                break;
+            }
+            ByteBuffer record = in.slice();
+            record.limit(length);
+            in.position(start + 4 + length);
+            check.reset();
+            for (int i = 0; i < length; i++) {
+                check.update(record.get(i));
+            }
+            if ((int) check.getValue() != in.getInt()) {
+                break;
+            }
+            applyRecord(record, replay);
+            valid = in.position();
+        }
+        return valid;
+    }
+
+    private static void applyRecord(ByteBuffer record, Replay replay) {
+        byte type = record.get();
+        switch (type) {
+            case RECORD_PUT:
+                String path = readString(record);
+                int owner = IdTable.USERS.intern(readString(record));
+                int group = IdTable.GROUPS.intern(readString(record));
+                int mode = record.getShort();
+                replay.put(path, owner, group, mode, record.hasRemaining() ? Acl.parse(readString(record)) : null);
+                break;
+            case RECORD_REMOVE:
+                replay.remove(readString(record));
+                break;
+            case RECORD_REMOVE_SUBTREE:
+                replay.removeSubtree(readString(record));
+                break;
+            case RECORD_USER_GROUP:
+                replay.userGroup(readString(record), readString(record));
+                break;
+            case RECORD_SUPPLEMENTARY_GROUPS:
+                replay.supplementaryGroups(readString(record), readGroupNames(record));
+                break;
+            default:
+                // Written by a newer shell; skip it
+        }
+    }
+
+    private List<Path> rotatedLogs() {
+        List<Path> rotated = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, LOG_FILE + ".*")) {
+            for (Path candidate : stream) {
+                if (rotationNumber(candidate) > 0) {
+                    rotated.add(candidate);
+                }
+            }
+        } catch (IOException e) {
+            return rotated;
+        }
+        Collections.sort(rotated, (a, b) -> Integer.compare(rotationNumber(a), rotationNumber(b)));
+        return rotated;
+    }
+
+    private static int rotationNumber(Path rotated) {
+        String name = rotated.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(LOG_FILE.length() + 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    void close() throws IOException {
+        commit();
+        if (lock != null) {
+            lock.release();
+        }
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.shellassignment.permissions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+// Measures how long a PermissionManager backed by a PermissionStore takes to come up with a large
+// saved permission set. Run with:
+//   java -cp target/classes org.shellassignment.permissions.PermissionStoreBenchmark [entries]
+public class PermissionStoreBenchmark {
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final int LOGGED_CHANGES = 10_000;
+
+    public static void main(String[] args) throws IOException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path directory = Files.createTempDirectory("mysh-permissions");
+        try {
+            System.out.println("Permission Store Benchmark");
+            System.out.println("==========================");
+
+            long start = System.nanoTime();
+            PermissionManager writer = new PermissionManager(new PermissionStore(directory), null);
+            for (int i = 0; i < entries; i++) {
+                writer.setFilePermissions(path(i), i % 3 == 0 ? "admin" : "user" + (i % 7), "users", 0640 | (i & 7));
+            }
+            writer.compact();
+            // A tail of changes since the snapshot, like a shell that ran for a while after the last compaction
+            for (int i = 0; i < LOGGED_CHANGES; i++) {
+                writer.setFilePermissions(path(i * 97 % entries), "admin", "admin", 0600);
+            }
+            writer.close();
+            System.out.printf("Wrote %,d entries + %,d logged changes in %.0f ms (%s on disk)%n",
+                    entries, LOGGED_CHANGES, (System.nanoTime() - start) / 1e6, size(directory));
+
+            for (int run = 1; run <= 3; run++) {
+                start = System.nanoTime();
+                PermissionManager reader = new PermissionManager(new PermissionStore(directory), null);
+                long constructed = System.nanoTime();
+                boolean allowed = reader.canRead(path(entries / 2), "user1");
+                long firstCheck = System.nanoTime();
+                // Waits until the whole snapshot is in the tree
+                int count = reader.getExplicitPermissionCount();
+                long hydrated = System.nanoTime();
+                System.out.printf("Run %d: constructor %.2f ms, first check %.1f ms, fully loaded %.0f ms, %,d entries (allowed %b)%n",
+                        run, (constructed - start) / 1e6, (firstCheck - start) / 1e6, (hydrated - start) / 1e6,
+                        count, allowed);
+                reader.close();
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static String path(int i) {
+        return "/home/data/d" + (i / FILES_PER_DIRECTORY) + "/file" + (i % FILES_PER_DIRECTORY) + ".txt";
+    }
+
+    private static String size(Path directory) throws IOException {
+        long bytes = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                bytes += Files.size(file);
+            }
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
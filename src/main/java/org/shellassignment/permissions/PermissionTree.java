@@ -0,0 +1,222 @@
+package org.shellassignment.permissions;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// Permissions keyed by path component. Only explicitly set paths (and the nodes leading to them)
+// are stored; any other path resolves to the permission of its nearest explicit ancestor.
+// Lookups never lock; writers are serialized on the tree and publish through volatile fields.
+public class PermissionTree {
+    private static final class Node {
+        final Node parent;
+        final String name;
+        volatile Map<String, Node> children;
+        // Written before permission, so a reader that sees a permission also sees its path
+        volatile String path;
+        volatile FilePermission permission;
+
+        Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        Node child(String component) {
+            Map<String, Node> current = children;
+            return current == null ? null : current.get(component);
+        }
+    }
+
+    private final Node root = new Node(null, "");
+    private volatile int size;
+
+    public int size() {
+        return size;
+    }
+
+    // Permission set on exactly this path, or null
+    public FilePermission get(String path) {
+        Node node = find(path);
+        return node == null ? null : node.permission;
+    }
+
+    // Permission set on this path or its nearest ancestor, or null when no ancestor has one
+    public FilePermission resolve(String path) {
+        Node node = root;
+        FilePermission nearest = root.permission;
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                node = node.child(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                FilePermission permission = node.permission;
+                if (permission != null) {
+                    nearest = permission;
+                }
+            }
+            start = end + 1;
+        }
+        return nearest;
+    }
+
+    public synchronized void put(String path, FilePermission permission) {
+        if (permission == null) {
+            remove(path);
+            return;
+        }
+        Node node = root;
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                String component = path.substring(start, end);
+                Node next = node.child(component);
+                if (next == null) {
+                    if (node.children == null) {
+                        node.children = new ConcurrentHashMap<>(4);
+                    }
+                    next = new Node(node, component);
+                    node.children.put(component, next);
+                }
+                node = next;
+            }
+            start = end + 1;
+        }
+        if (node.permission == null) {
+            size++;
+        }
+        node.path = path;
+        node.permission = permission;
+    }
+
+    public synchronized FilePermission remove(String path) {
+        Node node = find(path);
+        if (node == null || node.permission == null) {
+            return null;
+        }
+        FilePermission removed = node.permission;
+        node.permission = null;
+        size--;
+        prune(node);
+        return removed;
+    }
+
+    // Removes the permission of this path and of everything below it
+    public synchronized int removeSubtree(String path) {
+        Node node = find(path);
+        if (node == null) {
+            return 0;
+        }
+        int removed = 0;
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            Node current = pending.pop();
+            if (current.permission != null) {
+                removed++;
+            }
+            if (current.children != null) {
+                pending.addAll(current.children.values());
+            }
+        }
+        size -= removed;
+        node.permission = null;
+        node.children = null;
+        prune(node);
+        return removed;
+    }
+
+    public void forEach(BiConsumer<String, FilePermission> action) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            FilePermission permission = node.permission;
+            if (permission != null) {
+                action.accept(node.path, permission);
+            }
+            Map<String, Node> children = node.children;
+            if (children != null) {
+                pending.addAll(children.values());
+            }
+        }
+    }
+
+    private Node find(String path) {
+        Node node = root;
+        int length = path.length();
+        int start = 0;
+        while (start < length && node != null) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                node = node.child(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    // Drops nodes that no longer hold a permission or lead to one
+    private void prune(Node node) {
+        while (node.parent != null && node.permission == null
+                && (node.children == null || node.children.isEmpty())) {
+            Node parent = node.parent;
+            parent.children.remove(node.name);
+            if (parent.children.isEmpty()) {
+                parent.children = null;
+            }
+            node = parent;
+        }
+    }
+
+    // Whether path is directory itself or below it, splitting on the same separators as the tree
+    static boolean isWithin(String path, String directory) {
+        String trimmed = directory;
+        while (trimmed.length() > 1 && (trimmed.endsWith("/") || trimmed.endsWith("\\"))) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        if (!path.startsWith(trimmed)) {
+            return false;
+        }
+        if (path.length() == trimmed.length()) {
+            return true;
+        }
+        char next = path.charAt(trimmed.length());
+        return next == '/' || next == '\\' || trimmed.endsWith("/") || trimmed.endsWith("\\");
+    }
+
+    // The path's components joined by '/': every spelling of a path that reaches the same node has the same key
+    static String key(String path) {
+        StringBuilder key = new StringBuilder(path.length());
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = nextSeparator(path, start);
+            if (end > start) {
+                if (key.length() > 0) {
+                    key.append('/');
+                }
+                key.append(path, start, end);
+            }
+            start = end + 1;
+        }
+        return key.toString();
+    }
+
+    private static int nextSeparator(String path, int from) {
+        for (int i = from; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/' || c == '\\') {
+                return i;
+            }
+        }
+        return path.length();
+    }
+}
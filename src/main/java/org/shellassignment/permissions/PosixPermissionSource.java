@@ -0,0 +1,230 @@
+package org.shellassignment.permissions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.attribute.UserPrincipalNotFoundException;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Reads a path's real owner, group and mode from the filesystem. Every lookup stats the file, since it
+// can change on disk at any time; what is cached is the permission built from the last read, kept while
+// the file's mtime, mode, uid and gid stay the same, so an unchanged file costs one stat and no owner or
+// group name lookups. When a path's permission turns out different from what the last lookup returned,
+// including a file appearing or disappearing, the change listener is told, so that decisions made from
+// the old one can be retired.
+public class PosixPermissionSource {
+    private static final class Cached {
+        // Null when the path was looked up and had no attributes
+        final FilePermission permission;
+        final long modified;
+        // Numeric owner and group; -1 when the unix view is not available
+        final int uid;
+        final int gid;
+
+        Cached(FilePermission permission, long modified, int uid, int gid) {
+            this.permission = permission;
+            this.modified = modified;
+            this.uid = uid;
+            this.gid = gid;
+        }
+    }
+
+    private static final Cached MISSING = new Cached(null, 0, -1, -1);
+
+    private static final int[] POSIX_BITS = new int[PosixFilePermission.values().length];
+
+    static {
+        // PosixFilePermission is declared owner read/write/execute, group ..., others ...
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            POSIX_BITS[permission.ordinal()] = 0400 >> permission.ordinal();
+        }
+    }
+
+    private final boolean writeThrough;
+    private final boolean unixView;
+    private volatile Runnable changeListener = () -> { };
+    private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+    // Resolving a uid or gid to a name goes through the OS user database, so each is resolved once
+    private final Map<Integer, Integer> userIds = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> groupIds = new ConcurrentHashMap<>();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+
+    public PosixPermissionSource(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+        // The "unix" view hands out numeric uid/gid and the full mode without name lookups
+        this.unixView = Paths.get(".").getFileSystem().supportedFileAttributeViews().contains("unix");
+    }
+
+    public boolean isWriteThrough() {
+        return writeThrough;
+    }
+
+    // Called after a lookup finds that a path's permission changed on disk
+    public void setChangeListener(Runnable changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    // The on-disk permission of the path, or null if it does not exist or has no POSIX attributes
+    public FilePermission lookup(String filePath) {
+        Cached cached = cache.get(filePath);
+        Cached current = read(Paths.get(filePath), cached);
+        if (current != cached) {
+            cache.put(filePath, current);
+            // The first lookup of a path cannot have been answered differently before
+            if (cached != null && !samePermission(cached.permission, current.permission)) {
+                changeListener.run();
+            }
+        }
+        return current.permission;
+    }
+
+    public void invalidate(String filePath) {
+        if (cache.remove(filePath) != null) {
+            changeListener.run();
+        }
+    }
+
+    // The cached entry itself when the file is unchanged
+    private Cached read(Path path, Cached cached) {
+        try {
+            long modified;
+            int mode;
+            int uid = -1;
+            int gid = -1;
+            PosixFileAttributes attributes = null;
+            if (unixView) {
+                Map<String, Object> unix = Files.readAttributes(path, "unix:mode,uid,gid,lastModifiedTime",
+                        LinkOption.NOFOLLOW_LINKS);
+                mode = (Integer) unix.get("mode") & 07777;
+                uid = (Integer) unix.get("uid");
+                gid = (Integer) unix.get("gid");
+                modified = ((FileTime) unix.get("lastModifiedTime")).toMillis();
+            } else {
+                attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                mode = toMode(attributes.permissions());
+                modified = attributes.lastModifiedTime().toMillis();
+            }
+
+            // The mode is compared too, since chmod on disk changes ctime but not mtime
+            if (cached != null && cached.permission != null && cached.modified == modified
+                    && cached.permission.getMode() == mode && cached.uid == uid && cached.gid == gid) {
+                revalidations.increment();
+                return cached;
+            }
+
+            reads.increment();
+            int ownerId;
+            int groupId;
+            if (unixView) {
+                ownerId = resolve(userIds, uid, path, true);
+                groupId = resolve(groupIds, gid, path, false);
+            } else {
+                ownerId = IdTable.USERS.intern(attributes.owner().getName());
+                groupId = IdTable.GROUPS.intern(attributes.group().getName());
+            }
+            return new Cached(new FilePermission(ownerId, groupId, mode), modified, uid, gid);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return MISSING;
+        }
+    }
+
+    private static boolean samePermission(FilePermission a, FilePermission b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getOwnerId() == b.getOwnerId() && a.getGroupId() == b.getGroupId() && a.getMode() == b.getMode();
+    }
+
+    private static int resolve(Map<Integer, Integer> ids, int numericId, Path path, boolean user) throws IOException {
+        Integer id = ids.get(numericId);
+        if (id == null) {
+            PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            id = user ? IdTable.USERS.intern(attributes.owner().getName())
+                    : IdTable.GROUPS.intern(attributes.group().getName());
+            ids.put(numericId, id);
+        }
+        return id;
+    }
+
+    private static int toMode(Set<PosixFilePermission> permissions) {
+        int mode = 0;
+        for (PosixFilePermission permission : permissions) {
+            mode |= POSIX_BITS[permission.ordinal()];
+        }
+        return mode;
+    }
+
+    // Applies the permission's owner, group and mode to the file; returns false if the file is not there
+    // or the change was refused, in which case the caller keeps the change in the shell only
+    public boolean write(String filePath, FilePermission permission) {
+        if (!writeThrough) {
+            return false;
+        }
+        Path path = Paths.get(filePath);
+        try {
+            PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (view == null || !Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                return false;
+            }
+            PosixFileAttributes current = view.readAttributes();
+            UserPrincipalLookupService lookup = path.getFileSystem().getUserPrincipalLookupService();
+            if (!current.owner().getName().equals(permission.getOwner())) {
+                UserPrincipal owner = lookup.lookupPrincipalByName(permission.getOwner());
+                view.setOwner(owner);
+            }
+            if (!current.group().getName().equals(permission.getGroup())) {
+                GroupPrincipal group = lookup.lookupPrincipalByGroupName(permission.getGroup());
+                view.setGroup(group);
+            }
+            if (unixView) {
+                // Keeps the setuid, setgid and sticky bits, which PosixFilePermission cannot express
+                Files.setAttribute(path, "unix:mode", permission.getMode(), LinkOption.NOFOLLOW_LINKS);
+            } else {
+                view.setPermissions(toPermissions(permission.getMode()));
+            }
+            return true;
+        } catch (UserPrincipalNotFoundException e) {
+            System.err.println("Warning: could not update " + filePath + " on disk: no user or group named "
+                    + e.getName() + " on this system");
+            return false;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            System.err.println("Warning: could not update " + filePath + " on disk: " + e.getMessage());
+            return false;
+        } finally {
+            invalidate(filePath);
+        }
+    }
+
+    private static Set<PosixFilePermission> toPermissions(int mode) {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            if ((mode & POSIX_BITS[permission.ordinal()]) != 0) {
+                permissions.add(permission);
+            }
+        }
+        return permissions;
+    }
+
+    public void printStatistics() {
+        System.out.println("=== POSIX Attribute Cache ===");
+        System.out.println("Cached paths: " + cache.size() + (writeThrough ? " (write-through)" : ""));
+        System.out.println("Attribute reads: " + reads.sum());
+        System.out.println("Revalidated unchanged: " + revalidations.sum());
+    }
+}
@@ -0,0 +1,212 @@
+package org.shellassignment.session;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.shellassignment.JobManager;
+import org.shellassignment.MlfqScheduler;
+import org.shellassignment.MultiCoreScheduler;
+import org.shellassignment.PriorityScheduler;
+import org.shellassignment.RoundRobinScheduler;
+import org.shellassignment.Shell;
+import org.shellassignment.audit.AuditLog;
+import org.shellassignment.auth.AuthenticationManager;
+import org.shellassignment.auth.User;
+import org.shellassignment.memory.MemoryManager;
+import org.shellassignment.memory.PageReplacementAlgorithm;
+import org.shellassignment.permissions.PermissionManager;
+
+// One logged-in user's shell state: who they are, where they are, their jobs and their environment.
+// The shell that hosts it owns everything shared between sessions (users, permissions, caches).
+// Reads are plain field loads; only the environment is a map, and it holds just what the session set.
+// The scheduling and memory simulations belong to the session that runs them, so users never see each other's.
+public final class Session {
+    private final long id;
+    private final Shell shell;
+    private final User user;
+    private final JobManager jobs = new JobManager();
+    // Variables set with export; anything else comes from the shell's own environment
+    private final Map<String, String> environment = new ConcurrentHashMap<>();
+    // Session tokens this session logged in with or issued; logout revokes them
+    private final List<String> tokens = new CopyOnWriteArrayList<>();
+    private final long createdAt = System.currentTimeMillis();
+    private final MemoryManager memoryManager = new MemoryManager(10, PageReplacementAlgorithm.FIFO); // 10 page frames
+    // The last simulation of each kind this session ran
+    private volatile RoundRobinScheduler scheduler;
+    private volatile PriorityScheduler priorityScheduler;
+    private volatile MlfqScheduler mlfqScheduler;
+    private volatile MultiCoreScheduler multiCoreScheduler;
+    private volatile File workingDirectory;
+    private volatile long lastActive = createdAt;
+    private volatile boolean open = true;
+    // Status of the last command: 0, the exit status of an external one or of a pipeline's last stage,
+    // 1 when a builtin reported an error
+    private volatile int lastStatus;
+    // Set by the exit builtin; whoever hosts the session decides what exiting means
+    private volatile int exitStatus = -1;
+
+    Session(long id, Shell shell, User user, File workingDirectory) {
+        this.id = id;
+        this.shell = shell;
+        this.user = user;
+        this.workingDirectory = workingDirectory;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Shell getShell() {
+        return shell;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public String getUsername() {
+        return user.getUsername();
+    }
+
+    public boolean isAdmin() {
+        return user.isAdmin();
+    }
+
+    public File getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    public void setWorkingDirectory(File workingDirectory) {
+        this.workingDirectory = workingDirectory;
+    }
+
+    public JobManager getJobs() {
+        return jobs;
+    }
+
+    public MemoryManager getMemoryManager() {
+        return memoryManager;
+    }
+
+    public RoundRobinScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setScheduler(RoundRobinScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public PriorityScheduler getPriorityScheduler() {
+        return priorityScheduler;
+    }
+
+    public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+        this.priorityScheduler = priorityScheduler;
+    }
+
+    public MlfqScheduler getMlfqScheduler() {
+        return mlfqScheduler;
+    }
+
+    public void setMlfqScheduler(MlfqScheduler mlfqScheduler) {
+        this.mlfqScheduler = mlfqScheduler;
+    }
+
+    public MultiCoreScheduler getMultiCoreScheduler() {
+        return multiCoreScheduler;
+    }
+
+    public void setMultiCoreScheduler(MultiCoreScheduler multiCoreScheduler) {
+        this.multiCoreScheduler = multiCoreScheduler;
+    }
+
+    public String getEnv(String name) {
+        String value = environment.get(name);
+        return value != null ? value : System.getenv(name);
+    }
+
+    public void setEnv(String name, String value) {
+        environment.put(name, value);
+    }
+
+    // What the session exported, to be layered over the inherited environment of a child process
+    public Map<String, String> getEnvironmentOverrides() {
+        return Collections.unmodifiableMap(environment);
+    }
+
+    // The full environment as a child process would see it, sorted by name
+    public Map<String, String> getEnvironment() {
+        Map<String, String> merged = new TreeMap<>(System.getenv());
+        merged.putAll(environment);
+        return merged;
+    }
+
+    public void addToken(String token) {
+        tokens.add(token);
+    }
+
+    public List<String> getTokens() {
+        return Collections.unmodifiableList(tokens);
+    }
+
+    public AuthenticationManager getAuthenticationManager() {
+        return shell.getAuthenticationManager();
+    }
+
+    public PermissionManager getPermissionManager() {
+        return shell.getPermissionManager();
+    }
+
+    public AuditLog getAuditLog() {
+        return shell.getAuditLog();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    public void touch() {
+        lastActive = System.currentTimeMillis();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getLastStatus() {
+        return lastStatus;
+    }
+
+    public void setLastStatus(int lastStatus) {
+        this.lastStatus = lastStatus;
+    }
+
+    public void requestExit(int status) {
+        exitStatus = Math.max(0, status);
+    }
+
+    public boolean isExitRequested() {
+        return exitStatus >= 0;
+    }
+
+    public int getExitStatus() {
+        return Math.max(0, exitStatus);
+    }
+
+    void markClosed() {
+        open = false;
+    }
+
+    @Override
+    public String toString() {
+        return "Session{" + id + ", user=" + user.getUsername() + ", cwd=" + workingDirectory + '}';
+    }
+}
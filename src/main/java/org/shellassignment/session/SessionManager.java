@@ -0,0 +1,102 @@
+package org.shellassignment.session;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.shellassignment.Shell;
+import org.shellassignment.auth.User;
+
+// Registry of the sessions one shell process is serving. Sessions live in a fixed table of slots; an ID
+// is the slot index in the low 32 bits and the slot's generation above it, so a lookup is one array read
+// and an ID comparison, with no locking and no boxing, and an ID is never reused for a later session.
+// Opening and closing sessions are rare and synchronized. The table size is mysh.sessions.max (default 1024).
+public class SessionManager {
+    public static final int DEFAULT_MAX_SESSIONS = 1024;
+
+    private final Shell shell;
+    private final AtomicReferenceArray<Session> slots;
+    private final int[] generations;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int nextSlot;
+    private int count;
+
+    public SessionManager(Shell shell) {
+        this(shell, Integer.getInteger("mysh.sessions.max", DEFAULT_MAX_SESSIONS));
+    }
+
+    public SessionManager(Shell shell, int maxSessions) {
+        this.shell = shell;
+        this.slots = new AtomicReferenceArray<>(maxSessions);
+        this.generations = new int[maxSessions];
+    }
+
+    // Returns null when every slot is in use
+    public synchronized Session open(User user, File workingDirectory) {
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.pop();
+        } else if (nextSlot < slots.length()) {
+            slot = nextSlot++;
+        } else {
+            return null;
+        }
+        // Generations start at 1 so that 0 is never a valid ID
+        long id = (long) ++generations[slot] << 32 | slot;
+        Session session = new Session(id, shell, user, workingDirectory);
+        slots.set(slot, session);
+        count++;
+        return session;
+    }
+
+    public Session get(long id) {
+        int slot = (int) id;
+        if (slot < 0 || slot >= slots.length()) {
+            return null;
+        }
+        Session session = slots.get(slot);
+        return session != null && session.getId() == id ? session : null;
+    }
+
+    public synchronized boolean close(Session session) {
+        int slot = (int) session.getId();
+        if (!slots.compareAndSet(slot, session, null)) {
+            return false;
+        }
+        session.markClosed();
+        freeSlots.push(slot);
+        count--;
+        return true;
+    }
+
+    // Closes every session of the user, as when the account is deleted
+    public int closeAll(String username) {
+        int closed = 0;
+        for (Session session : list()) {
+            if (session.getUsername().equals(username) && close(session)) {
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    public List<Session> list() {
+        List<Session> open = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i++) {
+            Session session = slots.get(i);
+            if (session != null) {
+                open.add(session);
+            }
+        }
+        return open;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+}
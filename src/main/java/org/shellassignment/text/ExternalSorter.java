@@ -0,0 +1,248 @@
+package org.shellassignment.text;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class ExternalSorter {
+    // How many spill files are merged in a single pass
+    public static final int MAX_MERGE_FAN_IN = 64;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // Rough heap cost of a String held in the sort buffer: object headers plus two bytes per char
+    private static final int LINE_OVERHEAD_BYTES = 64;
+
+    private final long memoryLimitBytes;
+    private final Comparator<String> comparator;
+    private final boolean unique;
+    private final List<Path> spillFiles = new ArrayList<>();
+    private int totalSpills;
+
+    public ExternalSorter(long memoryLimitBytes, Comparator<String> comparator, boolean unique) {
+        if (memoryLimitBytes <= 0) {
+            throw new IllegalArgumentException("Memory limit must be positive");
+        }
+        this.memoryLimitBytes = memoryLimitBytes;
+        this.comparator = comparator;
+        this.unique = unique;
+    }
+
+    public static long defaultMemoryLimit() {
+        String configured = System.getProperty("mysh.sort.buffer");
+        if (configured != null) {
+            return parseSize(configured);
+        }
+        return Math.min(Runtime.getRuntime().maxMemory() / 4, 256L * 1024 * 1024);
+    }
+
+    // Accepts plain bytes or a K/M/G suffix, e.g. 512K or 100M
+    public static long parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        long multiplier = 1;
+        char suffix = s.isEmpty() ? ' ' : s.charAt(s.length() - 1);
+        if (suffix == 'K' || suffix == 'M' || suffix == 'G') {
+            multiplier = suffix == 'K' ? 1024L : suffix == 'M' ? 1024L * 1024 : 1024L * 1024 * 1024;
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * multiplier;
+    }
+
+    public int getSpillCount() {
+        return totalSpills;
+    }
+
+    public void sort(BufferedReader in, Writer out) throws IOException {
+        List<String> buffer = new ArrayList<>();
+        long bufferedBytes = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                buffer.add(line);
+                bufferedBytes += LINE_OVERHEAD_BYTES + 2L * line.length();
+                if (bufferedBytes >= memoryLimitBytes) {
+                    spill(buffer);
+                    buffer.clear();
+                    bufferedBytes = 0;
+                }
+            }
+
+            String[] lastChunk = sortChunk(buffer);
+            buffer = null;
+            if (spillFiles.isEmpty()) {
+                writeSorted(lastChunk, out);
+                return;
+            }
+
+            if (lastChunk.length > 0) {
+                spillFiles.add(writeSpill(lastChunk));
+            }
+            lastChunk = null;
+            while (spillFiles.size() > MAX_MERGE_FAN_IN) {
+                // Each pass merges neighbouring files into the place of the first, keeping spills in input order
+                for (int i = 0; i < spillFiles.size(); i++) {
+                    List<Path> neighbours = spillFiles.subList(i, Math.min(i + MAX_MERGE_FAN_IN, spillFiles.size()));
+                    List<Path> batch = new ArrayList<>(neighbours);
+                    Path merged = createSpillFile();
+                    neighbours.add(0, merged);
+                    try (BufferedWriter writer = Files.newBufferedWriter(merged, StandardCharsets.UTF_8)) {
+                        merge(batch, writer);
+                    }
+                    neighbours.subList(1, neighbours.size()).clear();
+                    deleteAll(batch);
+                }
+            }
+            merge(spillFiles, out);
+        } finally {
+            deleteAll(spillFiles);
+            spillFiles.clear();
+        }
+    }
+
+    private String[] sortChunk(List<String> lines) {
+        String[] chunk = lines.toArray(new String[0]);
+        Arrays.parallelSort(chunk, comparator);
+        return chunk;
+    }
+
+    private void spill(List<String> lines) throws IOException {
+        spillFiles.add(writeSpill(sortChunk(lines)));
+    }
+
+    private Path writeSpill(String[] sorted) throws IOException {
+        Path file = createSpillFile();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writeSorted(sorted, writer);
+        }
+        return file;
+    }
+
+    private Path createSpillFile() throws IOException {
+        totalSpills++;
+        Path file = Files.createTempFile("mysh-sort-", ".spill");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    private void writeSorted(String[] sorted, Writer out) throws IOException {
+        String previous = null;
+        for (String line : sorted) {
+            if (unique && previous != null && comparator.compare(previous, line) == 0) {
+                continue;
+            }
+            out.write(line);
+            out.write('\n');
+            previous = line;
+        }
+        out.flush();
+    }
+
+    private static final class MergeSource {
+        final BufferedReader reader;
+        // Position of the spill file: lines that compare equal are taken from earlier input first
+        final int index;
+        String current;
+
+        MergeSource(BufferedReader reader, int index) throws IOException {
+            this.reader = reader;
+            this.index = index;
+            this.current = reader.readLine();
+        }
+
+        boolean advance() throws IOException {
+            current = reader.readLine();
+            return current != null;
+        }
+    }
+
+    private void merge(List<Path> files, Writer out) throws IOException {
+        PriorityQueue<MergeSource> heap = new PriorityQueue<>(files.size(), (a, b) -> {
+            int order = comparator.compare(a.current, b.current);
+            return order != 0 ? order : Integer.compare(a.index, b.index);
+        });
+        List<MergeSource> sources = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                MergeSource source = new MergeSource(new BufferedReader(
+                        Files.newBufferedReader(file, StandardCharsets.UTF_8), IO_BUFFER_SIZE), sources.size());
+                sources.add(source);
+                if (source.current != null) {
+                    heap.add(source);
+                }
+            }
+
+            String previous = null;
+            while (!heap.isEmpty()) {
+                MergeSource source = heap.poll();
+                String line = source.current;
+                if (!unique || previous == null || comparator.compare(previous, line) != 0) {
+                    out.write(line);
+                    out.write('\n');
+                    previous = line;
+                }
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+            out.flush();
+        } finally {
+            for (MergeSource source : sources) {
+                source.reader.close();
+            }
+        }
+    }
+
+    private static void deleteAll(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // With unique, lines are equal when their keys are (1 and 01 under -n), as with sort -u: the key alone
+    // decides the order and the first line of each key in the input is the one kept
+    public static Comparator<String> comparator(boolean numeric, boolean reverse, boolean unique) {
+        Comparator<String> base = Comparator.naturalOrder();
+        if (numeric) {
+            Comparator<String> key = Comparator.comparingDouble(ExternalSorter::leadingNumber);
+            base = unique ? key : key.thenComparing(Comparator.naturalOrder());
+        }
+        return reverse ? base.reversed() : base;
+    }
+
+    // Numeric value of the line's leading number, 0 when there is none (same as sort -n)
+    private static double leadingNumber(String line) {
+        int start = 0;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        if (end < line.length() && (line.charAt(end) == '-' || line.charAt(end) == '+')) {
+            end++;
+        }
+        boolean seenDot = false;
+        while (end < line.length()) {
+            char c = line.charAt(end);
+            if (c == '.' && !seenDot) {
+                seenDot = true;
+            } else if (c < '0' || c > '9') {
+                break;
+            }
+            end++;
+        }
+        try {
+            return Double.parseDouble(line.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.shellassignment.text;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+
+public class UniqFilter {
+    private final boolean count;
+    private final boolean onlyDuplicates;
+    private final boolean onlyUnique;
+
+    public UniqFilter(boolean count, boolean onlyDuplicates, boolean onlyUnique) {
+        this.count = count;
+        this.onlyDuplicates = onlyDuplicates;
+        this.onlyUnique = onlyUnique;
+    }
+
+    // Collapses adjacent identical lines; holds only the current run in memory
+    public void filter(BufferedReader in, Writer out) throws IOException {
+        String current = in.readLine();
+        if (current == null) {
+            out.flush();
+            return;
+        }
+        long runLength = 1;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(current)) {
+                runLength++;
+                continue;
+            }
+            emit(current, runLength, out);
+            current = line;
+            runLength = 1;
+        }
+        emit(current, runLength, out);
+        out.flush();
+    }
+
+    private void emit(String line, long runLength, Writer out) throws IOException {
+        if (onlyDuplicates && runLength < 2) {
+            return;
+        }
+        if (onlyUnique && runLength > 1) {
+            return;
+        }
+        if (count) {
+            out.write(String.format("%7d ", runLength));
+        }
+        out.write(line);
+        out.write('\n');
+    }
+}